@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvbench;
+
+import java.io.InputStream;
+
+/**
+ * InputStream over a byte array that gives at most a chunk of bytes per
+ * read, like a socket does, so the scanner has to deal with frames split
+ * over several reads.
+ *
+ * @author Thomas Le
+ * @see MjpegBenchmark
+ */
+public class ChunkedInputStream extends InputStream {
+    private final byte[] data;
+    private final int chunkSize;
+    private int pos;
+
+
+
+    /**
+     * Constructor
+     * @param data
+     *        the stream bytes.
+     * @param chunkSize
+     *        max bytes returned by one read.
+     */
+    public ChunkedInputStream(byte[] data, int chunkSize) {
+        this.data = data;
+        this.chunkSize = chunkSize;
+        pos = 0;
+    }
+
+
+
+    @Override
+    public int read() {
+        if(pos >= data.length) return -1;
+        return data[pos++] & 0xFF;
+    }
+
+
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if(pos >= data.length) return -1;
+        int n = Math.min(Math.min(len, chunkSize), data.length - pos);
+        System.arraycopy(data, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+
+
+    @Override
+    public int available() {
+        return Math.min(chunkSize, data.length - pos);
+    }
+}
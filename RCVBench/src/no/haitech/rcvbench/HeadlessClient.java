@@ -0,0 +1,419 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvbench;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import no.haitech.rcvclient.ClockOffset;
+import no.haitech.rcvclient.DecodedFrame;
+import no.haitech.rcvclient.FrameBuffer;
+import no.haitech.rcvclient.FrameBus;
+import no.haitech.rcvclient.FramePacer;
+import no.haitech.rcvclient.FrameSource;
+import no.haitech.rcvclient.LatencyHistogram;
+import no.haitech.rcvclient.MjpegFrameSource;
+import no.haitech.rcvclient.MjpegStreamClient;
+import no.haitech.rcvclient.StreamMetrics;
+import no.haitech.rcvclient.StreamPipeline;
+import no.haitech.rcvclient.StreamSupervisor;
+
+/**
+ * Camera client without a display, on the same streaming core as the
+ * Android app. It reads a camera stream through the stream supervisor,
+ * decodes it with ImageIO in a {@link StreamPipeline}, and takes the
+ * images on a render thread paced like a display, without drawing them.
+ * Once a second it prints the rates, the share of unchanged frames not
+ * decoded, and the latency of every stage, from the camera on when the
+ * server puts timestamps on its frames.
+ * <p>
+ * With {@code -b} a slow consumer, standing in for an analytics hook,
+ * subscribes to the decoded images with the given backpressure policy,
+ * to show that it loses frames itself without slowing the display.
+ * <p>
+ * Run it against a camera, or the {@link MjpegServer}, to load test and
+ * profile the whole client path on a plain JVM, with
+ * {@code ant headless -Dheadless.args="..."}.
+ *
+ * @author Thomas Le
+ * @see StreamPipeline
+ */
+public class HeadlessClient {
+    private final static String USAGE =
+            "usage: HeadlessClient [options] URL\n"
+            + "  -d SECONDS      stop after this long (default 10)\n"
+            + "  -v HZ           refresh rate of the stand-in display"
+            + " (default 60)\n"
+            + "  -m FPS          max frames shown per second, 0 for no cap"
+            + " (default 0)\n"
+            + "  -k              skip to the newest frame when behind\n"
+            + "  -a              decode every frame, also unchanged ones\n"
+            + "  -b POLICY,N     slow subscriber to the decoded images, with"
+            + " policy block,\n"
+            + "                  drop or sample, and queue length or sample"
+            + " interval N\n"
+            + "  -w MS           work per image of the slow subscriber"
+            + " (default 100)\n";
+
+    private final static long NANOS_PER_SECOND = 1000000000L;
+    private final static long NANOS_PER_MILLI = 1000000L;
+
+    // Options
+    private URL url = null;
+    private int durationSeconds = 10;
+    private int refreshRate = 60;
+    private int maxFps = 0;
+    private boolean skipToNewest = false;
+    private boolean skipUnchanged = true;
+    private int subscriberPolicy = -1;
+    private int subscriberN = 1;
+    private int subscriberWorkMs = 100;
+
+    private volatile MjpegFrameSource source;
+
+
+
+    /**
+     * Runs the client.
+     * @param args
+     *        command line options, see {@link #USAGE}.
+     */
+    public static void main(String[] args) throws Exception {
+        HeadlessClient c = new HeadlessClient();
+        if(!c.parseArgs(args)) {
+            System.err.print(USAGE);
+            System.exit(2);
+        }
+        c.run();
+    }
+
+
+
+    /*
+     * Reads the options. Returns false if they are not valid.
+     */
+    private boolean parseArgs(String[] args) {
+        try {
+            for(int i = 0; i < args.length; i++) {
+                String a = args[i];
+                if(a.equals("-d")) durationSeconds = parseInt(args[++i]);
+                else if(a.equals("-v")) refreshRate = parseInt(args[++i]);
+                else if(a.equals("-m")) maxFps = parseInt(args[++i]);
+                else if(a.equals("-k")) skipToNewest = true;
+                else if(a.equals("-a")) skipUnchanged = false;
+                else if(a.equals("-b")) parseSubscriber(args[++i]);
+                else if(a.equals("-w")) subscriberWorkMs = parseInt(args[++i]);
+                else if(a.startsWith("-") || url != null) return false;
+                else url = new URL(a);
+            }
+        } catch (RuntimeException e) {
+            return false;
+        } catch (IOException e) {
+            return false;
+        }
+        return url != null && refreshRate > 0;
+    }
+
+
+
+    /*
+     * Streams for the duration, printing the metrics once a second.
+     */
+    private void run() throws Exception {
+        final Display display = new Display();
+        ImageIODecoder decoder = new ImageIODecoder();
+        final StreamPipeline<BufferedImage> pipeline =
+                new StreamPipeline<BufferedImage>(decoder, display);
+        final StreamMetrics metrics = pipeline.getMetrics();
+        metrics.setEnabled(true);
+        decoder.metrics = metrics;
+        pipeline.setSkipUnchanged(skipUnchanged);
+        display.pipeline = pipeline;
+
+        StreamSupervisor supervisor = new StreamSupervisor(
+                new StreamSupervisor.Connector() {
+            @Override
+            public FrameSource connect() throws IOException {
+                MjpegStreamClient client = new MjpegStreamClient(url);
+                client.connect();
+                MjpegFrameSource s = new MjpegFrameSource(client);
+                s.setMetrics(metrics);
+                s.setSkipToNewest(skipToNewest);
+                source = s;
+                return s;
+            }
+        }, metrics);
+
+        SlowSubscriber subscriber = null;
+        if(subscriberPolicy >= 0) {
+            subscriber = new SlowSubscriber(pipeline.getImageBus()
+                    .subscribe(subscriberPolicy, subscriberN));
+            subscriber.start();
+        }
+
+        metrics.startFirstFrame(System.nanoTime());
+        display.start();
+        pipeline.setSource(supervisor);
+        pipeline.start();
+
+        System.out.println("second     fps    kB/s  dropped  skipped"
+                + "  corrupt  unchanged  decode p50  end-to-end p50"
+                + "    p99  glass-to-glass p50    p99 ms");
+        for(int s = 1; s <= durationSeconds; s++) {
+            Thread.sleep(1000);
+            metrics.updateRates();
+            LatencyHistogram decode = metrics.getStage(
+                    StreamMetrics.STAGE_DECODE);
+            LatencyHistogram total = metrics.getStage(
+                    StreamMetrics.STAGE_END_TO_END);
+            LatencyHistogram glass = metrics.getStage(
+                    StreamMetrics.STAGE_GLASS_TO_GLASS);
+            System.out.println(String.format("%6d  %6.1f  %6.0f  %7d  %7d"
+                    + "  %7d  %8.0f%%  %10.1f  %14.1f  %5.1f  %18.1f  %8.1f",
+                    s,
+                    metrics.getFps(), metrics.getBytesPerSecond() / 1024f,
+                    metrics.getDropped(), metrics.getSkipped(),
+                    metrics.getCorrupt(),
+                    metrics.getUnchangedRatio() * 100,
+                    decode.getPercentile(0.5) / 1000f,
+                    total.getPercentile(0.5) / 1000f,
+                    total.getPercentile(0.99) / 1000f,
+                    glass.getPercentile(0.5) / 1000f,
+                    glass.getPercentile(0.99) / 1000f));
+            if(subscriber != null) {
+                System.out.println(String.format("        subscriber got %d"
+                        + "  dropped %d", subscriber.subscription
+                        .getDelivered(), subscriber.subscription
+                        .getDropped()));
+            }
+        }
+
+        pipeline.stop();
+        display.interrupt();
+        display.join();
+        if(subscriber != null) {
+            subscriber.subscription.close();
+            subscriber.join();
+        }
+        System.out.println(String.format("first frame %.0f ms, outages %d,"
+                + " images reused %d, new %d",
+                metrics.getLastFirstFrame() / (float) NANOS_PER_MILLI,
+                metrics.getOutages(), metrics.getImagesReused(),
+                metrics.getImagesAllocated()));
+        printClockOffset();
+    }
+
+
+
+    /*
+     * Prints how far the server clock is ahead of the wall clock here, as
+     * estimated by the last stream, if it had timestamps.
+     */
+    private void printClockOffset() {
+        ClockOffset clock = source != null ? source.getClockOffset() : null;
+        if(clock == null || !clock.isKnown()) {
+            System.out.println("server clock unknown, no timestamps");
+            return;
+        }
+        long wall = System.currentTimeMillis() * NANOS_PER_MILLI
+                - System.nanoTime();
+        long uncertainty = clock.getUncertaintyNanos();
+        System.out.println(String.format("server clock ahead %.1f ms"
+                + " (exchange +-%.1f ms)",
+                (clock.getOffsetNanos() - wall) / (float) NANOS_PER_MILLI,
+                uncertainty / (float) NANOS_PER_MILLI));
+    }
+
+
+
+    /*
+     * Reads the policy and n of the slow subscriber, like drop,4.
+     */
+    private void parseSubscriber(String s) {
+        String[] p = s.split(",");
+        if(p[0].equals("block")) subscriberPolicy = FrameBus.POLICY_BLOCK;
+        else if(p[0].equals("drop")) {
+            subscriberPolicy = FrameBus.POLICY_DROP_OLDEST;
+        } else if(p[0].equals("sample")) {
+            subscriberPolicy = FrameBus.POLICY_SAMPLE;
+        } else {
+            throw new IllegalArgumentException("Bad policy " + p[0]);
+        }
+        subscriberN = p.length > 1 ? parseInt(p[1]) : 1;
+    }
+
+
+
+    private static int parseInt(String s) {
+        return Integer.parseInt(s.trim());
+    }
+
+
+
+    /*
+     * Decodes with ImageIO, into the image of an earlier frame when it has
+     * the same size, counting the images reused.
+     */
+    private static class ImageIODecoder
+            implements StreamPipeline.ImageDecoder<BufferedImage> {
+        private final ImageReader reader;
+        private StreamMetrics metrics;
+
+        public ImageIODecoder() {
+            Iterator<ImageReader> readers =
+                    ImageIO.getImageReadersByFormatName("jpeg");
+            reader = readers.next();
+        }
+
+        @Override
+        public BufferedImage decode(FrameBuffer frame, BufferedImage reuse) {
+            try {
+                ImageInputStream in = ImageIO.createImageInputStream(
+                        new ByteArrayInputStream(frame.getData(), 0,
+                                frame.getLength()));
+                try {
+                    reader.setInput(in, true, true);
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    if(reuse != null && reuse.getWidth() == reader.getWidth(0)
+                            && reuse.getHeight() == reader.getHeight(0)) {
+                        param.setDestination(reuse);
+                    }
+                    BufferedImage image = reader.read(0, param);
+                    if(metrics != null) {
+                        metrics.imageDecoded(reuse != null && image == reuse);
+                    }
+                    return image;
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                return null;
+            } catch (RuntimeException e) {
+                // ImageIO throws on some broken JPEGs.
+                return null;
+            }
+        }
+    }
+
+
+
+    /*
+     * Stand-in display, taking the newest image at a vsync when there is
+     * one, no faster than the max fps.
+     */
+    private class Display extends Thread
+            implements StreamPipeline.Renderer {
+        private final AtomicBoolean requested;
+        private final FramePacer pacer;
+        private final long periodNanos;
+        private StreamPipeline<BufferedImage> pipeline;
+
+        public Display() {
+            super("Display");
+            requested = new AtomicBoolean();
+            pacer = new FramePacer(maxFps);
+            periodNanos = NANOS_PER_SECOND / refreshRate;
+        }
+
+        @Override
+        public void requestRender() {
+            requested.set(true);
+        }
+
+        @Override
+        public void readFailed(IOException e) {
+            System.err.println("read failed: " + e);
+        }
+
+        @Override
+        public void run() {
+            long vsync = System.nanoTime();
+            try {
+                while(true) {
+                    vsync += periodNanos;
+                    long wait = vsync - System.nanoTime();
+                    if(wait > 0) {
+                        Thread.sleep(wait / NANOS_PER_MILLI,
+                                (int) (wait % NANOS_PER_MILLI));
+                    }
+                    if(!requested.get()
+                            || !pacer.shouldPresent(vsync, periodNanos)) {
+                        continue;
+                    }
+                    requested.set(false);
+                    long start = pipeline.getMetrics().now();
+                    BufferedImage image = pipeline.takeImage();
+                    if(image == null) continue;
+                    // Touches the image, as a draw would read it.
+                    image.getRGB(0, 0);
+                    pipeline.imageShown(start);
+                }
+            } catch (InterruptedException e) {
+                // Stopped.
+            }
+        }
+    }
+
+
+
+    /*
+     * Consumer of the decoded images that takes longer per image than the
+     * stream gives them, like an analysis.
+     */
+    private class SlowSubscriber extends Thread {
+        private final FrameBus.Subscription<DecodedFrame<BufferedImage>>
+                subscription;
+
+        public SlowSubscriber(
+                FrameBus.Subscription<DecodedFrame<BufferedImage>> s) {
+            super("SlowSubscriber");
+            subscription = s;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while(true) {
+                    DecodedFrame<BufferedImage> f = subscription.take(1000);
+                    if(f == null) {
+                        if(subscription.isClosed()) return;
+                        continue;
+                    }
+                    try {
+                        f.getImage().getRGB(0, 0);
+                        Thread.sleep(subscriberWorkMs);
+                    } finally {
+                        f.release();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Stopped.
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvbench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+
+/**
+ * Stand-in MJPEG camera on the loopback interface, for running the
+ * client socket code without a camera.
+ * Every connection gets an HTTP response with the stream body, plain or
+ * with chunked transfer encoding, after which the connection is closed.
+ *
+ * @author Thomas Le
+ * @see MjpegBenchmark
+ */
+public class LoopbackServer implements Runnable {
+    private final static int CHUNK_LENGTH = 32 * 1024;
+
+    private final ServerSocket server;
+    private final byte[] body;
+    private final boolean chunked;
+    private final Thread thread;
+
+
+
+    /**
+     * Constructor, starts the server on a free port.
+     * @param body
+     *        multipart body sent on every connection.
+     * @param chunked
+     *        true to send the body with chunked transfer encoding.
+     * @throws IOException if the server socket can not be opened.
+     */
+    public LoopbackServer(byte[] body, boolean chunked) throws IOException {
+        this.body = body;
+        this.chunked = chunked;
+        server = new ServerSocket(0, 4, InetAddress.getByName("127.0.0.1"));
+        thread = new Thread(this, "LoopbackServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+
+    /**
+     * Accessor method
+     * @return URL of the stream.
+     */
+    public URL getURL() throws IOException {
+        return new URL("http://127.0.0.1:" + server.getLocalPort()
+                + "/video.mjpg");
+    }
+
+
+
+    /**
+     * Stops the server.
+     */
+    public void close() throws IOException {
+        server.close();
+    }
+
+
+
+    @Override
+    public void run() {
+        while(!server.isClosed()) {
+            try {
+                Socket s = server.accept();
+                try {
+                    // Unread request bytes would make close() reset the
+                    // connection and cut off the body.
+                    readRequest(s.getInputStream());
+                    serve(s.getOutputStream());
+                } finally {
+                    s.close();
+                }
+            } catch (IOException e) {
+                // Closed by the client or by close().
+            }
+        }
+    }
+
+
+
+    /*
+     * Reads the request up to the blank line after the headers.
+     */
+    private static void readRequest(InputStream in) throws IOException {
+        int matched = 0;
+        int c;
+        while(matched < 4 && (c = in.read()) >= 0) {
+            if(c == (matched % 2 == 0 ? '\r' : '\n')) matched++;
+            else matched = c == '\r' ? 1 : 0;
+        }
+    }
+
+
+
+    /*
+     * Writes the response to one connection.
+     */
+    private void serve(OutputStream out) throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 200 OK\r\n");
+        head.append("Content-Type: multipart/x-mixed-replace; boundary=")
+                .append(StreamGenerator.BOUNDARY).append("\r\n");
+        if(chunked) head.append("Transfer-Encoding: chunked\r\n");
+        head.append("Connection: close\r\n\r\n");
+        out.write(head.toString().getBytes("ISO-8859-1"));
+
+        if(!chunked) {
+            out.write(body);
+        } else {
+            for(int i = 0; i < body.length; i += CHUNK_LENGTH) {
+                int n = Math.min(CHUNK_LENGTH, body.length - i);
+                out.write((Integer.toHexString(n) + "\r\n")
+                        .getBytes("ISO-8859-1"));
+                out.write(body, i, n);
+                out.write("\r\n".getBytes("ISO-8859-1"));
+            }
+            out.write("0\r\n\r\n".getBytes("ISO-8859-1"));
+        }
+        out.flush();
+    }
+}
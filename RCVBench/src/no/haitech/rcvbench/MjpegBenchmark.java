@@ -0,0 +1,679 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvbench;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import no.haitech.rcvclient.FrameBuffer;
+import no.haitech.rcvclient.FrameBufferPool;
+import no.haitech.rcvclient.FrameRecorder;
+import no.haitech.rcvclient.FrameSource;
+import no.haitech.rcvclient.LatencyHistogram;
+import no.haitech.rcvclient.MjpegFrameScanner;
+import no.haitech.rcvclient.MjpegFrameSource;
+import no.haitech.rcvclient.MjpegStreamClient;
+import no.haitech.rcvclient.MultipartHeaderParser;
+import no.haitech.rcvclient.ReplaySource;
+import no.haitech.rcvclient.StreamMetrics;
+import no.haitech.rcvclient.StreamSupervisor;
+import no.haitech.rcvclient.VehicleControl;
+
+/**
+ * Benchmark of the MJPEG frame extraction, and optionally JPEG decoding,
+ * on a plain JVM.
+ * Runs synthetic streams at several resolutions, with and without
+ * Content-Length headers and with corrupted frames, plus any recorded
+ * streams given on the command line. With {@code -l} the streams are also
+ * read through {@link MjpegStreamClient} from a {@link LoopbackServer}.
+ * Each stream is run a few times to
+ * warm up the JIT and then measured, reporting frames/s, bytes/s,
+ * allocation and per frame latency percentiles.
+ * <p>
+ * Usage: {@code java -jar rcvbench.jar [options] [recorded.mjpg ...]}, run
+ * with {@code -h} for the options.
+ *
+ * @author Thomas Le
+ * @see StreamGenerator
+ */
+public class MjpegBenchmark {
+    /*
+     * Size the scan buffer starts at, same as MjpegFrameSource. It grows
+     * to the largest frame.
+     */
+    private final static int SCAN_CAPACITY = 64 * 1024;
+
+    private final static String USAGE =
+            "Usage: MjpegBenchmark [options] [recorded.mjpg ...]\n"
+            + "  -r WxH,WxH,...  resolutions of the synthetic streams\n"
+            + "                  (default 320x240,640x480,800x600,1280x720)\n"
+            + "  -n N            frames per synthetic stream (default 100)\n"
+            + "  -q Q            JPEG quality from 0 to 1 (default 0.8)\n"
+            + "  -x R            share of corrupted frames (default 0.05)\n"
+            + "  -c N            bytes per network read (default 16384)\n"
+            + "  -w N            warm up runs per stream (default 5)\n"
+            + "  -i N            measured runs per stream (default 10)\n"
+            + "  -d              also decode the frames with ImageIO\n"
+            + "  -s              recorded streams only, no synthetic\n"
+            + "  -b TOKEN        multipart boundary of the recorded streams\n"
+            + "  -l              also read the streams over loopback sockets\n"
+            + "  -o N            time N reconnects after the loopback stream\n"
+            + "                  ends (default 0)\n"
+            + "  -v SECONDS      drive the control channel against a stand-in\n"
+            + "                  vehicle, with a loopback stream running\n"
+            + "  -k              also parse while recording the frames to a\n"
+            + "                  temporary directory, and check the index\n";
+
+    private String[] resolutions = {
+            "320x240", "640x480", "800x600", "1280x720" };
+    private int frameCount = 100;
+    private float quality = 0.8f;
+    private double corruptRate = 0.05;
+    private int chunkSize = 16 * 1024;
+    private int warmups = 5;
+    private int iterations = 10;
+    private boolean decode = false;
+    private boolean synthetic = true;
+    private List<File> recorded = new ArrayList<File>();
+    private byte[] recordedBoundary = null;
+    private boolean loopback = false;
+    private int outages = 0;
+    private int controlSeconds = 0;
+    private boolean record = false;
+    private FrameRecorder recorder = null;
+
+    private final FrameBufferPool pool = new FrameBufferPool(4);
+    private final com.sun.management.ThreadMXBean threads;
+
+
+
+    /**
+     * Constructor
+     */
+    public MjpegBenchmark() {
+        java.lang.management.ThreadMXBean mx =
+                ManagementFactory.getThreadMXBean();
+        if(mx instanceof com.sun.management.ThreadMXBean) {
+            threads = (com.sun.management.ThreadMXBean) mx;
+        } else {
+            threads = null;
+        }
+    }
+
+
+
+    /**
+     * Runs the benchmarks.
+     * @param args
+     *        command line options, see {@link #USAGE}.
+     * @throws IOException if a stream can not be made or read.
+     */
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        MjpegBenchmark bench = new MjpegBenchmark();
+        if(!bench.parseArgs(args)) {
+            System.err.print(USAGE);
+            System.exit(1);
+        }
+        bench.run();
+    }
+
+
+
+    /*
+     * Parses the command line, returns false on bad arguments.
+     */
+    private boolean parseArgs(String[] args) {
+        try {
+            for(int i = 0; i < args.length; i++) {
+                String a = args[i];
+                if(a.equals("-r")) resolutions = args[++i].split(",");
+                else if(a.equals("-n")) frameCount = parseInt(args[++i]);
+                else if(a.equals("-q")) quality = Float.parseFloat(args[++i]);
+                else if(a.equals("-x")) {
+                    corruptRate = Double.parseDouble(args[++i]);
+                }
+                else if(a.equals("-c")) chunkSize = parseInt(args[++i]);
+                else if(a.equals("-w")) warmups = parseInt(args[++i]);
+                else if(a.equals("-i")) iterations = parseInt(args[++i]);
+                else if(a.equals("-d")) decode = true;
+                else if(a.equals("-s")) synthetic = false;
+                else if(a.equals("-l")) loopback = true;
+                else if(a.equals("-o")) outages = parseInt(args[++i]);
+                else if(a.equals("-v")) controlSeconds = parseInt(args[++i]);
+                else if(a.equals("-k")) record = true;
+                else if(a.equals("-b")) {
+                    recordedBoundary = MultipartHeaderParser.parseBoundary(
+                            "boundary=" + args[++i]);
+                }
+                else if(a.startsWith("-")) return false;
+                else recorded.add(new File(a));
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return false;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return iterations > 0;
+    }
+
+
+
+    /*
+     * Makes the streams and runs every one of them.
+     */
+    private void run() throws IOException {
+        System.out.println("chunk " + chunkSize + " B, " + warmups
+                + " warm up and " + iterations + " measured runs per stream"
+                + (decode ? ", with ImageIO decode" : ""));
+        System.out.println(String.format(
+                "%-28s %7s %9s %8s %9s %10s %8s %8s %8s %8s %7s %6s",
+                "stream", "frames", "frames/s", "MB/s", "alloc B/f",
+                "alloc MB/s", "p50 us", "p90 us", "p99 us", "max us",
+                "rejects", "errors"));
+
+        StreamGenerator generator = new StreamGenerator(42);
+        byte[] boundary = MultipartHeaderParser.parseBoundary(
+                "boundary=" + StreamGenerator.BOUNDARY);
+        if(synthetic) {
+            for(String r : resolutions) {
+                String[] wh = r.trim().split("x");
+                int width = parseInt(wh[0]);
+                int height = parseInt(wh[1]);
+                List<byte[]> frames = generator.makeFrames(width, height,
+                        frameCount, quality);
+
+                byte[] withLength = generator.makeStream(frames, true, 0);
+                byte[] noLength = generator.makeStream(frames, false, 0);
+                measure(r + " length", withLength, boundary);
+                measure(r + " no-length", noLength, boundary);
+                measure(r + " no-length eoi", noLength, null);
+                measure(r + " length corrupt", generator.makeStream(frames,
+                        true, corruptRate), boundary);
+                measure(r + " no-length corrupt", generator.makeStream(frames,
+                        false, corruptRate), boundary);
+                if(loopback) {
+                    measureLoopback(r + " loopback", withLength, false);
+                    measureLoopback(r + " loopback chunked", noLength, true);
+                }
+                if(record) measureRecording(r + " record", withLength);
+                if(outages > 0) measureRecovery(r + " recovery", withLength);
+                if(controlSeconds > 0) {
+                    measureControl(r + " control", withLength);
+                }
+            }
+        }
+        for(File f : recorded) {
+            measure(f.getName(), StreamGenerator.readFile(f),
+                    recordedBoundary);
+        }
+
+        System.out.println("frame pool hits " + pool.getHits()
+                + ", misses " + pool.getMisses());
+    }
+
+
+
+    /*
+     * Warms up and measures one stream from memory, printing a line of
+     * results. Without a boundary, parts without Content-Length end at the
+     * EOI.
+     */
+    private void measure(String name, final byte[] stream,
+            final byte[] boundary) throws IOException {
+        measure(name, stream.length, new Opener() {
+            @Override
+            public MjpegFrameScanner open() {
+                MjpegFrameScanner scanner = new MjpegFrameScanner(
+                        new ChunkedInputStream(stream, chunkSize),
+                        SCAN_CAPACITY);
+                scanner.setBoundary(boundary);
+                return scanner;
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+
+
+
+    /*
+     * Warms up and measures one stream read over a loopback socket.
+     * Every run is a new connection to the server.
+     */
+    private void measureLoopback(String name, byte[] stream, boolean chunked)
+            throws IOException {
+        final LoopbackServer server = new LoopbackServer(stream, chunked);
+        try {
+            measure(name, stream.length, new Opener() {
+                private MjpegStreamClient client;
+
+                @Override
+                public MjpegFrameScanner open() throws IOException {
+                    client = new MjpegStreamClient(server.getURL());
+                    client.setReceiveBufferSize(256 * 1024);
+                    client.connect();
+                    MjpegFrameScanner scanner = new MjpegFrameScanner(
+                            client, SCAN_CAPACITY);
+                    scanner.setBoundary(MultipartHeaderParser.parseBoundary(
+                            client.getContentType()));
+                    return scanner;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    client.close();
+                }
+            });
+        } finally {
+            server.close();
+        }
+    }
+
+
+
+    /*
+     * Measures the stream while recording every frame, then checks that
+     * the index matches the segment.
+     */
+    private void measureRecording(String name, byte[] stream)
+            throws IOException {
+        File dir = File.createTempFile("rcvbench", "");
+        dir.delete();
+        dir.mkdir();
+        recorder = new FrameRecorder(dir, "bench");
+        recorder.start();
+        try {
+            measure(name, stream, null);
+            recorder.stop();
+            recorder.awaitFinished(0);
+            if(recorder.getLastError() != null) throw recorder.getLastError();
+            System.out.println(String.format("%-28s written %d, dropped %d,"
+                    + " %.1f MB, index %s", "", recorder.getFramesWritten(),
+                    recorder.getDropped(), recorder.getBytesWritten() / 1e6,
+                    checkIndex(recorder) ? "ok" : "BAD"));
+            checkReplay(recorder);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            recorder.getSegmentFile().delete();
+            recorder.getIndexFile().delete();
+            dir.delete();
+            recorder = null;
+        }
+    }
+
+
+
+    /*
+     * Checks that every index record points at a JPEG in the segment, and
+     * that the records cover the whole segment in order.
+     */
+    private static boolean checkIndex(FrameRecorder r) throws IOException {
+        byte[] segment = StreamGenerator.readFile(r.getSegmentFile());
+        ByteBuffer index = ByteBuffer.wrap(
+                StreamGenerator.readFile(r.getIndexFile()));
+        if(index.getInt() != FrameRecorder.INDEX_MAGIC) return false;
+        if(index.getInt() != FrameRecorder.INDEX_VERSION) return false;
+        index.getLong();
+
+        long next = 0;
+        int lastTime = 0;
+        long records = 0;
+        while(index.remaining() >= FrameRecorder.INDEX_RECORD_LENGTH) {
+            long offset = index.getLong();
+            int length = index.getInt();
+            int time = index.getInt();
+            if(offset != next || time < lastTime) return false;
+            int o = (int) offset;
+            if(segment[o] != (byte) 0xFF || segment[o + 1] != (byte) 0xD8
+                    || segment[o + length - 2] != (byte) 0xFF
+                    || segment[o + length - 1] != (byte) 0xD9) {
+                return false;
+            }
+            next = offset + length;
+            lastTime = time;
+            records++;
+        }
+        return index.remaining() == 0 && next == segment.length
+                && records == r.getFramesWritten();
+    }
+
+
+
+    /*
+     * Plays the recording back unpaced, and checks that seeking by time
+     * finds the first frame of every time.
+     */
+    private void checkReplay(FrameRecorder r) throws IOException {
+        ReplaySource replay = new ReplaySource(r.getSegmentFile(),
+                r.getIndexFile());
+        try {
+            replay.setSpeed(ReplaySource.SPEED_UNLIMITED);
+            long bytes = 0;
+            int frames = 0;
+            long start = System.nanoTime();
+            for(int i = 0; i < replay.getFrameCount(); i++) {
+                FrameBuffer f = replay.readFrame(pool);
+                bytes += f.getLength();
+                frames++;
+                f.release();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            boolean seekOk = true;
+            for(int i = 0; i < replay.getFrameCount(); i++) {
+                int t = replay.getFrameTime(i);
+                int found = replay.indexOfTime(t);
+                if(replay.getFrameTime(found) != t
+                        || (found > 0 && replay.getFrameTime(found - 1) >= t)) {
+                    seekOk = false;
+                }
+            }
+            replay.seekToFrame(frames / 2);
+            replay.setStepping(true);
+            replay.step();
+            FrameBuffer f = replay.readFrame(pool);
+            f.release();
+            seekOk &= replay.getPosition() == frames / 2 + 1;
+
+            System.out.println(String.format("%-28s replay %d frames,"
+                    + " %.0f frames/s, %.0f MB/s, seek %s", "", frames,
+                    frames / seconds, bytes / seconds / 1e6,
+                    seekOk ? "ok" : "BAD"));
+        } finally {
+            replay.close();
+        }
+    }
+
+
+
+    /*
+     * Reads the stream over loopback through a StreamSupervisor, which
+     * reconnects every time the server ends the stream, and prints the
+     * time to recover.
+     */
+    private void measureRecovery(String name, byte[] stream)
+            throws IOException {
+        final LoopbackServer server = new LoopbackServer(stream, false);
+        StreamMetrics metrics = new StreamMetrics();
+        StreamSupervisor supervisor = new StreamSupervisor(
+                new StreamSupervisor.Connector() {
+            @Override
+            public FrameSource connect() throws IOException {
+                MjpegStreamClient client =
+                        new MjpegStreamClient(server.getURL());
+                client.connect();
+                return new MjpegFrameSource(client);
+            }
+        }, metrics);
+
+        try {
+            LatencyHistogram recovery = metrics.getRecovery();
+            while(recovery.getCount() < outages) {
+                supervisor.readFrame(pool).release();
+            }
+            System.out.println(String.format(
+                    "%-28s outages %d, recover p50 %.2f  p99 %.2f  max %.2f ms",
+                    name, metrics.getOutages(),
+                    recovery.getPercentile(0.5) / 1000.0,
+                    recovery.getPercentile(0.99) / 1000.0,
+                    recovery.getMax() / 1000.0));
+        } finally {
+            supervisor.close();
+            server.close();
+        }
+    }
+
+
+
+    /*
+     * Drives the control channel against a stand-in vehicle for a while,
+     * with input much faster than the tick, while another thread reads the
+     * stream over loopback as fast as it can. Prints the time from input to
+     * arrival at the vehicle, and the round trip time.
+     */
+    private void measureControl(String name, byte[] stream)
+            throws IOException {
+        VehicleServer vehicle = new VehicleServer();
+        final LoopbackServer server = new LoopbackServer(stream, false);
+        final boolean[] loading = { true };
+        Thread load = new Thread("Load") {
+            @Override
+            public void run() {
+                while(loading[0]) {
+                    try {
+                        MjpegStreamClient client =
+                                new MjpegStreamClient(server.getURL());
+                        client.connect();
+                        MjpegFrameSource source = new MjpegFrameSource(client);
+                        try {
+                            while(loading[0]) source.readFrame(pool).release();
+                        } finally {
+                            source.close();
+                        }
+                    } catch (IOException e) {
+                        // End of the stream, reads it again.
+                    }
+                }
+            }
+        };
+        load.start();
+
+        VehicleControl control = new VehicleControl("127.0.0.1",
+                vehicle.getPort());
+        control.setHeartbeat(20);
+        control.open();
+        Random random = new Random(42);
+        long inputs = 0;
+        long end = System.nanoTime() + controlSeconds * 1000000000L;
+        try {
+            while(System.nanoTime() < end) {
+                control.setDrive(random.nextFloat() * 2 - 1,
+                        random.nextFloat() * 2 - 1);
+                inputs++;
+                Thread.sleep(2);
+            }
+            control.close();
+            Thread.sleep(100);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            loading[0] = false;
+            server.close();
+            vehicle.close();
+        }
+
+        LatencyHistogram command = vehicle.getCommandLatency();
+        LatencyHistogram rtt = control.getRtt();
+        System.out.println(String.format("%-28s inputs %d, sent %d, taken %d,"
+                + " stale %d, stopped %b", name, inputs, control.getSent(),
+                vehicle.getDrives(), vehicle.getStale(),
+                vehicle.getThrottle() == 0 && vehicle.getSteering() == 0));
+        System.out.println(String.format("%-28s command p50 %.2f  p99 %.2f"
+                + "  max %.2f ms, rtt p50 %.2f  p99 %.2f  max %.2f ms,"
+                + " lost pings %d", "", command.getPercentile(0.5) / 1000.0,
+                command.getPercentile(0.99) / 1000.0,
+                command.getMax() / 1000.0, rtt.getPercentile(0.5) / 1000.0,
+                rtt.getPercentile(0.99) / 1000.0, rtt.getMax() / 1000.0,
+                control.getLostPings()));
+    }
+
+
+
+    /*
+     * Warms up and measures one stream, printing a line of results.
+     */
+    private void measure(String name, int streamLength, Opener opener)
+            throws IOException {
+        Run warm = new Run(null);
+        for(int i = 0; i < warmups; i++) parse(opener, warm);
+
+        // Sized from a warm up run, so the latencies are not allocated
+        // while measuring.
+        int perRun = Math.max(1, warmups > 0 ? warm.frames / warmups : 0);
+        Run run = new Run(new long[(perRun + 1) * iterations]);
+        for(int i = 0; i < iterations; i++) parse(opener, run);
+
+        long[] lat = Arrays.copyOf(run.latencies, run.frames);
+        Arrays.sort(lat);
+        double seconds = run.nanos / 1e9;
+        System.out.println(String.format(
+                "%-28s %7d %9.1f %8.1f %9d %10.1f %8.1f %8.1f %8.1f %8.1f %7d"
+                + " %6d",
+                name, run.frames / iterations,
+                run.frames / seconds,
+                (streamLength * (double) iterations) / seconds / 1e6,
+                run.frames > 0 ? run.allocated / run.frames : 0,
+                run.allocated / seconds / 1e6,
+                percentile(lat, 0.50) / 1e3, percentile(lat, 0.90) / 1e3,
+                percentile(lat, 0.99) / 1e3, percentile(lat, 1.0) / 1e3,
+                run.rejects / iterations, run.errors / iterations));
+    }
+
+
+
+    /*
+     * Parses the whole stream once the way MjpegFrameSource does, adding
+     * to the run totals. Latency of a frame is the time to scan it out of
+     * the stream and copy it to a pooled buffer, plus decode if enabled.
+     */
+    private void parse(Opener opener, Run run) throws IOException {
+        MjpegFrameScanner scanner = opener.open();
+
+        long allocStart = allocatedBytes();
+        long start = System.nanoTime();
+        while(true) {
+            long t0 = System.nanoTime();
+            try {
+                if(!scanner.nextFrame()) break;
+            } catch (IOException e) {
+                run.errors++;
+                break;
+            }
+            run.rejects += scanner.getFrameRejects();
+
+            FrameBuffer frame = pool.acquire(scanner.getFrameLength());
+            frame.put(scanner.getFrameBuffer(), scanner.getFrameOffset(),
+                    scanner.getFrameLength());
+            if(decode && !decode(frame)) run.errors++;
+            if(recorder != null) {
+                frame.setTimestampNanos(t0);
+                recorder.record(frame);
+            }
+            frame.release();
+
+            long t1 = System.nanoTime();
+            if(run.latencies != null && run.frames < run.latencies.length) {
+                run.latencies[run.frames] = t1 - t0;
+            }
+            run.frames++;
+        }
+        run.nanos += System.nanoTime() - start;
+        run.allocated += allocatedBytes() - allocStart;
+        opener.close();
+    }
+
+
+
+    /*
+     * Decodes the frame with ImageIO, returns false if it is not a valid
+     * JPEG.
+     */
+    private static boolean decode(FrameBuffer frame) {
+        try {
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(
+                    frame.getData(), 0, frame.getLength()));
+            return image != null;
+        } catch (IOException e) {
+            return false;
+        } catch (RuntimeException e) {
+            // ImageIO throws on some broken JPEGs.
+            return false;
+        }
+    }
+
+
+
+    /*
+     * Bytes allocated by this thread so far, 0 if not supported.
+     */
+    private long allocatedBytes() {
+        if(threads == null) return 0;
+        return threads.getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+    }
+
+
+
+    /*
+     * Value at the given share of the sorted array.
+     */
+    private static long percentile(long[] sorted, double p) {
+        if(sorted.length == 0) return 0;
+        int i = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+    }
+
+
+
+    private static int parseInt(String s) {
+        return Integer.parseInt(s.trim());
+    }
+
+
+
+    /*
+     * Opens a scanner on a stream for every run.
+     */
+    private interface Opener {
+        MjpegFrameScanner open() throws IOException;
+        void close() throws IOException;
+    }
+
+
+
+    /*
+     * Totals of the runs of one stream.
+     */
+    private static class Run {
+        final long[] latencies;
+        int frames;
+        int rejects;
+        int errors;
+        long nanos;
+        long allocated;
+
+        Run(long[] latencies) {
+            this.latencies = latencies;
+        }
+    }
+}
@@ -0,0 +1,537 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvbench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import no.haitech.rcvclient.MjpegFrameScanner;
+import no.haitech.rcvclient.MultipartHeaderParser;
+
+/**
+ * Small MJPEG camera server for load and soak testing the client.
+ * Serves multipart/x-mixed-replace streams of synthetic or recorded
+ * frames to any number of clients, each paced on its own thread, with
+ * optional jitter, a bandwidth cap per client, parts with or without
+ * Content-Length, chunked transfer encoding and corrupted frames.
+ * <p>
+ * Every part carries the time its frame was due, as the capture time, in
+ * an X-Timestamp header, and the response head the time it was sent, so
+ * the client can measure the glass-to-glass latency. With {@code -o} the
+ * server clock is set off from the wall clock, to check that the client
+ * finds the offset.
+ * <p>
+ * Clients may ask for another frame size, rate or compression in the
+ * query string, like the IP cameras:
+ * {@code /video.mjpg?resolution=1280x720&fps=60&compression=30}. The
+ * compression is from 0 to 100, for a JPEG quality of 1 to 0.
+ * <p>
+ * Run it with {@code ant server -Dserver.args="..."}, and point the
+ * client camera_url at it.
+ *
+ * @author Thomas Le
+ * @see StreamGenerator
+ */
+public class MjpegServer {
+    private final static String USAGE =
+            "usage: MjpegServer [options]\n"
+            + "  -p PORT         port to listen on (default 8080)\n"
+            + "  -a ADDRESS      address to listen on (default all)\n"
+            + "  -r WxH          frame size (default 640x480)\n"
+            + "  -f FPS          frames per second, 0 for no pacing"
+            + " (default 30)\n"
+            + "  -n FRAMES       number of distinct frames (default 60)\n"
+            + "  -q MIN[,MAX]    JPEG quality from 0 to 1, going from MIN to"
+            + " MAX\n"
+            + "                  over the frames (default 0.8)\n"
+            + "  -h VARIANT      part headers: length, none or mixed"
+            + " (default length)\n"
+            + "  -t              chunked transfer encoding\n"
+            + "  -j MS           random jitter of every frame, up to MS"
+            + " (default 0)\n"
+            + "  -B KBPS         bandwidth cap per client in kB/s"
+            + " (default none)\n"
+            + "  -x RATE         share of frames corrupted (default 0)\n"
+            + "  -m FILE         serve the frames of a recording or"
+            + " captured stream\n"
+            + "  -o MS           offset of the server clock from the wall"
+            + " clock (default 0)\n"
+            + "  -d SECONDS      stop after this long (default never)\n";
+
+    private final static String CRLF = "\r\n";
+    private final static int WRITE_SLICE = 16 * 1024;
+    private final static long NANOS_PER_SECOND = 1000000000L;
+    private final static long NANOS_PER_MILLI = 1000000L;
+
+    // Options
+    private int port = 8080;
+    private String address = null;
+    private int width = 640;
+    private int height = 480;
+    private int fps = 30;
+    private int frameCount = 60;
+    private float minQuality = 0.8f;
+    private float maxQuality = 0.8f;
+    private String headers = "length";
+    private boolean chunked = false;
+    private int jitterMs = 0;
+    private int bandwidthKBps = 0;
+    private double corruptRate = 0;
+    private File recording = null;
+    private int clockOffsetMs = 0;
+    private int durationSeconds = 0;
+
+    private final Map<String, List<byte[]>> frameSets =
+            new HashMap<String, List<byte[]>>();
+    private final AtomicInteger clients = new AtomicInteger();
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final long clockBaseMicros = System.currentTimeMillis() * 1000L;
+    private final long clockBaseNanos = System.nanoTime();
+    private ServerSocket server;
+
+
+
+    /**
+     * Runs the server.
+     * @param args
+     *        command line options, see {@link #USAGE}.
+     */
+    public static void main(String[] args) throws Exception {
+        MjpegServer s = new MjpegServer();
+        if(!s.parseArgs(args)) {
+            System.err.print(USAGE);
+            System.exit(2);
+        }
+        s.run();
+    }
+
+
+
+    /*
+     * Reads the options. Returns false if they are not valid.
+     */
+    private boolean parseArgs(String[] args) {
+        try {
+            for(int i = 0; i < args.length; i++) {
+                String a = args[i];
+                if(a.equals("-p")) port = parseInt(args[++i]);
+                else if(a.equals("-a")) address = args[++i];
+                else if(a.equals("-r")) {
+                    int[] wh = parseSize(args[++i]);
+                    width = wh[0];
+                    height = wh[1];
+                }
+                else if(a.equals("-f")) fps = parseInt(args[++i]);
+                else if(a.equals("-n")) frameCount = parseInt(args[++i]);
+                else if(a.equals("-q")) {
+                    String[] q = args[++i].split(",");
+                    minQuality = Float.parseFloat(q[0]);
+                    maxQuality = q.length > 1
+                            ? Float.parseFloat(q[1]) : minQuality;
+                }
+                else if(a.equals("-h")) headers = args[++i];
+                else if(a.equals("-t")) chunked = true;
+                else if(a.equals("-j")) jitterMs = parseInt(args[++i]);
+                else if(a.equals("-B")) bandwidthKBps = parseInt(args[++i]);
+                else if(a.equals("-x")) {
+                    corruptRate = Double.parseDouble(args[++i]);
+                }
+                else if(a.equals("-m")) recording = new File(args[++i]);
+                else if(a.equals("-o")) clockOffsetMs = parseInt(args[++i]);
+                else if(a.equals("-d")) durationSeconds = parseInt(args[++i]);
+                else return false;
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return false;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return headers.equals("length") || headers.equals("none")
+                || headers.equals("mixed");
+    }
+
+
+
+    /*
+     * Makes the default frames, then accepts clients until stopped.
+     */
+    private void run() throws IOException {
+        List<byte[]> frames = getFrames(width, height, minQuality,
+                maxQuality);
+        long total = 0;
+        for(byte[] f : frames) total += f.length;
+        System.out.println(String.format("%d frames, %.1f kB average, %s"
+                + " fps, headers %s%s, jitter %d ms, cap %s, corrupt %.2f",
+                frames.size(), total / 1024.0 / frames.size(),
+                fps > 0 ? String.valueOf(fps) : "unpaced", headers,
+                chunked ? ", chunked" : "", jitterMs, bandwidthKBps > 0
+                ? bandwidthKBps + " kB/s" : "none", corruptRate));
+
+        server = new ServerSocket(port, 16, address == null
+                ? null : InetAddress.getByName(address));
+        System.out.println("listening on " + server.getLocalSocketAddress());
+        startReporter();
+
+        while(!server.isClosed()) {
+            Socket s;
+            try {
+                s = server.accept();
+            } catch (IOException e) {
+                break;
+            }
+            new ClientThread(s).start();
+        }
+    }
+
+
+
+    /*
+     * Starts the thread printing the load once a second, and stopping the
+     * server after the duration.
+     */
+    private void startReporter() {
+        Thread t = new Thread("Reporter") {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                long lastFrames = 0;
+                long lastBytes = 0;
+                while(true) {
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long frames = framesSent.get();
+                    long bytes = bytesSent.get();
+                    long seconds = (System.nanoTime() - start)
+                            / NANOS_PER_SECOND;
+                    System.out.println(String.format("%5d s  clients %d"
+                            + "  %d frames/s  %.2f MB/s", seconds,
+                            clients.get(), frames - lastFrames,
+                            (bytes - lastBytes) / 1e6));
+                    lastFrames = frames;
+                    lastBytes = bytes;
+                    if(durationSeconds > 0 && seconds >= durationSeconds) {
+                        try {
+                            server.close();
+                        } catch (IOException e) {
+                            // Stopping anyway.
+                        }
+                        System.exit(0);
+                    }
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+
+
+    /*
+     * Gets the frames of a size and quality, made on first use and then
+     * kept. A recording is served as it is.
+     */
+    private synchronized List<byte[]> getFrames(int w, int h, float qMin,
+            float qMax) throws IOException {
+        String key = recording != null ? "recording"
+                : w + "x" + h + "/" + qMin + "," + qMax;
+        List<byte[]> frames = frameSets.get(key);
+        if(frames == null) {
+            if(recording != null) {
+                frames = readFrames(recording);
+            } else {
+                frames = new StreamGenerator(42).makeFrames(w, h,
+                        frameCount, qMin, qMax);
+            }
+            if(frames.isEmpty()) throw new IOException("No frames");
+            frameSets.put(key, frames);
+        }
+        return frames;
+    }
+
+
+
+    /*
+     * Reads the JPEG frames of a recording, or of a captured stream.
+     */
+    private static List<byte[]> readFrames(File file) throws IOException {
+        List<byte[]> frames = new ArrayList<byte[]>();
+        InputStream in = new FileInputStream(file);
+        try {
+            MjpegFrameScanner scanner = new MjpegFrameScanner(in,
+                    8 * 1024 * 1024);
+            while(scanner.nextFrame()) {
+                byte[] f = new byte[scanner.getFrameLength()];
+                System.arraycopy(scanner.getFrameBuffer(),
+                        scanner.getFrameOffset(), f, 0, f.length);
+                frames.add(f);
+            }
+        } finally {
+            in.close();
+        }
+        return frames;
+    }
+
+
+
+    /*
+     * Thread serving the stream to one client.
+     */
+    private class ClientThread extends Thread {
+        private final Socket socket;
+        private final Random random;
+        private OutputStream out;
+        private long capStartNanos;
+        private long capBytes;
+
+
+
+        /**
+         * Constructor
+         * @param socket
+         *        the accepted connection.
+         */
+        public ClientThread(Socket socket) {
+            super("Client " + socket.getRemoteSocketAddress());
+            this.socket = socket;
+            random = new Random();
+        }
+
+
+
+        @Override
+        public void run() {
+            clients.incrementAndGet();
+            try {
+                socket.setTcpNoDelay(true);
+                String query = readRequest(socket.getInputStream());
+                int w = width;
+                int h = height;
+                int rate = fps;
+                float qMin = minQuality;
+                float qMax = maxQuality;
+                String resolution = getParameter(query, "resolution");
+                if(resolution != null) {
+                    int[] wh = parseSize(resolution);
+                    w = wh[0];
+                    h = wh[1];
+                }
+                String f = getParameter(query, "fps");
+                if(f != null) rate = parseInt(f);
+                String c = getParameter(query, "compression");
+                if(c != null) {
+                    qMin = 1 - Math.max(0, Math.min(100, parseInt(c)))
+                            / 100f;
+                    qMax = qMin;
+                }
+                serve(getFrames(w, h, qMin, qMax), rate);
+            } catch (IOException e) {
+                // Client gone.
+            } catch (RuntimeException e) {
+                // Bad query.
+            } finally {
+                clients.decrementAndGet();
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Closing anyway.
+                }
+            }
+        }
+
+
+
+        /*
+         * Writes the response head, then the frames until the client goes.
+         */
+        private void serve(List<byte[]> frames, int rate) throws IOException {
+            out = socket.getOutputStream();
+            StringBuilder head = new StringBuilder();
+            head.append("HTTP/1.1 200 OK").append(CRLF);
+            head.append("Content-Type: multipart/x-mixed-replace; boundary=")
+                    .append(StreamGenerator.BOUNDARY).append(CRLF);
+            head.append("Cache-Control: no-cache").append(CRLF);
+            head.append(MultipartHeaderParser.TIMESTAMP_HEADER).append(": ")
+                    .append(StreamGenerator.formatTimestamp(
+                            serverMicros(System.nanoTime()))).append(CRLF);
+            if(chunked) head.append("Transfer-Encoding: chunked").append(CRLF);
+            head.append("Connection: close").append(CRLF).append(CRLF);
+            out.write(head.toString().getBytes("ISO-8859-1"));
+            out.flush();
+
+            StreamGenerator generator = new StreamGenerator(random.nextLong());
+            long period = rate > 0 ? NANOS_PER_SECOND / rate : 0;
+            long start = System.nanoTime();
+            capStartNanos = start;
+            capBytes = 0;
+            for(long n = 0; ; n++) {
+                long captured = System.nanoTime();
+                if(period > 0) {
+                    // A client that fell behind, blocking the writes, gets
+                    // the next frame on time instead of a burst of late
+                    // frames, like from a camera.
+                    long late = System.nanoTime() - (start + n * period);
+                    if(late > period) start += late;
+                    long due = start + n * period;
+                    // Captured on time, the jitter is delay after capture.
+                    captured = due;
+                    if(jitterMs > 0) {
+                        due += (long) (random.nextDouble() * jitterMs
+                                * NANOS_PER_MILLI);
+                    }
+                    sleepUntil(due);
+                }
+
+                byte[] frame = frames.get((int) (n % frames.size()));
+                boolean length = headers.equals("length")
+                        || (headers.equals("mixed") && random.nextBoolean());
+                byte[] part = generator.makePart(frame, length, corruptRate,
+                        serverMicros(captured));
+                write(part);
+                out.flush();
+                framesSent.incrementAndGet();
+            }
+        }
+
+
+
+        /*
+         * Writes the bytes in slices, holding them back to the bandwidth
+         * cap, and in a chunk if chunked.
+         */
+        private void write(byte[] b) throws IOException {
+            if(chunked) {
+                out.write((Integer.toHexString(b.length) + CRLF)
+                        .getBytes("ISO-8859-1"));
+            }
+            for(int i = 0; i < b.length; i += WRITE_SLICE) {
+                int n = Math.min(WRITE_SLICE, b.length - i);
+                if(bandwidthKBps > 0) {
+                    sleepUntil(capStartNanos + capBytes * NANOS_PER_SECOND
+                            / (bandwidthKBps * 1024L));
+                    capBytes += n;
+                }
+                out.write(b, i, n);
+                bytesSent.addAndGet(n);
+            }
+            if(chunked) out.write(CRLF.getBytes("ISO-8859-1"));
+        }
+    }
+
+
+
+    /*
+     * Turns a System.nanoTime() into the time of the server clock, in
+     * microseconds since the epoch.
+     */
+    private long serverMicros(long nanos) {
+        return clockBaseMicros + (nanos - clockBaseNanos) / 1000L
+                + clockOffsetMs * 1000L;
+    }
+
+
+
+    /*
+     * Reads the request head, and returns the query string of the request
+     * line, or an empty string.
+     */
+    private static String readRequest(InputStream in) throws IOException {
+        BufferedReader r = new BufferedReader(new InputStreamReader(in,
+                "ISO-8859-1"));
+        String line = r.readLine();
+        if(line == null) throw new IOException("No request");
+        String first = line;
+        while(line != null && line.length() > 0) line = r.readLine();
+
+        String[] parts = first.split(" ");
+        if(parts.length < 2) return "";
+        int q = parts[1].indexOf('?');
+        return q < 0 ? "" : parts[1].substring(q + 1);
+    }
+
+
+
+    /*
+     * Gets a parameter from a query string, or null.
+     */
+    private static String getParameter(String query, String name) {
+        for(String p : query.split("&")) {
+            int eq = p.indexOf('=');
+            if(eq > 0 && p.substring(0, eq).equals(name)) {
+                return p.substring(eq + 1);
+            }
+        }
+        return null;
+    }
+
+
+
+    /*
+     * Sleeps until System.nanoTime() reaches the given time.
+     */
+    private static void sleepUntil(long nanos) throws IOException {
+        long left;
+        while((left = nanos - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(left / NANOS_PER_MILLI,
+                        (int) (left % NANOS_PER_MILLI));
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            }
+        }
+    }
+
+
+
+    /*
+     * Parses a frame size like 640x480.
+     */
+    private static int[] parseSize(String s) {
+        String[] wh = s.trim().split("x");
+        if(wh.length != 2) throw new NumberFormatException(s);
+        return new int[] { parseInt(wh[0]), parseInt(wh[1]) };
+    }
+
+
+
+    /*
+     * Parses a number, ignoring white space.
+     */
+    private static int parseInt(String s) {
+        return Integer.parseInt(s.trim());
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvbench;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import no.haitech.rcvclient.MultipartHeaderParser;
+
+/**
+ * Makes multipart MJPEG byte streams for the benchmarks, from synthetic
+ * JPEG frames or from streams recorded to disk.
+ * A recorded stream is the raw body of a camera response, for example
+ * saved with {@code curl -o capture.mjpg <url>}.
+ *
+ * @author Thomas Le
+ * @see MjpegBenchmark
+ */
+public class StreamGenerator {
+    /**
+     * Multipart boundary used in the generated streams.
+     */
+    public final static String BOUNDARY = "myboundary";
+
+    private final static String CRLF = "\r\n";
+
+    private final Random random;
+
+
+
+    /**
+     * Constructor
+     * @param seed
+     *        seed for the frame content and corruption, so runs can be
+     *        repeated.
+     */
+    public StreamGenerator(long seed) {
+        random = new Random(seed);
+    }
+
+
+
+    /**
+     * Encodes synthetic camera frames: a gradient with noise and a moving
+     * block, so the JPEGs have sizes like real camera frames.
+     *
+     * @param width
+     *        frame width in pixels.
+     * @param height
+     *        frame height in pixels.
+     * @param count
+     *        number of frames.
+     * @param quality
+     *        JPEG quality from 0 to 1.
+     * @return the JPEG frames.
+     * @throws IOException if the JPEG encoder fails.
+     */
+    public List<byte[]> makeFrames(int width, int height, int count,
+            float quality) throws IOException {
+        return makeFrames(width, height, count, quality, quality);
+    }
+
+
+
+    /**
+     * Encodes synthetic camera frames with the quality going from min to
+     * max over the frames, so the frame sizes vary.
+     *
+     * @param width
+     *        frame width in pixels.
+     * @param height
+     *        frame height in pixels.
+     * @param count
+     *        number of frames.
+     * @param minQuality
+     *        JPEG quality of the first frame, from 0 to 1.
+     * @param maxQuality
+     *        JPEG quality of the last frame, from 0 to 1.
+     * @return the JPEG frames.
+     * @throws IOException if the JPEG encoder fails.
+     */
+    public List<byte[]> makeFrames(int width, int height, int count,
+            float minQuality, float maxQuality) throws IOException {
+        List<byte[]> frames = new ArrayList<byte[]>(count);
+        BufferedImage image = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_RGB);
+        int[] row = new int[width];
+
+        for(int n = 0; n < count; n++) {
+            for(int y = 0; y < height; y++) {
+                for(int x = 0; x < width; x++) {
+                    int noise = random.nextInt(24);
+                    int r = (x * 255 / width + noise) & 0xFF;
+                    int g = (y * 255 / height + noise) & 0xFF;
+                    int b = ((x + y + n * 4) & 0x7F) + noise;
+                    row[x] = (r << 16) | (g << 8) | b;
+                }
+                image.setRGB(0, y, width, 1, row, 0, width);
+            }
+            Graphics2D g = image.createGraphics();
+            g.setColor(Color.WHITE);
+            int size = Math.max(8, height / 6);
+            g.fillRect((n * 8) % Math.max(1, width - size), height / 3,
+                    size, size);
+            g.dispose();
+
+            float quality = count > 1 ? minQuality
+                    + (maxQuality - minQuality) * n / (count - 1) : minQuality;
+            frames.add(encode(image, quality));
+        }
+        return frames;
+    }
+
+
+
+    /**
+     * Builds a multipart/x-mixed-replace body from the frames.
+     *
+     * @param frames
+     *        the JPEG frames.
+     * @param contentLength
+     *        true to send a Content-Length header in every part.
+     * @param corruptRate
+     *        share of frames that are corrupted, from 0 to 1. A corrupted
+     *        frame has flipped bytes, is cut short, or has garbage in front.
+     * @return the stream bytes.
+     */
+    public byte[] makeStream(List<byte[]> frames, boolean contentLength,
+            double corruptRate) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for(byte[] frame : frames) {
+            byte[] part = makePart(frame, contentLength, corruptRate);
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+
+
+    /**
+     * Builds one part of a multipart/x-mixed-replace body: the boundary
+     * line, the part headers, the frame and the line end.
+     *
+     * @param frame
+     *        the JPEG frame.
+     * @param contentLength
+     *        true to send a Content-Length header.
+     * @param corruptRate
+     *        chance that the frame is corrupted, from 0 to 1. A corrupted
+     *        frame has flipped bytes, is cut short, or has garbage in front.
+     * @return the part bytes.
+     */
+    public byte[] makePart(byte[] frame, boolean contentLength,
+            double corruptRate) {
+        return makePart(frame, contentLength, corruptRate, -1);
+    }
+
+
+
+    /**
+     * Builds one part of a multipart/x-mixed-replace body, with the
+     * capture time of the frame in an X-Timestamp header.
+     *
+     * @param frame
+     *        the JPEG frame.
+     * @param contentLength
+     *        true to send a Content-Length header.
+     * @param corruptRate
+     *        chance that the frame is corrupted, from 0 to 1.
+     * @param timestampMicros
+     *        capture time in microseconds since the epoch, -1 for no
+     *        timestamp header.
+     * @return the part bytes.
+     * @see #formatTimestamp(long)
+     */
+    public byte[] makePart(byte[] frame, boolean contentLength,
+            double corruptRate, long timestampMicros) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                frame.length + 128);
+        byte[] part = frame;
+        if(random.nextDouble() < corruptRate) {
+            part = frame.clone();
+            switch(random.nextInt(3)) {
+            case 0:
+                // Flipped bytes in the entropy coded data.
+                for(int i = 0; i < 16; i++) {
+                    int at = part.length / 2 + random.nextInt(
+                            Math.max(1, part.length / 2 - 2));
+                    part[at] ^= (byte) (1 + random.nextInt(255));
+                }
+                break;
+            case 1:
+                // Cut short, the end of image marker is lost.
+                byte[] cut = new byte[part.length / 2];
+                System.arraycopy(part, 0, cut, 0, cut.length);
+                part = cut;
+                break;
+            default:
+                // Garbage in front of the part.
+                byte[] junk = new byte[64 + random.nextInt(512)];
+                random.nextBytes(junk);
+                out.write(junk, 0, junk.length);
+                break;
+            }
+        }
+
+        StringBuilder header = new StringBuilder();
+        header.append("--").append(BOUNDARY).append(CRLF);
+        header.append("Content-Type: image/jpeg").append(CRLF);
+        if(contentLength) {
+            header.append("Content-Length: ").append(part.length)
+                    .append(CRLF);
+        }
+        if(timestampMicros >= 0) {
+            header.append(MultipartHeaderParser.TIMESTAMP_HEADER)
+                    .append(": ").append(formatTimestamp(timestampMicros))
+                    .append(CRLF);
+        }
+        header.append(CRLF);
+        byte[] h = ascii(header.toString());
+        out.write(h, 0, h.length);
+        out.write(part, 0, part.length);
+        out.write('\r');
+        out.write('\n');
+        return out.toByteArray();
+    }
+
+
+
+    /**
+     * Formats a time as an X-Timestamp value, seconds since the epoch with
+     * six decimals, like "1381234567.125000".
+     * @param micros
+     *        time in microseconds since the epoch.
+     * @return the header value.
+     */
+    public static String formatTimestamp(long micros) {
+        return String.format("%d.%06d", micros / 1000000L, micros % 1000000L);
+    }
+
+
+
+    /**
+     * Reads a recorded stream from disk.
+     * @param file
+     *        the recorded stream.
+     * @return the stream bytes.
+     * @throws IOException if the file can not be read.
+     */
+    public static byte[] readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] b = new byte[64 * 1024];
+            int n;
+            while((n = in.read(b)) > 0) out.write(b, 0, n);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+
+
+    /*
+     * Encodes the image as a baseline JPEG with the given quality.
+     */
+    private static byte[] encode(BufferedImage image, float quality)
+            throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg")
+                .next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageOutputStream ios = ImageIO.createImageOutputStream(out);
+        try {
+            writer.setOutput(ios);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            ios.close();
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+
+
+    /*
+     * Bytes of an ASCII string.
+     */
+    private static byte[] ascii(String s) {
+        byte[] b = new byte[s.length()];
+        for(int i = 0; i < b.length; i++) b[i] = (byte) s.charAt(i);
+        return b;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvbench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import no.haitech.rcvclient.ControlProtocol;
+import no.haitech.rcvclient.LatencyHistogram;
+
+/**
+ * Stand-in vehicle on the loopback interface, for running the control
+ * channel without the vehicle.
+ * Takes drive packets newer than the last one and drops stale ones,
+ * answers pings, and records the time from each new input to its arrival.
+ * Client and server share the clock, so that time is exact.
+ *
+ * @author Thomas Le
+ * @see MjpegBenchmark
+ */
+public class VehicleServer implements Runnable {
+    private final DatagramChannel channel;
+    private final Thread thread;
+    private final LatencyHistogram commandLatency;
+    private volatile boolean isRunning;
+    private volatile float steering;
+    private volatile float throttle;
+    private volatile long drives;
+    private volatile long stale;
+    private volatile long invalid;
+    private boolean hasDrive;
+    private int lastSequence;
+    private int lastTimestamp;
+
+
+
+    /**
+     * Constructor, starts the server on a free port.
+     * @throws IOException if the socket can not be opened.
+     */
+    public VehicleServer() throws IOException {
+        channel = DatagramChannel.open();
+        channel.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        commandLatency = new LatencyHistogram();
+        isRunning = true;
+        thread = new Thread(this, "VehicleServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+
+    @Override
+    public void run() {
+        ByteBuffer b = ByteBuffer.allocate(ControlProtocol.PACKET_LENGTH + 1);
+        while(isRunning) {
+            b.clear();
+            SocketAddress from;
+            try {
+                from = channel.receive(b);
+            } catch (IOException e) {
+                return;
+            }
+            b.flip();
+            if(!ControlProtocol.isValid(b)) {
+                invalid++;
+                continue;
+            }
+
+            switch(ControlProtocol.getType(b)) {
+            case ControlProtocol.TYPE_DRIVE:
+                drive(b);
+                break;
+            case ControlProtocol.TYPE_PING:
+                b.put(1, ControlProtocol.TYPE_PONG);
+                try {
+                    channel.send(b, from);
+                } catch (IOException e) {
+                    return;
+                }
+                break;
+            }
+        }
+    }
+
+
+
+    /**
+     * Stops the server.
+     */
+    public void close() throws IOException {
+        isRunning = false;
+        channel.close();
+    }
+
+
+
+    /**
+     * Accessor method
+     * @return UDP port of the server.
+     */
+    public int getPort() { return channel.socket().getLocalPort(); }
+
+
+
+    /**
+     * Accessor method
+     * @return histogram of the time from an input to its arrival.
+     */
+    public LatencyHistogram getCommandLatency() { return commandLatency; }
+
+
+
+    /**
+     * Accessor method
+     * @return number of drive packets taken.
+     */
+    public long getDrives() { return drives; }
+
+
+
+    /**
+     * Accessor method
+     * @return number of drive packets dropped as stale.
+     */
+    public long getStale() { return stale; }
+
+
+
+    /**
+     * Accessor method
+     * @return number of packets not of the protocol.
+     */
+    public long getInvalid() { return invalid; }
+
+
+
+    /**
+     * Accessor method
+     * @return the last steering taken.
+     */
+    public float getSteering() { return steering; }
+
+
+
+    /**
+     * Accessor method
+     * @return the last throttle taken.
+     */
+    public float getThrottle() { return throttle; }
+
+
+
+    /*
+     * Takes a drive packet, unless a newer one was taken already.
+     */
+    private void drive(ByteBuffer b) {
+        int sequence = ControlProtocol.getSequence(b);
+        if(hasDrive && !ControlProtocol.isNewer(sequence, lastSequence)) {
+            stale++;
+            return;
+        }
+        hasDrive = true;
+        lastSequence = sequence;
+        steering = ControlProtocol.getSteering(b);
+        throttle = ControlProtocol.getThrottle(b);
+        drives++;
+
+        // Heartbeats repeat the last input, only new input is timed.
+        int timestamp = ControlProtocol.getTimestamp(b);
+        if(timestamp != lastTimestamp) {
+            commandLatency.record(ControlProtocol.nanosSince(timestamp));
+            lastTimestamp = timestamp;
+        }
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvclient;
+
+import java.io.IOException;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Build;
+
+/**
+ * Decodes JPEG frames into Bitmaps, reusing a previous Bitmap through
+ * {@link BitmapFactory.Options#inBitmap} so that steady state decoding does
+ * not allocate a new Bitmap per frame.
+ * A hit is a decode into the given Bitmap, a miss is a decode that had to
+ * allocate a new one. Not thread safe, use one decoder per thread.
+ * <p>
+ * With a target size set, frames are subsampled while decoding to the
+ * smallest power of two fraction that still covers the target, reading
+ * the image size from the SOF marker first. An 800x600 stream shown in a
+ * 400x300 view then decodes a quarter of the pixels.
+ * <p>
+ * With a region set, like when zoomed in, only that part of a frame is
+ * decoded, with a {@link BitmapRegionDecoder}. The region is widened to
+ * whole MCUs (minimum coded units, the 16x16 pixel blocks of a JPEG), so
+ * no block is decoded twice or in part, and the part of the Bitmap that
+ * is the region itself is given by {@link #getCrop()}. The IDCT and color
+ * conversion then scale with the region, and only the entropy decoding
+ * of the blocks before it still runs for the whole frame.
+ * <p>
+ * A region decoder parses the headers of its JPEG and holds native state,
+ * so it is made once per frame content and kept: a frame with the same
+ * fingerprint, like the next frame of a still scene while panning, is
+ * decoded again by the same one. A frame that changed needs a new one.
+ *
+ * @author Thomas Le
+ * @see StreamPipeline
+ */
+public class BitmapDecoder
+        implements StreamPipeline.ImageDecoder<Bitmap> {
+    /*
+     * Size of the temporary decode storage, as used by BitmapFactory.
+     */
+    private final static int TEMP_STORAGE_LENGTH = 16 * 1024;
+
+    /*
+     * Size in pixels of the largest MCU, of a 4:2:0 subsampled JPEG.
+     */
+    private final static int MCU_SIZE = 16;
+
+    private final BitmapFactory.Options options;
+    private final Rect region;
+    private final Rect crop;
+    private long hits;
+    private long misses;
+    private StreamMetrics metrics;
+    private int targetWidth;
+    private int targetHeight;
+    private float regionLeft;
+    private float regionTop;
+    private float regionRight;
+    private float regionBottom;
+    private BitmapRegionDecoder regionDecoder;
+    private long regionFingerprint;
+
+
+
+    /**
+     * Constructor
+     */
+    public BitmapDecoder() {
+        options = new BitmapFactory.Options();
+        options.inMutable = true;
+        options.inTempStorage = new byte[TEMP_STORAGE_LENGTH];
+        region = new Rect();
+        crop = new Rect();
+        regionRight = 1;
+        regionBottom = 1;
+    }
+
+
+
+    /**
+     * Decodes a JPEG frame.
+     * @param data
+     *        array holding the frame.
+     * @param offset
+     *        offset of the frame in data.
+     * @param length
+     *        length of the frame in bytes.
+     * @param reuse
+     *        Bitmap to decode into, or null. Must not be drawn while
+     *        decoding.
+     * @return the decoded Bitmap, null if the frame could not be decoded.
+     * @see #getCrop()
+     */
+    public Bitmap decode(byte[] data, int offset, int length, Bitmap reuse) {
+        return decode(data, offset, length, reuse, 0);
+    }
+
+
+
+    /*
+     * Decodes a JPEG frame, with its fingerprint from FrameFingerprint,
+     * or 0 if unknown, to keep the region decoder for the same content.
+     */
+    private Bitmap decode(byte[] data, int offset, int length, Bitmap reuse,
+            long fingerprint) {
+        long size = JpegHeader.readSize(data, offset, length);
+        if(size >= 0 && hasRegion()) {
+            return decodeRegion(data, offset, length, size, reuse,
+                    fingerprint);
+        }
+        releaseRegionDecoder();
+
+        options.inSampleSize = size < 0 ? 1 : sampleSize(
+                JpegHeader.width(size), JpegHeader.height(size));
+        if(reuse != null && (reuse.isRecycled() || !reuse.isMutable())) {
+            reuse = null;
+        }
+        // Before KitKat inBitmap only works without subsampling.
+        if(options.inSampleSize > 1
+                && Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            reuse = null;
+        }
+        options.inBitmap = reuse;
+
+        Bitmap b;
+        try {
+            b = BitmapFactory.decodeByteArray(data, offset, length, options);
+        } catch (IllegalArgumentException e) {
+            // The frame size changed, the Bitmap can not be reused.
+            options.inBitmap = null;
+            b = BitmapFactory.decodeByteArray(data, offset, length, options);
+        }
+
+        if(b != null) {
+            counted(reuse != null && b == reuse);
+            crop.set(0, 0, b.getWidth(), b.getHeight());
+        }
+        options.inBitmap = null;
+        return b;
+    }
+
+
+
+    /*
+     * Decodes the region of a frame, widened to whole MCUs and samples.
+     */
+    private Bitmap decodeRegion(byte[] data, int offset, int length,
+            long size, Bitmap reuse, long fingerprint) {
+        int width = JpegHeader.width(size);
+        int height = JpegHeader.height(size);
+        int w = Math.round(width * (regionRight - regionLeft));
+        int h = Math.round(height * (regionBottom - regionTop));
+        w = Math.max(1, Math.min(w, width));
+        h = Math.max(1, Math.min(h, height));
+        int left = Math.max(0, Math.min(Math.round(width * regionLeft),
+                width - w));
+        int top = Math.max(0, Math.min(Math.round(height * regionTop),
+                height - h));
+        int sample = sampleSize(w, h);
+
+        // Whole MCUs, and a whole number of samples so the output size is
+        // exact and a Bitmap of that size can be decoded into.
+        int align = Math.max(MCU_SIZE, sample);
+        int l = left / align * align;
+        int t = top / align * align;
+        int r = Math.min((left + w + align - 1) / align * align, width);
+        int b = Math.min((top + h + align - 1) / align * align, height);
+        r = l + (r - l) / sample * sample;
+        b = t + (b - t) / sample * sample;
+        region.set(l, t, r, b);
+        int outWidth = (r - l) / sample;
+        int outHeight = (b - t) / sample;
+        crop.set((left - l) / sample, (top - t) / sample,
+                Math.min((left - l + w) / sample, outWidth),
+                Math.min((top - t + h) / sample, outHeight));
+
+        // The region decoder clips into a Bitmap of another size, so only
+        // one of the exact size is reused. Supported from Jelly Bean.
+        if(reuse != null && (reuse.isRecycled() || !reuse.isMutable()
+                || reuse.getWidth() != outWidth
+                || reuse.getHeight() != outHeight
+                || Build.VERSION.SDK_INT
+                        < Build.VERSION_CODES.JELLY_BEAN)) {
+            reuse = null;
+        }
+        options.inSampleSize = sample;
+        options.inBitmap = reuse;
+
+        Bitmap bitmap;
+        if(regionDecoder == null || fingerprint == 0
+                || fingerprint != regionFingerprint) {
+            releaseRegionDecoder();
+            try {
+                // Not shareable, the frame buffer goes back to its pool.
+                regionDecoder = BitmapRegionDecoder.newInstance(data, offset,
+                        length, false);
+            } catch (IOException e) {
+                // Not a JPEG the region decoder can read.
+                options.inBitmap = null;
+                return null;
+            }
+            regionFingerprint = fingerprint;
+        }
+        try {
+            bitmap = regionDecoder.decodeRegion(region, options);
+        } catch (IllegalArgumentException e) {
+            options.inBitmap = null;
+            bitmap = regionDecoder.decodeRegion(region, options);
+        }
+
+        if(bitmap != null) counted(reuse != null && bitmap == reuse);
+        options.inBitmap = null;
+        return bitmap;
+    }
+
+
+
+    /**
+     * Decodes a JPEG frame, see {@link #decode(byte[], int, int, Bitmap)}.
+     * @param frame
+     *        buffer holding the frame.
+     * @param reuse
+     *        Bitmap to decode into, or null.
+     * @return the decoded Bitmap, null if the frame could not be decoded.
+     */
+    @Override
+    public Bitmap decode(FrameBuffer frame, Bitmap reuse) {
+        return decode(frame.getData(), 0, frame.getLength(), reuse,
+                frame.getFingerprint());
+    }
+
+
+
+    /**
+     * Frees the native memory of the region decoder kept for the last
+     * frame, if any. Decoding after this makes a new one when needed.
+     */
+    public void releaseRegionDecoder() {
+        if(regionDecoder != null) {
+            regionDecoder.recycle();
+            regionDecoder = null;
+            regionFingerprint = 0;
+        }
+    }
+
+
+
+    /**
+     * Mutator method
+     * Sets the size the frames are shown at, frames are subsampled to no
+     * less than this size.
+     * @param width
+     *        target width in pixels, 0 to decode at full size.
+     * @param height
+     *        target height in pixels, 0 to decode at full size.
+     */
+    public void setTargetSize(int width, int height) {
+        targetWidth = width;
+        targetHeight = height;
+    }
+
+
+
+    /**
+     * Mutator method
+     * Sets the part of the frames to decode, as fractions of the frame
+     * size from 0 to 1. The whole frame, 0, 0, 1, 1, by default.
+     * @param left
+     *        left edge of the region.
+     * @param top
+     *        top edge of the region.
+     * @param right
+     *        right edge of the region.
+     * @param bottom
+     *        bottom edge of the region.
+     */
+    public void setRegion(float left, float top, float right,
+            float bottom) {
+        regionLeft = left;
+        regionTop = top;
+        regionRight = right;
+        regionBottom = bottom;
+    }
+
+
+
+    /**
+     * Mutator method
+     * @param m
+     *        metrics counting the hits and misses as reused and allocated
+     *        images, or null.
+     * @see StreamMetrics#imageDecoded(boolean)
+     */
+    public void setMetrics(StreamMetrics m) { metrics = m; }
+
+
+
+    /*
+     * Counts a decode as a hit or a miss.
+     */
+    private void counted(boolean hit) {
+        if(hit) hits++;
+        else misses++;
+        if(metrics != null) metrics.imageDecoded(hit);
+    }
+
+
+
+    /*
+     * Checks if a region smaller than the frame is set.
+     */
+    private boolean hasRegion() {
+        return regionLeft > 0 || regionTop > 0 || regionRight < 1
+                || regionBottom < 1;
+    }
+
+
+
+    /*
+     * Largest power of two subsampling that keeps an image of the given
+     * size at least as big as the target, 1 if there is no target.
+     */
+    private int sampleSize(int width, int height) {
+        if(targetWidth <= 0 || targetHeight <= 0) return 1;
+
+        int sample = 1;
+        while(width / (sample * 2) >= targetWidth
+                && height / (sample * 2) >= targetHeight) {
+            sample *= 2;
+        }
+        return sample;
+    }
+
+
+
+    /**
+     * Accessor method
+     * @return the part of the Bitmap of the last decode that is the region,
+     *         the whole Bitmap if there is no region. Changed by the next
+     *         decode.
+     */
+    public Rect getCrop() { return crop; }
+
+
+
+    /**
+     * Accessor method
+     * @return number of decodes into a reused Bitmap.
+     */
+    public long getHits() { return hits; }
+
+
+
+    /**
+     * Accessor method
+     * @return number of decodes that allocated a new Bitmap.
+     */
+    public long getMisses() { return misses; }
+}
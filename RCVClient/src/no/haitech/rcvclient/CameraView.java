@@ -27,27 +27,99 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.util.AttributeSet;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.util.Log;
+import android.view.Choreographer;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
+import android.view.WindowManager;
 
 /**
  * CameraView that extends SurfaceView (@see {@link SurfaceView}).
  * Make view screen for camera.
+ * <p>
+ * Reading and decoding of frames run in a {@link StreamPipeline}, with
+ * {@link BitmapDecoder} as its decoder, and drawing on a render thread of
+ * the view. A stalled network or a slow decode never holds the surface
+ * lock, and the display always shows the newest decoded frame.
+ * <p>
+ * Frames are decoded at about the size of the view and the surface is
+ * set to the decoded size, so the compositor does the final scaling
+ * instead of the decoder and drawBitmap.
+ * <p>
+ * With zoom enabled, a pinch zooms in on part of the camera image, a drag
+ * pans it and a double tap zooms back out. Only the visible part of each
+ * frame is then decoded, see {@link BitmapDecoder#setRegion}, so the
+ * decode costs less the further in it is zoomed.
+ * <p>
+ * Each view decodes on a {@link DecodePool} of its own, with one worker.
+ * Views of several cameras may share one pool instead, see
+ * {@link #setDecodePool(DecodePool, int)}, so the decode threads and frame
+ * buffers are bounded for all of them.
  * 
  * @author Thomas Le
  * @see VehicleActivity
+ * @see StreamPipeline
  * @see SurfaceView
  * @see SurfaceHolder.Callback
  */
 public class CameraView extends SurfaceView implements SurfaceHolder.Callback {
+    /*
+     * Display refresh rate used when the display does not report one.
+     */
+    private final static float DEFAULT_REFRESH_RATE = 60f;
+
+    /*
+     * Time between two updates of the overlay rates.
+     */
+    private final static long OVERLAY_RATE_NANOS = 1000000000L;
+
+    /*
+     * Text size of the overlay, in pixels.
+     */
+    private final static float OVERLAY_TEXT_SIZE = 18f;
+
+    /*
+     * Max zoom, as the frame size over the visible size.
+     */
+    private final static float MAX_ZOOM = 8f;
+
     private final String TAG = "CameraView";    
     private MjpegThread mThread;
-    private MjpegInputStream misSource;
     private SurfaceHolder surfaceHolder;
-    private Bitmap bitmap;
+    private Tile frame;
     private Paint paint;
-    private Rect screenSize;
+    private volatile Rect screenSize;
+    private FramePacer pacer;
+    
+    // Decode at view size
+    private volatile boolean decodeToView;
+    private volatile int viewWidth;
+    private volatile int viewHeight;
+    private volatile int frameWidth;
+    private volatile int frameHeight;
+    
+    // Zoom
+    private volatile Zoom zoom;
+    private boolean zoomEnabled;
+    private ScaleGestureDetector scaleDetector;
+    private GestureDetector gestureDetector;
+    
+    // Read and decode
+    private StreamPipeline<Tile> pipeline;
+    private BitmapDecoder decoder;
+    
+    // Instrumentation
+    private StreamMetrics metrics;
+    private volatile boolean overlayEnabled;
+    private Paint overlayPaint;
+    private long overlayRateNanos;
     
     
     
@@ -93,6 +165,24 @@ public class CameraView extends SurfaceView implements SurfaceHolder.Callback {
         surfaceHolder.addCallback(this);
         
         paint = new Paint();
+        pacer = new FramePacer(0);
+        decodeToView = true;
+        
+        zoom = new Zoom(1, 0.5f, 0.5f);
+        zoomEnabled = false;
+        scaleDetector = new ScaleGestureDetector(c, new ScaleListener());
+        gestureDetector = new GestureDetector(c, new PanListener());
+        
+        decoder = new BitmapDecoder();
+        pipeline = new StreamPipeline<Tile>(new ViewSizeDecoder(),
+                new PipelineRenderer());
+        
+        metrics = pipeline.getMetrics();
+        decoder.setMetrics(metrics);
+        overlayEnabled = false;
+        overlayPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        overlayPaint.setColor(Color.YELLOW);
+        overlayPaint.setTextSize(OVERLAY_TEXT_SIZE);
     }
     
     
@@ -100,30 +190,87 @@ public class CameraView extends SurfaceView implements SurfaceHolder.Callback {
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-        try {
-            if(canvas != null) {
-                // Sets background color;
+        if(canvas != null) {
+            /*
+             * Draws the latest decoded JPEG image, if there is one. It
+             * covers the whole surface, else sets background color.
+             */
+            if(frame != null) {
+                canvas.drawBitmap(frame.bitmap, frame.crop, screenSize, paint);
+            } else {
                 canvas.drawColor(Color.RED); 
-                /*
-                 * Check if the misSource still exist, then draw JPEG images.
-                 */
-                if(misSource != null) {
-                    bitmap = misSource.readMjpegFrame();
-                    canvas.drawBitmap(bitmap, null, screenSize, paint);
-                }
             }
-
-
-        } catch (IOException e) {
-            Log.d(TAG, "onDraw(): ", e);
+            if(overlayEnabled) drawOverlay(canvas);
+        }
+    }
+    
+    
+    
+    /*
+     * Draws the stream metrics in the top left corner.
+     */
+    private void drawOverlay(Canvas canvas) {
+        long now = System.nanoTime();
+        if(now - overlayRateNanos >= OVERLAY_RATE_NANOS) {
+            metrics.updateRates();
+            overlayRateNanos = now;
+        }
+        
+        float y = OVERLAY_TEXT_SIZE;
+        canvas.drawText(String.format("%.1f fps  %.0f kB/s  dropped %d"
+                + "  skipped %d  corrupt %d  unchanged %.0f%%",
+                metrics.getFps(), metrics.getBytesPerSecond() / 1024f,
+                metrics.getDropped(), metrics.getSkipped(),
+                metrics.getCorrupt(), metrics.getUnchangedRatio() * 100),
+                0, y, overlayPaint);
+        LatencyHistogram recovery = metrics.getRecovery();
+        y += OVERLAY_TEXT_SIZE;
+        canvas.drawText(String.format("outages %d  stalls %d  recover"
+                + " p50 %.0f  max %.0f ms  resyncs %d  first frame %.0f ms",
+                metrics.getOutages(), metrics.getStalls(),
+                recovery.getPercentile(0.5) / 1000f,
+                recovery.getMax() / 1000f, metrics.getResyncs(),
+                metrics.getLastFirstFrame() / 1e6f), 0, y, overlayPaint);
+        y += OVERLAY_TEXT_SIZE;
+        canvas.drawText(String.format("bitmaps reused %d  new %d",
+                metrics.getImagesReused(), metrics.getImagesAllocated()),
+                0, y, overlayPaint);
+        for(int i = 0; i < StreamMetrics.STAGE_COUNT; i++) {
+            LatencyHistogram h = metrics.getStage(i);
+            y += OVERLAY_TEXT_SIZE;
+            canvas.drawText(String.format("%s  p50 %.1f  p99 %.1f ms",
+                    StreamMetrics.getStageName(i),
+                    h.getPercentile(0.5) / 1000f,
+                    h.getPercentile(0.99) / 1000f), 0, y, overlayPaint);
         }
     }
     
     
     
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        viewWidth = w;
+        viewHeight = h;
+    }
+    
+    
+    
+    @Override
+    public boolean onTouchEvent(MotionEvent e) {
+        if(!zoomEnabled) return super.onTouchEvent(e);
+        scaleDetector.onTouchEvent(e);
+        gestureDetector.onTouchEvent(e);
+        return true;
+    }
+    
+    
+    
     @Override
     public void surfaceChanged(SurfaceHolder holder, int format, int width,
             int height) {
+        // The surface is the decoded frame size, or the view size.
+        screenSize = new Rect(0, 0, width, height);
     }
     
     
@@ -131,7 +278,7 @@ public class CameraView extends SurfaceView implements SurfaceHolder.Callback {
     @Override
     public void surfaceCreated(SurfaceHolder holder) {
         // Sets the screenSize / Rectangle size of stream.
-        // When change screenSize, remember change MjpegInputStream JPEG size.
+        // The decode size follows the view size, see ViewSizeDecoder.
         screenSize = new Rect(0, 0, getWidth(), getHeight());
     }
     
@@ -150,6 +297,7 @@ public class CameraView extends SurfaceView implements SurfaceHolder.Callback {
      */
     public void clearDisplay() {
         Canvas canvas = surfaceHolder.lockCanvas();
+        if(canvas == null) return;
         synchronized (surfaceHolder) {
             try {
                 canvas.drawColor(Color.BLACK);
@@ -163,12 +311,13 @@ public class CameraView extends SurfaceView implements SurfaceHolder.Callback {
     
     /**
      * Sets the source of the stream, and sets the hasSource to true.
+     * The previous source is closed.
      * @param s 
-     *        MjpegInputStream ({@link MjpegInputStream} camera source
+     *        FrameSource ({@link FrameSource}) camera source, or null.
      */
-    public void setSource(MjpegInputStream s) {
-        misSource = s;
-        mThread.setHasSource(true);
+    public void setSource(FrameSource s) {
+        pipeline.setSource(s);
+        if(mThread != null) mThread.setHasSource(s != null);
     }
 
     
@@ -179,7 +328,10 @@ public class CameraView extends SurfaceView implements SurfaceHolder.Callback {
     public void startStream() {
         mThread = new MjpegThread(surfaceHolder, this);
         mThread.setIsStreaming(true);
+        mThread.setHasSource(pipeline.getSource() != null);
         mThread.start();
+        pacer.reset();
+        pipeline.start();
     }
 
     
@@ -188,17 +340,13 @@ public class CameraView extends SurfaceView implements SurfaceHolder.Callback {
      * Method for stopping the camera stream.
      */
     public void stopStream() {
+        pipeline.stop();
+        // No decode runs once stopped.
+        decoder.releaseRegionDecoder();
         if(mThread != null) {
             mThread.setIsStreaming(false);
-            boolean retry = true;
-            while(retry) {
-                try {
-                    mThread.join();
-                    retry = false;
-                } catch (InterruptedException e) {
-                    Log.d(TAG, "stopStream(): ", e);
-                }
-            }
+            mThread.quit();
+            join(mThread);
         }
     }
     
@@ -216,14 +364,323 @@ public class CameraView extends SurfaceView implements SurfaceHolder.Callback {
     
     
     
+    /**
+     * Mutator method
+     * Sets the max frame rate of the display.
+     * @param fps
+     *        max frames drawn per second, 0 for no cap.
+     */
+    public void setMaxFps(int fps) { pacer.setMaxFps(fps); }
+    
+    
+    
+    /**
+     * Mutator method
+     * Leaves the image on the display while the camera sends the same
+     * frame again, without decoding or drawing it. On by default.
+     * @param b
+     *        true to skip unchanged frames.
+     * @see StreamPipeline#setSkipUnchanged(boolean)
+     */
+    public void setSkipUnchanged(boolean b) { pipeline.setSkipUnchanged(b); }
+    
+    
+    
+    /**
+     * Mutator method
+     * Decodes frames at about the view size and lets the compositor scale
+     * the surface, or decodes them at full size when off. On by default.
+     * @param b
+     *        true to decode at view size.
+     */
+    public void setDecodeToViewSize(boolean b) {
+        decodeToView = b;
+        pipeline.invalidate();
+        post(resizeSurface);
+    }
+    
+    
+    
+    /**
+     * Mutator method
+     * Lets the user zoom and pan the camera image with touch gestures. Off
+     * by default.
+     * @param b
+     *        true to enable the gestures.
+     */
+    public void setZoomEnabled(boolean b) { zoomEnabled = b; }
+    
+    
+    
+    /**
+     * Mutator method
+     * Zooms in on part of the camera image. The visible part is kept
+     * inside the frame.
+     * @param scale
+     *        frame size over the visible size, from 1 for the whole frame
+     *        to 8.
+     * @param centerX
+     *        center of the visible part, as a fraction of the frame width.
+     * @param centerY
+     *        center of the visible part, as a fraction of the frame height.
+     */
+    public void setZoom(float scale, float centerX, float centerY) {
+        zoom = new Zoom(scale, centerX, centerY);
+        pipeline.invalidate();
+    }
+    
+    
+    
+    /**
+     * Accessor method
+     * @return frame size over the visible size, 1 when not zoomed.
+     */
+    public float getZoom() { return zoom.scale; }
+    
+    
+    
+    /*
+     * Zooms by a factor, keeping the point of the frame under the focus in
+     * place.
+     */
+    private void zoomBy(float factor, float focusX, float focusY) {
+        if(getWidth() <= 0 || getHeight() <= 0) return;
+        Zoom z = zoom;
+        float fx = focusX / getWidth();
+        float fy = focusY / getHeight();
+        float x = z.getLeft() + fx / z.scale;
+        float y = z.getTop() + fy / z.scale;
+        float scale = Math.max(1, Math.min(z.scale * factor, MAX_ZOOM));
+        setZoom(scale, x + (0.5f - fx) / scale, y + (0.5f - fy) / scale);
+    }
+    
+    
+    
+    /*
+     * Moves the visible part by a distance in view pixels.
+     */
+    private void panBy(float dx, float dy) {
+        if(getWidth() <= 0 || getHeight() <= 0) return;
+        Zoom z = zoom;
+        setZoom(z.scale, z.centerX + dx / getWidth() / z.scale,
+                z.centerY + dy / getHeight() / z.scale);
+    }
+    
+    
+    
+    /*
+     * Sets the surface to the size of the decoded frames, or back to the
+     * view size. Runs on the UI thread.
+     */
+    private final Runnable resizeSurface = new Runnable() {
+        @Override
+        public void run() {
+            if(decodeToView && frameWidth > 0 && frameHeight > 0) {
+                surfaceHolder.setFixedSize(frameWidth, frameHeight);
+            } else {
+                surfaceHolder.setSizeFromLayout();
+            }
+        }
+    };
+    
+    
+    
+    /**
+     * Mutator method
+     * Shows the stream metrics on top of the camera image. Turns on the
+     * metrics when enabled.
+     * @param b
+     *        true to show the overlay.
+     */
+    public void setOverlayEnabled(boolean b) {
+        overlayEnabled = b;
+        if(b) metrics.setEnabled(true);
+    }
+    
+    
+    
+    /**
+     * Mutator method
+     * Sets the recorder the frames are given to as they are read, before
+     * decode. The recorder shares the frame buffers, and never holds up the
+     * read.
+     * @param r
+     *        a started FrameRecorder, or null to stop giving it frames.
+     */
+    public void setRecorder(FrameRecorder r) { pipeline.setRecorder(r); }
+    
+    
+    
+    /**
+     * Mutator method
+     * Decodes on a pool shared with other views, instead of on a pool of
+     * this view, and reads into the frame buffers of the shared pool. Set
+     * before {@link #startStream()}.
+     * @param p
+     *        the shared pool, or null for a pool of this view.
+     * @param priority
+     *        {@link DecodePool#PRIORITY_PRIMARY} for the camera that keeps
+     *        its frame rate, {@link DecodePool#PRIORITY_SECONDARY} or
+     *        higher for cameras that give way to it.
+     */
+    public void setDecodePool(DecodePool p, int priority) {
+        pipeline.setDecodePool(p, priority);
+    }
+    
+    
+    
+    /**
+     * Accessor method
+     * Metrics are off until enabled, see {@link StreamMetrics#setEnabled}.
+     * @return the latency and throughput metrics of the stream.
+     */
+    public StreamMetrics getMetrics() { return metrics; }
+    
+    
+    
+    /**
+     * Accessor method
+     * Other consumers of the stream, like an analytics hook, subscribe
+     * here to share the compressed frames of the view.
+     * @return the bus of the compressed frames, as read.
+     * @see StreamPipeline#getFrameBus()
+     */
+    public FrameBus<FrameBuffer> getFrameBus() {
+        return pipeline.getFrameBus();
+    }
+    
+    
+    
+    /**
+     * Accessor method
+     * @return the compressed frame pool, for its hits and misses.
+     */
+    public FrameBufferPool getFramePool() { return pipeline.getFramePool(); }
+    
+    
+    
+    /**
+     * Accessor method
+     * Frames dropped because a newer frame arrived before they were used.
+     * @return number of dropped compressed and decoded frames.
+     */
+    public long getDroppedFrames() { return pipeline.getDroppedFrames(); }
+    
+    
+    
+    /*
+     * Waits for the thread to die.
+     */
+    private void join(Thread t) {
+        boolean retry = true;
+        while(retry) {
+            try {
+                t.join();
+                retry = false;
+            } catch (InterruptedException e) {
+                Log.d(TAG, "join(): ", e);
+            }
+        }
+    }
+    
+    
+    
+    /*
+     * Decodes the visible part of the frames at about the view size, on a
+     * worker of the decode pool, and sets the surface to the decoded size
+     * when it changes. When zoomed the surface is left at the view size,
+     * else it would change size with every step of a pinch.
+     */
+    private class ViewSizeDecoder
+            implements StreamPipeline.ImageDecoder<Tile> {
+        @Override
+        public Tile decode(FrameBuffer f, Tile reuse) {
+            Zoom z = zoom;
+            decoder.setRegion(z.getLeft(), z.getTop(), z.getRight(),
+                    z.getBottom());
+            if(decodeToView) {
+                decoder.setTargetSize(viewWidth, viewHeight);
+            } else {
+                decoder.setTargetSize(0, 0);
+            }
+            Bitmap b = decoder.decode(f, reuse != null ? reuse.bitmap : null);
+            if(b == null) return null;
+            
+            Tile t = reuse != null ? reuse : new Tile();
+            t.bitmap = b;
+            t.crop.set(decoder.getCrop());
+            boolean fixed = decodeToView && z.scale == 1;
+            int w = fixed ? t.crop.width() : 0;
+            int h = fixed ? t.crop.height() : 0;
+            if(w != frameWidth || h != frameHeight) {
+                frameWidth = w;
+                frameHeight = h;
+                post(resizeSurface);
+            }
+            return t;
+        }
+    }
+    
+    
+    
+    /*
+     * Wakes up the render thread for new frames.
+     */
+    private class PipelineRenderer implements StreamPipeline.Renderer {
+        @Override
+        public void requestRender() {
+            MjpegThread t = mThread;
+            if(t != null) t.requestRender();
+        }
+        
+        
+        
+        @Override
+        public void readFailed(IOException e) {
+            Log.d(TAG, "readFailed(): ", e);
+        }
+    }
+    
+    
+    
     /*
      * Thread for drawing on the SurfaceView/Display.
+     * Draws only when the decoder has a new frame, at a display vsync and
+     * no faster than the max fps. Sleeps in its Looper when there is no
+     * new frame or no source.
      */
-    private class MjpegThread extends Thread {
+    private class MjpegThread extends HandlerThread {
         private SurfaceHolder surfaceHolder;
         private CameraView cameraView;
-        private boolean isStreaming;
-        private boolean hasSource;
+        private volatile boolean isStreaming;
+        private volatile boolean hasSource;
+        private Handler handler;
+        private VsyncCallback vsyncCallback;
+        private boolean vsyncRequested;     // only used on this thread.
+        private long vsyncPeriodNanos;
+        
+        /*
+         * Posted by the decoder when a new frame is ready.
+         */
+        private final Runnable requestVsync = new Runnable() {
+            @Override
+            public void run() {
+                if(!vsyncRequested) {
+                    vsyncRequested = true;
+                    scheduleVsync();
+                }
+            }
+        };
+        
+        /*
+         * Fallback vsync for devices without Choreographer (API < 16).
+         */
+        private final Runnable timedVsync = new Runnable() {
+            @Override
+            public void run() {
+                onVsync(System.nanoTime());
+            }
+        };
         
         
         
@@ -236,40 +693,94 @@ public class CameraView extends SurfaceView implements SurfaceHolder.Callback {
          *        CameraView (@link {@link CameraView})
          */
         public MjpegThread(SurfaceHolder sh, CameraView cv) {
+            super("MjpegThread", Process.THREAD_PRIORITY_DISPLAY);
             surfaceHolder = sh;
             cameraView = cv;
             isStreaming = false;
             hasSource = false;
+            
+            WindowManager wm = (WindowManager) cv.getContext()
+                    .getSystemService(Context.WINDOW_SERVICE);
+            float refreshRate = wm.getDefaultDisplay().getRefreshRate();
+            if(refreshRate < 1) refreshRate = DEFAULT_REFRESH_RATE;
+            vsyncPeriodNanos = (long) (1000000000L / refreshRate);
         }
         
         
         
         @Override
-        public void run() {
+        protected void onLooperPrepared() {
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                vsyncCallback = new VsyncCallback(this);
+            }
+        }
+        
+        
+        
+        @Override
+        public void start() {
+            super.start();
+            handler = new Handler(getLooper());
+        }
+        
+        
+        
+        /**
+         * Asks for the newest decoded frame to be drawn at the next vsync.
+         * Can be called from any thread.
+         */
+        public void requestRender() {
+            if(isStreaming && hasSource) handler.post(requestVsync);
+        }
+        
+        
+        
+        /*
+         * Asks for a call to onVsync() at the next display vsync.
+         */
+        private void scheduleVsync() {
+            if(vsyncCallback != null) {
+                vsyncCallback.post();
+            } else {
+                long now = System.nanoTime();
+                long delayMs = (vsyncPeriodNanos - (now % vsyncPeriodNanos))
+                        / 1000000L;
+                handler.postDelayed(timedVsync, delayMs);
+            }
+        }
+        
+        
+        
+        /*
+         * Called at a display vsync, draws the newest frame if the fps cap
+         * allows it, else waits for a later vsync.
+         */
+        private void onVsync(long frameTimeNanos) {
+            vsyncRequested = false;
+            if(!isStreaming) return;
+            if(!pacer.shouldPresent(frameTimeNanos, vsyncPeriodNanos)) {
+                vsyncRequested = true;
+                scheduleVsync();
+                return;
+            }
+            
+            Tile next = pipeline.takeImage();
+            if(next == null) return;
+            
+            frame = next;
+            long start = metrics.now();
             Canvas canvas = null;
-
-            /*
-             * Loops the run() if streaming is true. Calling onDraw().
-             * Sleeps 500ms to use less CPU.
-             */
-            while(isStreaming) {
-                if(hasSource) {
-                    canvas = null;
-                    try {
-                        canvas = surfaceHolder.lockCanvas();
-                        synchronized (surfaceHolder) {
-                            cameraView.onDraw(canvas);
-                        }
-                        sleep(500);
-                    } catch (InterruptedException e) {
-                        Log.d(TAG, "run(): ", e);
-                    } finally {
-                        if (canvas != null) {
-                            surfaceHolder.unlockCanvasAndPost(canvas);
-                        }
-                    }
+            try {
+                canvas = surfaceHolder.lockCanvas();
+                synchronized (surfaceHolder) {
+                    cameraView.onDraw(canvas);
+                }
+            } finally {
+                if (canvas != null) {
+                    surfaceHolder.unlockCanvasAndPost(canvas);
                 }
             }
+            pipeline.imageShown(start);
         }
         
         
@@ -301,4 +812,133 @@ public class CameraView extends SurfaceView implements SurfaceHolder.Callback {
          */
         public void setHasSource(Boolean b) { hasSource = b; }
     }
+    
+    
+    
+    /*
+     * Vsync from Choreographer, in its own class so it is only loaded on
+     * API 16 and newer.
+     */
+    private static class VsyncCallback implements Choreographer.FrameCallback {
+        private final MjpegThread thread;
+        private final Choreographer choreographer;
+        
+        
+        
+        /**
+         * Constructor, must be called on the render thread.
+         * 
+         * @param t
+         *        MjpegThread to call at vsync.
+         */
+        public VsyncCallback(MjpegThread t) {
+            thread = t;
+            choreographer = Choreographer.getInstance();
+        }
+        
+        
+        
+        /**
+         * Asks for a call at the next vsync.
+         */
+        public void post() {
+            choreographer.postFrameCallback(this);
+        }
+        
+        
+        
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            thread.onVsync(frameTimeNanos);
+        }
+    }
+    
+    
+    
+    /*
+     * A decoded Bitmap and the part of it that is shown.
+     */
+    private static class Tile {
+        private final Rect crop = new Rect();
+        private Bitmap bitmap;
+    }
+    
+    
+    
+    /*
+     * The visible part of the frame, kept inside it. Immutable, so the
+     * decoder always sees a whole one.
+     */
+    private static class Zoom {
+        private final float scale;
+        private final float centerX;
+        private final float centerY;
+        
+        
+        
+        /**
+         * Constructor
+         * 
+         * @param scale
+         *        frame size over the visible size.
+         * @param centerX
+         *        center of the visible part, as a fraction of the width.
+         * @param centerY
+         *        center of the visible part, as a fraction of the height.
+         */
+        public Zoom(float scale, float centerX, float centerY) {
+            this.scale = Math.max(1, Math.min(scale, MAX_ZOOM));
+            float half = 0.5f / this.scale;
+            this.centerX = Math.max(half, Math.min(centerX, 1 - half));
+            this.centerY = Math.max(half, Math.min(centerY, 1 - half));
+        }
+        
+        public float getLeft() { return centerX - 0.5f / scale; }
+        public float getTop() { return centerY - 0.5f / scale; }
+        public float getRight() { return centerX + 0.5f / scale; }
+        public float getBottom() { return centerY + 0.5f / scale; }
+    }
+    
+    
+    
+    /*
+     * Zooms on a pinch.
+     */
+    private class ScaleListener
+            extends ScaleGestureDetector.SimpleOnScaleGestureListener {
+        @Override
+        public boolean onScale(ScaleGestureDetector d) {
+            zoomBy(d.getScaleFactor(), d.getFocusX(), d.getFocusY());
+            return true;
+        }
+    }
+    
+    
+    
+    /*
+     * Pans on a drag, and zooms out on a double tap.
+     */
+    private class PanListener extends GestureDetector.SimpleOnGestureListener {
+        @Override
+        public boolean onDown(MotionEvent e) {
+            return true;
+        }
+        
+        
+        
+        @Override
+        public boolean onScroll(MotionEvent e1, MotionEvent e2, float dx,
+                float dy) {
+            if(!scaleDetector.isInProgress()) panBy(dx, dy);
+            return true;
+        }
+        
+        
+        
+        @Override
+        public boolean onDoubleTap(MotionEvent e) {
+            setZoom(1, 0.5f, 0.5f);
+            return true;
+        }
+    }
 }
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvclient;
+
+/**
+ * Offset between the clock of a camera server and System.nanoTime() of
+ * the client, to turn the capture time a server puts on a frame into a
+ * local time, for the glass-to-glass latency.
+ * <p>
+ * The offset is estimated like NTP does, from one exchange: the server
+ * time in the HTTP response head lies between the send of the request and
+ * the arrival of the response, and is taken to be in the middle. Each
+ * frame then bounds it from below, since no frame arrives before it was
+ * captured. The bound of the fastest frame in the last 30 to 60 seconds
+ * is kept, so the bound follows a drift of either clock instead of
+ * holding on to an old frame.
+ * <p>
+ * Without an exchange the offset is the frame bound alone, taking the
+ * fastest frame as sent in no time, which leaves out the least network
+ * delay of the stream.
+ *
+ * @author Thomas Le
+ * @see MjpegFrameSource#getClockOffset()
+ * @see MultipartHeaderParser#TIMESTAMP_HEADER
+ */
+public class ClockOffset {
+    /*
+     * Length of a window of the frame bound. The bound is the largest of
+     * this window and the one before.
+     */
+    private final static long WINDOW_NANOS = 30 * 1000000000L;
+    private final static long NONE = Long.MIN_VALUE;
+
+    // guarded by this.
+    private long exchangeOffset;
+    private long exchangeUncertainty;
+    private long windowStart;
+    private long windowBound;
+    private long previousBound;
+    private long offset;
+
+
+
+    /**
+     * Constructor
+     */
+    public ClockOffset() {
+        exchangeOffset = NONE;
+        exchangeUncertainty = -1;
+        windowBound = NONE;
+        previousBound = NONE;
+        offset = NONE;
+    }
+
+
+
+    /**
+     * Estimates the offset from a request and its response stamped with
+     * the server time. Replaces an earlier exchange.
+     *
+     * @param sendNanos
+     *        System.nanoTime() when the request was sent.
+     * @param serverMicros
+     *        server time in the response, in microseconds since the epoch.
+     * @param receiveNanos
+     *        System.nanoTime() when the response arrived.
+     */
+    public synchronized void exchange(long sendNanos, long serverMicros,
+            long receiveNanos) {
+        long roundTrip = receiveNanos - sendNanos;
+        exchangeOffset = serverMicros * 1000L - (sendNanos + roundTrip / 2);
+        exchangeUncertainty = roundTrip / 2;
+        update();
+    }
+
+
+
+    /**
+     * Bounds the offset by a frame, which was captured before it arrived.
+     *
+     * @param serverMicros
+     *        capture time of the frame, in microseconds since the epoch on
+     *        the server clock.
+     * @param receiveNanos
+     *        System.nanoTime() when the frame arrived.
+     */
+    public synchronized void frameReceived(long serverMicros,
+            long receiveNanos) {
+        if(windowBound == NONE || receiveNanos - windowStart > WINDOW_NANOS) {
+            previousBound = windowBound;
+            windowBound = NONE;
+            windowStart = receiveNanos;
+        }
+        long bound = serverMicros * 1000L - receiveNanos;
+        if(bound > windowBound) {
+            windowBound = bound;
+            update();
+        }
+    }
+
+
+
+    /**
+     * Turns a time on the server clock into a local time.
+     *
+     * @param serverMicros
+     *        time in microseconds since the epoch on the server clock.
+     * @return the same time as a System.nanoTime(), or 0 if the offset is
+     *         not known yet.
+     */
+    public synchronized long toLocalNanos(long serverMicros) {
+        if(offset == NONE) return 0;
+        return serverMicros * 1000L - offset;
+    }
+
+
+
+    /**
+     * Accessor method
+     * @return true if there was an exchange or a frame to estimate from.
+     */
+    public synchronized boolean isKnown() { return offset != NONE; }
+
+
+
+    /**
+     * Accessor method
+     * @return server time in nanoseconds since the epoch less
+     *         System.nanoTime(), 0 if not known.
+     */
+    public synchronized long getOffsetNanos() {
+        return offset == NONE ? 0 : offset;
+    }
+
+
+
+    /**
+     * Accessor method
+     * @return half the round trip of the exchange, the most the estimate
+     *         can be off by when the frames do not tighten it, -1 if there
+     *         was no exchange.
+     */
+    public synchronized long getUncertaintyNanos() {
+        return exchangeUncertainty;
+    }
+
+
+
+    /*
+     * Takes the exchange estimate, raised to the frame bound.
+     */
+    private void update() {
+        offset = Math.max(exchangeOffset,
+                Math.max(windowBound, previousBound));
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvclient;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.res.Resources;
+
+/**
+ * Opens the camera streams and the vehicle control link ahead of time, so
+ * the vehicle screen starts with warm connections.
+ * The login screen asks for the connections as soon as the credentials
+ * are entered. While the user gets to the connect button, the camera
+ * host is resolved, the TCP connection opened, and the HTTP response head
+ * read, on a thread of its own per stream. The vehicle screen then takes
+ * a connected stream with {@link #takeStream(String)} instead of opening
+ * one, and the first frame is only the wait for the camera to send it.
+ * <p>
+ * A warm stream not taken within {@link #WARM_MAX_AGE_MS} is closed and
+ * opened again, as its camera has been pushing frames into the socket
+ * buffer all that time. The stream handed over then holds at most that
+ * much old video, about what the stall timeout lets a stream lag.
+ * <p>
+ * The manager is shared by the activities of the process, see
+ * {@link #getInstance()}.
+ *
+ * @author Thomas Le
+ * @see MainActivity
+ * @see VehicleActivity
+ * @see StreamMetrics#startFirstFrame(long)
+ */
+public class ConnectionManager {
+    /**
+     * Max time in milliseconds a warm stream is kept connected before it
+     * is opened again, about the camera stall timeout.
+     */
+    public final static long WARM_MAX_AGE_MS = 3000;
+
+    private final static long NANOS_PER_MILLI = 1000000L;
+
+    private static ConnectionManager instance;
+
+    private final Map<String, WarmStream> streams;  // guarded by this.
+    private VehicleControl control;                 // guarded by this.
+
+
+
+    /*
+     * Constructor
+     */
+    private ConnectionManager() {
+        streams = new HashMap<String, WarmStream>();
+    }
+
+
+
+    /**
+     * Accessor method
+     * @return the manager of the process.
+     */
+    public static synchronized ConnectionManager getInstance() {
+        if(instance == null) instance = new ConnectionManager();
+        return instance;
+    }
+
+
+
+    /**
+     * Starts opening a camera stream in the background, and keeps it
+     * fresh until taken. Does nothing if the stream is already kept.
+     * @param res
+     *        resources holding the camera config.
+     * @param url
+     *        the camera URL, as the vehicle screen will ask for it.
+     */
+    public synchronized void warmStream(Resources res, String url) {
+        WarmStream w = streams.get(url);
+        if(w != null && w.isAlive()) return;
+
+        try {
+            w = new WarmStream(res, url);
+        } catch (IOException e) {
+            // A bad URL, the vehicle screen reports it when it connects.
+            streams.remove(url);
+            return;
+        }
+        streams.put(url, w);
+        w.start();
+    }
+
+
+
+    /**
+     * Takes the warm stream of a camera URL, waiting for it if it is still
+     * being opened. The caller owns the stream from then on.
+     * @param url
+     *        the camera URL.
+     * @return the connected stream, or null if none was asked for, it
+     *         failed or it is stale. The caller then opens one itself.
+     */
+    public MjpegStreamClient takeStream(String url) {
+        WarmStream w;
+        synchronized(this) {
+            w = streams.remove(url);
+        }
+        return w != null ? w.take() : null;
+    }
+
+
+
+    /**
+     * Opens the vehicle control link, which starts resolving the vehicle
+     * and measuring the round trip time. Does nothing if already open.
+     * @param res
+     *        resources holding the vehicle config.
+     */
+    public synchronized void warmControl(Resources res) {
+        if(control != null) return;
+        control = newVehicleControl(res);
+        control.open();
+    }
+
+
+
+    /**
+     * Takes the open vehicle control link. The caller owns it from then on.
+     * @return the link, or null if none was opened.
+     */
+    public synchronized VehicleControl takeControl() {
+        VehicleControl c = control;
+        control = null;
+        return c;
+    }
+
+
+
+    /**
+     * Closes the connections not taken, like when the login screen is left
+     * without connecting.
+     */
+    public void cancel() {
+        WarmStream[] ws;
+        VehicleControl c;
+        synchronized(this) {
+            ws = streams.values().toArray(new WarmStream[streams.size()]);
+            streams.clear();
+            c = control;
+            control = null;
+        }
+        for(WarmStream w : ws) w.cancel();
+        if(c != null) c.close();
+    }
+
+
+
+    /**
+     * Method to create a camera stream client set up from the config.
+     * @param res
+     *        resources holding the camera config.
+     * @param url
+     *        the camera URL.
+     * @return the client, not yet connected.
+     * @throws IOException if the URL is not valid.
+     */
+    public static MjpegStreamClient newStreamClient(Resources res,
+            String url) throws IOException {
+        int timeout = res.getInteger(R.integer.camera_stall_timeout);
+        MjpegStreamClient c = new MjpegStreamClient(new URL(url));
+        c.setReceiveBufferSize(res.getInteger(
+                R.integer.camera_receive_buffer));
+        c.setTcpNoDelay(res.getBoolean(R.bool.camera_tcp_nodelay));
+        c.setConnectTimeout(timeout);
+        c.setReadTimeout(timeout);
+        return c;
+    }
+
+
+
+    /**
+     * Method to create the vehicle control link set up from the config.
+     * @param res
+     *        resources holding the vehicle config.
+     * @return the link, not yet open.
+     */
+    public static VehicleControl newVehicleControl(Resources res) {
+        VehicleControl c = new VehicleControl(
+                res.getString(R.string.vehicle_address),
+                res.getInteger(R.integer.vehicle_control_port));
+        c.setTick(res.getInteger(R.integer.vehicle_control_tick));
+        c.setHeartbeat(res.getInteger(R.integer.vehicle_heartbeat));
+        return c;
+    }
+
+
+
+    /**
+     * Method to get the URL a camera stream is first opened with. With
+     * adaptive quality that asks for the best level, where the stream
+     * starts.
+     * @param res
+     *        resources holding the camera config.
+     * @param url
+     *        the camera URL from the config.
+     * @return the URL of the first connection.
+     */
+    public static String getFirstUrl(Resources res, String url) {
+        if(!res.getBoolean(R.bool.camera_adaptive_quality)) return url;
+        QualityController.Level[] ladder = QualityController.Level
+                .parseLadder(res.getString(R.string.camera_quality_levels));
+        return ladder[ladder.length - 1].apply(url);
+    }
+
+
+
+    /*
+     * Thread opening one camera stream ahead of time, and opening it again
+     * whenever it gets older than WARM_MAX_AGE_MS before it is taken.
+     */
+    private static class WarmStream extends Thread {
+        private final Resources res;
+        private final String url;
+        private MjpegStreamClient client;   // guarded by this.
+        private boolean connected;          // guarded by this.
+        private boolean taken;              // guarded by this.
+        private long connectedNanos;        // guarded by this.
+
+
+
+        /**
+         * Constructor
+         * @param res
+         *        resources holding the camera config.
+         * @param url
+         *        the camera URL.
+         * @throws IOException if the URL is not valid.
+         */
+        public WarmStream(Resources res, String url) throws IOException {
+            super("WarmStream");
+            this.res = res;
+            this.url = url;
+            client = newStreamClient(res, url);
+        }
+
+
+
+        @Override
+        public void run() {
+            try {
+                while(true) {
+                    MjpegStreamClient c;
+                    synchronized(this) {
+                        if(taken) return;
+                        c = client;
+                    }
+                    c.connect();
+
+                    synchronized(this) {
+                        connected = true;
+                        connectedNanos = System.nanoTime();
+                        notifyAll();
+                        long deadline = connectedNanos
+                                + WARM_MAX_AGE_MS * NANOS_PER_MILLI;
+                        long left = WARM_MAX_AGE_MS;
+                        while(!taken && left > 0) {
+                            wait(left);
+                            left = (deadline - System.nanoTime())
+                                    / NANOS_PER_MILLI;
+                        }
+                        // Taken, or closed by cancel().
+                        if(taken) return;
+                        connected = false;
+                        client = newStreamClient(res, url);
+                    }
+                    closeQuietly(c);
+                }
+            } catch (IOException e) {
+                // The taker opens the stream itself, and sees the error.
+            } catch (InterruptedException e) {
+                // Not interrupted by anyone.
+            } finally {
+                synchronized(this) {
+                    notifyAll();
+                }
+            }
+        }
+
+
+
+        /**
+         * Waits for the stream to be opened, and hands it over.
+         * @return the stream, or null if it failed or is stale.
+         */
+        public MjpegStreamClient take() {
+            MjpegStreamClient c;
+            synchronized(this) {
+                try {
+                    while(!connected && isAlive()) wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                taken = true;
+                notifyAll();
+                c = client;
+                if(connected && !isStale(System.nanoTime())) return c;
+            }
+            closeQuietly(c);
+            return null;
+        }
+
+
+
+        /**
+         * Closes the stream, or has it closed once opened.
+         */
+        public void cancel() {
+            MjpegStreamClient c;
+            synchronized(this) {
+                taken = true;
+                notifyAll();
+                c = client;
+            }
+            closeQuietly(c);
+        }
+
+
+
+        /**
+         * Checks if the stream was opened too long ago to hand over.
+         * @param now
+         *        System.nanoTime().
+         * @return true if stale.
+         */
+        public synchronized boolean isStale(long now) {
+            return connected && now - connectedNanos
+                    > WARM_MAX_AGE_MS * NANOS_PER_MILLI;
+        }
+
+
+
+        /*
+         * Closes a stream, ignoring errors.
+         */
+        private static void closeQuietly(MjpegStreamClient c) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // Not used any more.
+            }
+        }
+    }
+}
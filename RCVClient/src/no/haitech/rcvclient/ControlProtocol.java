@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvclient;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary packets of the vehicle control channel.
+ * Every packet is {@link #PACKET_LENGTH} bytes, big endian:
+ * <pre>
+ *  0  magic       0x52 ('R')
+ *  1  type        TYPE_DRIVE, TYPE_PING or TYPE_PONG
+ *  2  version     PROTOCOL_VERSION
+ *  3  reserved    0
+ *  4  sequence    int, one up per packet sent, wrapping
+ *  8  steering    short, -32767 full left to 32767 full right
+ * 10  throttle    short, -32767 full reverse to 32767 full forward
+ * 12  timestamp   int, microseconds on the sender clock, wrapping
+ * </pre>
+ * A drive packet carries the latest steering and throttle, stamped with
+ * the time of the input. The vehicle drops drive packets not newer than
+ * the last one it took, see {@link #isNewer(int, int)}. A ping is answered
+ * with a pong carrying the same sequence and timestamp, for the round trip
+ * time.
+ *
+ * @author Thomas Le
+ * @see VehicleControl
+ */
+public final class ControlProtocol {
+    /**
+     * Length of every packet in bytes.
+     */
+    public final static int PACKET_LENGTH = 16;
+
+    /**
+     * First byte of every packet.
+     */
+    public final static byte MAGIC = 0x52;
+
+    /**
+     * Version of the packet layout.
+     */
+    public final static byte PROTOCOL_VERSION = 1;
+
+    /**
+     * Steering and throttle for the vehicle.
+     */
+    public final static byte TYPE_DRIVE = 1;
+
+    /**
+     * Heartbeat from the client, answered with a pong.
+     */
+    public final static byte TYPE_PING = 2;
+
+    /**
+     * Answer to a ping, from the vehicle.
+     */
+    public final static byte TYPE_PONG = 3;
+
+    private final static float AXIS_MAX = Short.MAX_VALUE;
+
+
+
+    /*
+     * Static methods only.
+     */
+    private ControlProtocol() {
+    }
+
+
+
+    /**
+     * Writes a packet at the position of the buffer, and moves the
+     * position past it.
+     * @param b
+     *        buffer with at least {@link #PACKET_LENGTH} bytes remaining.
+     * @param type
+     *        one of the TYPE constants.
+     * @param sequence
+     *        sequence number of the packet.
+     * @param steering
+     *        steering from -1 to 1, clamped.
+     * @param throttle
+     *        throttle from -1 to 1, clamped.
+     * @param timestamp
+     *        time in microseconds, see {@link #micros()}.
+     */
+    public static void write(ByteBuffer b, byte type, int sequence,
+            float steering, float throttle, int timestamp) {
+        b.put(MAGIC);
+        b.put(type);
+        b.put(PROTOCOL_VERSION);
+        b.put((byte) 0);
+        b.putInt(sequence);
+        b.putShort(toAxis(steering));
+        b.putShort(toAxis(throttle));
+        b.putInt(timestamp);
+    }
+
+
+
+    /**
+     * Checks the packet from the start of the buffer to its limit.
+     * @param b
+     *        buffer holding one received datagram.
+     * @return true if it is a packet of this protocol version.
+     */
+    public static boolean isValid(ByteBuffer b) {
+        return b.limit() == PACKET_LENGTH && b.get(0) == MAGIC
+                && b.get(2) == PROTOCOL_VERSION;
+    }
+
+
+
+    /**
+     * Accessor method
+     * @return type of the packet at the start of the buffer.
+     */
+    public static byte getType(ByteBuffer b) { return b.get(1); }
+
+
+
+    /**
+     * Accessor method
+     * @return sequence number of the packet at the start of the buffer.
+     */
+    public static int getSequence(ByteBuffer b) { return b.getInt(4); }
+
+
+
+    /**
+     * Accessor method
+     * @return steering from -1 to 1 of the packet at the start of the
+     *         buffer.
+     */
+    public static float getSteering(ByteBuffer b) {
+        return b.getShort(8) / AXIS_MAX;
+    }
+
+
+
+    /**
+     * Accessor method
+     * @return throttle from -1 to 1 of the packet at the start of the
+     *         buffer.
+     */
+    public static float getThrottle(ByteBuffer b) {
+        return b.getShort(10) / AXIS_MAX;
+    }
+
+
+
+    /**
+     * Accessor method
+     * @return timestamp in microseconds of the packet at the start of the
+     *         buffer.
+     */
+    public static int getTimestamp(ByteBuffer b) { return b.getInt(12); }
+
+
+
+    /**
+     * Checks if a sequence number comes after another, allowing for wrap
+     * around.
+     * @param sequence
+     *        sequence number of a received packet.
+     * @param last
+     *        sequence number of the last packet taken.
+     * @return true if the packet is newer than the last one.
+     */
+    public static boolean isNewer(int sequence, int last) {
+        return sequence - last > 0;
+    }
+
+
+
+    /**
+     * Reads the clock for packet timestamps.
+     * @return System.nanoTime() in microseconds, wrapping at 32 bits.
+     */
+    public static int micros() {
+        return (int) (System.nanoTime() / 1000);
+    }
+
+
+
+    /**
+     * Computes the time elapsed since a packet timestamp, allowing for wrap
+     * around.
+     * @param timestamp
+     *        time in microseconds from {@link #micros()}.
+     * @return elapsed time in nanoseconds.
+     */
+    public static long nanosSince(int timestamp) {
+        return (micros() - timestamp) * 1000L;
+    }
+
+
+
+    /*
+     * Converts an axis from -1..1 to a short, clamping it.
+     */
+    private static short toAxis(float v) {
+        if(v > 1) v = 1;
+        else if(v < -1) v = -1;
+        else if(v != v) v = 0;      // NaN
+        return (short) Math.round(v * AXIS_MAX);
+    }
+}
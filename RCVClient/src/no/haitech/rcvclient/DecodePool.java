@@ -0,0 +1,447 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvclient;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded pool of decode worker threads shared by several camera streams.
+ * Each stream registers with a priority, and hands its newest compressed
+ * frame to the pool with {@link Stream#offer(FrameBuffer)}. As in
+ * {@link FrameSlot}, a stream holds one waiting frame, and a newer frame
+ * replaces it. A stream is decoded by one worker at a time, so its frames
+ * stay in order and its decoder needs no locking.
+ * <p>
+ * A free worker takes the waiting frame of the stream with the highest
+ * priority, so the primary camera is never queued behind a secondary one
+ * it has a frame for. When a primary frame still finds every worker busy
+ * with secondary streams, the secondary streams are held to a min time
+ * between two decodes, which doubles on each such contention and eases
+ * off again while the primary finds free workers. Secondary streams so
+ * lose frame rate first, and keep what the primary leaves over.
+ * <p>
+ * The streams may also share one {@link FrameBufferPool} with a budget of
+ * bytes. While the pool is over its budget, frames offered by secondary
+ * streams are dropped at once.
+ *
+ * @author Thomas Le
+ * @see CameraView#setDecodePool(DecodePool, int)
+ */
+public class DecodePool {
+    /**
+     * Priority of the main camera, which keeps its frame rate.
+     */
+    public final static int PRIORITY_PRIMARY = 0;
+
+    /**
+     * Priority of an extra camera, which gives way to the primary. Higher
+     * numbers give way before lower ones.
+     */
+    public final static int PRIORITY_SECONDARY = 1;
+
+    /*
+     * Min time between two decodes of a secondary stream on the first
+     * contention, about 30 frames per second.
+     */
+    private final static long THROTTLE_MIN_NANOS = 33000000L;
+
+    /*
+     * Max min time between two decodes of a secondary stream, one frame
+     * per second.
+     */
+    private final static long THROTTLE_MAX_NANOS = 1000000000L;
+
+    private final static long NANOS_PER_MILLI = 1000000L;
+
+    /**
+     * Decodes the frames of one stream.
+     */
+    public interface Decoder {
+        /**
+         * Decodes a frame, and gives the buffer back with
+         * {@link FrameBuffer#release()}. Called on a worker thread, never
+         * for two frames of the same stream at once.
+         * @param f
+         *        the compressed frame.
+         */
+        void decode(FrameBuffer f);
+    }
+
+    private final FrameBufferPool framePool;
+    private final List<Stream> streams;     // guarded by this.
+    private final Worker[] workers;
+    private int idle;                       // guarded by this.
+    private int busySecondary;              // guarded by this.
+    private long throttleNanos;             // guarded by this.
+    private long contentions;               // guarded by this.
+    private boolean running;                // guarded by this.
+
+
+
+    /**
+     * Constructor
+     * The workers start at once.
+     * @param workers
+     *        number of decode threads.
+     * @param framePool
+     *        frame buffers shared by the streams of the pool.
+     */
+    public DecodePool(int workers, FrameBufferPool framePool) {
+        this.framePool = framePool;
+        streams = new ArrayList<Stream>();
+        this.workers = new Worker[Math.max(1, workers)];
+        running = true;
+        for(int i = 0; i < this.workers.length; i++) {
+            this.workers[i] = new Worker(i);
+            this.workers[i].start();
+        }
+    }
+
+
+
+    /**
+     * Adds a stream to the pool.
+     * @param d
+     *        decoder of the stream.
+     * @param priority
+     *        {@link #PRIORITY_PRIMARY}, {@link #PRIORITY_SECONDARY} or
+     *        higher.
+     * @return the stream, to offer frames to and to close when done.
+     */
+    public synchronized Stream register(Decoder d, int priority) {
+        Stream s = new Stream(d, Math.max(PRIORITY_PRIMARY, priority));
+        streams.add(s);
+        return s;
+    }
+
+
+
+    /**
+     * Stops the workers after the frames being decoded. Frames still
+     * waiting are released.
+     */
+    public void shutdown() {
+        synchronized(this) {
+            running = false;
+            for(Stream s : streams) s.drop();
+            streams.clear();
+            notifyAll();
+        }
+        for(Worker w : workers) {
+            boolean retry = true;
+            while(retry) {
+                try {
+                    w.join();
+                    retry = false;
+                } catch (InterruptedException e) {
+                    // Waits for the worker anyway.
+                }
+            }
+        }
+    }
+
+
+
+    /**
+     * Accessor method
+     * @return frame buffers shared by the streams of the pool.
+     */
+    public FrameBufferPool getFramePool() { return framePool; }
+
+
+
+    /**
+     * Accessor method
+     * @return number of decode threads.
+     */
+    public int getWorkerCount() { return workers.length; }
+
+
+
+    /**
+     * Accessor method
+     * @return min time in milliseconds between two decodes of a secondary
+     *         stream, 0 when not held back.
+     */
+    public synchronized long getThrottleMillis() {
+        return throttleNanos / NANOS_PER_MILLI;
+    }
+
+
+
+    /**
+     * Accessor method
+     * @return number of primary frames that found every worker busy with
+     *         secondary streams.
+     */
+    public synchronized long getContentions() { return contentions; }
+
+
+
+    /*
+     * Picks the stream to decode next: the waiting frame of the highest
+     * priority, and of those the one waiting longest. Called holding the
+     * lock.
+     * @return the stream, or null if none is ready.
+     */
+    private Stream next(long now) {
+        Stream best = null;
+        for(Stream s : streams) {
+            if(s.pending == null || s.busy || !s.isDue(now)) continue;
+            if(best == null || s.priority < best.priority
+                    || (s.priority == best.priority
+                        && s.pendingNanos < best.pendingNanos)) {
+                best = s;
+            }
+        }
+        return best;
+    }
+
+
+
+    /*
+     * Time to wait for the next held back stream to be due. Called holding
+     * the lock.
+     * @return nanoseconds to wait, or 0 to wait for a new frame.
+     */
+    private long nextDue(long now) {
+        long wait = 0;
+        for(Stream s : streams) {
+            if(s.pending == null || s.busy) continue;
+            long w = s.dueNanos() - now;
+            if(w > 0 && (wait == 0 || w < wait)) wait = w;
+        }
+        return wait;
+    }
+
+
+
+    /*
+     * Holds back the secondary streams more, or less. Called holding the
+     * lock when a primary frame is offered.
+     */
+    private void adjustThrottle(boolean contended) {
+        if(contended) {
+            contentions++;
+            throttleNanos = Math.min(THROTTLE_MAX_NANOS,
+                    Math.max(THROTTLE_MIN_NANOS, throttleNanos * 2));
+        } else if(throttleNanos > 0) {
+            throttleNanos -= throttleNanos / 8;
+            if(throttleNanos < THROTTLE_MIN_NANOS) throttleNanos = 0;
+        }
+    }
+
+
+
+    /**
+     * A camera stream of the pool.
+     */
+    public class Stream {
+        private final Decoder decoder;
+        private final int priority;
+        private FrameBuffer pending;        // guarded by DecodePool.this.
+        private long pendingNanos;          // guarded by DecodePool.this.
+        private long lastStartNanos;        // guarded by DecodePool.this.
+        private boolean busy;               // guarded by DecodePool.this.
+        private boolean closed;             // guarded by DecodePool.this.
+        private long decoded;               // guarded by DecodePool.this.
+
+
+
+        /*
+         * Constructor
+         */
+        private Stream(Decoder d, int priority) {
+            decoder = d;
+            this.priority = priority;
+        }
+
+
+
+        /**
+         * Hands a frame to the pool for decoding, replacing the frame of
+         * this stream still waiting.
+         * @param f
+         *        the compressed frame, owned by the pool from now on.
+         * @return the frame dropped, either the stale frame replaced or f
+         *         itself, for the caller to release. Null if none.
+         */
+        public FrameBuffer offer(FrameBuffer f) {
+            synchronized(DecodePool.this) {
+                if(closed) return f;
+                if(priority != PRIORITY_PRIMARY && framePool.isOverBudget()) {
+                    return f;
+                }
+                if(priority == PRIORITY_PRIMARY) {
+                    adjustThrottle(!busy && idle == 0
+                            && busySecondary > 0);
+                }
+                FrameBuffer stale = pending;
+                pending = f;
+                pendingNanos = System.nanoTime();
+                DecodePool.this.notifyAll();
+                return stale;
+            }
+        }
+
+
+
+        /**
+         * Removes the stream from the pool, after the frame being decoded.
+         * The frame waiting is released.
+         */
+        public void close() {
+            synchronized(DecodePool.this) {
+                closed = true;
+                streams.remove(this);
+                drop();
+                while(busy) {
+                    try {
+                        DecodePool.this.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+
+
+        /**
+         * Accessor method
+         * @return priority of the stream.
+         */
+        public int getPriority() { return priority; }
+
+
+
+        /**
+         * Accessor method
+         * @return number of frames handed to the decoder.
+         */
+        public long getDecoded() {
+            synchronized(DecodePool.this) {
+                return decoded;
+            }
+        }
+
+
+
+        /*
+         * Releases the waiting frame. Called holding the lock.
+         */
+        private void drop() {
+            if(pending != null) {
+                pending.release();
+                pending = null;
+            }
+        }
+
+
+
+        /*
+         * Time the next decode of the stream may start. Called holding the
+         * lock.
+         */
+        private long dueNanos() {
+            if(priority == PRIORITY_PRIMARY || throttleNanos == 0) {
+                return pendingNanos;
+            }
+            return lastStartNanos + throttleNanos * priority;
+        }
+
+
+
+        /*
+         * Checks if the next decode of the stream may start. Called holding
+         * the lock.
+         */
+        private boolean isDue(long now) {
+            return priority == PRIORITY_PRIMARY || throttleNanos == 0
+                    || now - dueNanos() >= 0;
+        }
+    }
+
+
+
+    /*
+     * Thread decoding the frames of any stream of the pool.
+     */
+    private class Worker extends Thread {
+
+
+
+        /**
+         * Constructor
+         * @param i
+         *        number of the worker.
+         */
+        public Worker(int i) {
+            super("DecodePool-" + i);
+        }
+
+
+
+        @Override
+        public void run() {
+            synchronized(DecodePool.this) {
+                idle++;
+            }
+            while(true) {
+                Stream s;
+                FrameBuffer f;
+                synchronized(DecodePool.this) {
+                    while(true) {
+                        if(!running) return;
+                        long now = System.nanoTime();
+                        s = next(now);
+                        if(s != null) break;
+                        long wait = nextDue(now);
+                        try {
+                            DecodePool.this.wait(wait / NANOS_PER_MILLI,
+                                    (int) (wait % NANOS_PER_MILLI));
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    f = s.pending;
+                    s.pending = null;
+                    s.busy = true;
+                    s.lastStartNanos = System.nanoTime();
+                    s.decoded++;
+                    idle--;
+                    if(s.priority != PRIORITY_PRIMARY) busySecondary++;
+                }
+
+                try {
+                    s.decoder.decode(f);
+                } finally {
+                    synchronized(DecodePool.this) {
+                        s.busy = false;
+                        idle++;
+                        if(s.priority != PRIORITY_PRIMARY) busySecondary--;
+                        DecodePool.this.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvclient;
+
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A decoded image of a {@link StreamPipeline}, shared by the render thread
+ * and the subscribers of its image bus. The last release gives it back to
+ * the decoder of the pipeline, which decodes a later frame into the same
+ * image.
+ *
+ * @param <T> type of the image.
+ * @author Thomas Le
+ * @see StreamPipeline#getImageBus()
+ */
+public class DecodedFrame<T> implements RefCounted {
+    private final Queue<DecodedFrame<T>> free;
+    private final AtomicInteger references;
+    private T image;
+    private long readStartNanos;
+    private long timestampNanos;
+    private long captureNanos;
+
+
+
+    /**
+     * Constructor
+     * @param free
+     *        queue of free frames the frame is offered to on its last
+     *        release. If full, the frame is left to the garbage collector.
+     */
+    DecodedFrame(Queue<DecodedFrame<T>> free) {
+        this.free = free;
+        references = new AtomicInteger(1);
+    }
+
+
+
+    @Override
+    public void retain() {
+        references.incrementAndGet();
+    }
+
+
+
+    @Override
+    public void release() {
+        if(references.decrementAndGet() == 0) free.offer(this);
+    }
+
+
+
+    /*
+     * Makes the frame owned by the decoder again, when taken from the free
+     * queue.
+     */
+    void reset() {
+        references.set(1);
+    }
+
+
+
+    /*
+     * Sets the image and the times of the frame it was decoded from.
+     */
+    void set(T image, FrameBuffer f) {
+        this.image = image;
+        readStartNanos = f.getReadStartNanos();
+        timestampNanos = f.getTimestampNanos();
+        captureNanos = f.getCaptureNanos();
+    }
+
+
+
+    /**
+     * Accessor method
+     * @return the image, valid until released.
+     */
+    public T getImage() { return image; }
+
+
+
+    /**
+     * Accessor method
+     * @return start of the read of the frame, 0 if not timed.
+     */
+    public long getReadStartNanos() { return readStartNanos; }
+
+
+
+    /**
+     * Accessor method
+     * @return System.nanoTime() when the frame was read.
+     */
+    public long getTimestampNanos() { return timestampNanos; }
+
+
+
+    /**
+     * Accessor method
+     * @return System.nanoTime() when the camera captured the frame, 0 if
+     *         unknown.
+     */
+    public long getCaptureNanos() { return captureNanos; }
+}
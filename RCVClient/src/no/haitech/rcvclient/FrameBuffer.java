@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvclient;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pooled buffer holding the compressed bytes of one JPEG frame.
+ * Get one from {@link FrameBufferPool#acquire(int)} and give it back with
+ * {@link #release()} when done, so the byte array can be reused for a
+ * later frame.
+ * <p>
+ * A frame handed to more than one consumer, like the decoder and the
+ * recorder, is shared instead of copied: each extra holder calls
+ * {@link #retain()}, and the buffer goes back to the pool on the last
+ * release. This is how a {@link FrameBus} hands one frame to all its
+ * subscribers.
+ *
+ * @author Thomas Le
+ * @see FrameBufferPool
+ */
+public class FrameBuffer implements RefCounted {
+    private final FrameBufferPool pool;
+    private final byte[] data;
+    private final AtomicInteger references;
+    private int length;
+    private long timestampNanos;
+    private long networkNanos;
+    private long readStartNanos;
+    private long readEndNanos;
+    private long fingerprint;
+    private long captureNanos;
+
+
+
+    /**
+     * Constructor
+     * @param pool
+     *        pool the buffer is returned to on release, may be null.
+     * @param capacity
+     *        size of the buffer in bytes.
+     */
+    FrameBuffer(FrameBufferPool pool, int capacity) {
+        this.pool = pool;
+        data = new byte[capacity];
+        references = new AtomicInteger(1);
+        length = 0;
+    }
+
+
+
+    /**
+     * Copies a frame into the buffer.
+     * @param src
+     *        array holding the frame.
+     * @param offset
+     *        offset of the frame in src.
+     * @param len
+     *        length of the frame in bytes.
+     */
+    public void put(byte[] src, int offset, int len) {
+        System.arraycopy(src, offset, data, 0, len);
+        length = len;
+    }
+
+
+
+    /**
+     * Copies a frame into the buffer.
+     * @param src
+     *        buffer holding the frame from its position to its limit. The
+     *        position is moved to the limit.
+     */
+    public void put(ByteBuffer src) {
+        int len = src.remaining();
+        src.get(data, 0, len);
+        length = len;
+    }
+
+
+
+    /**
+     * Adds a holder of the buffer, who must call {@link #release()} when
+     * done with it.
+     */
+    @Override
+    public void retain() {
+        references.incrementAndGet();
+    }
+
+
+
+    /**
+     * Gives up this holder's use of the buffer. The last release gives the
+     * buffer back to its pool. The buffer must not be used after this.
+     */
+    @Override
+    public void release() {
+        if(references.decrementAndGet() == 0 && pool != null) {
+            pool.release(this);
+        }
+    }
+
+
+
+    /*
+     * Makes the buffer owned by one holder again, when taken from the pool.
+     */
+    void reset() {
+        references.set(1);
+        fingerprint = 0;
+        captureNanos = 0;
+    }
+
+
+
+    /**
+     * Accessor method
+     * @return the array holding the frame, starting at index 0.
+     */
+    public byte[] getData() { return data; }
+
+
+
+    /**
+     * Accessor method
+     * @return length of the frame in bytes.
+     */
+    public int getLength() { return length; }
+
+
+
+    /**
+     * Accessor method
+     * @return size of the buffer in bytes.
+     */
+    public int getCapacity() { return data.length; }
+
+
+
+    /**
+     * Mutator method
+     * @param nanos
+     *        System.nanoTime() when the frame was received.
+     */
+    public void setTimestampNanos(long nanos) { timestampNanos = nanos; }
+
+
+
+    /**
+     * Accessor method
+     * @return System.nanoTime() when the frame was received, 0 if unknown.
+     */
+    public long getTimestampNanos() { return timestampNanos; }
+
+
+
+    /**
+     * Mutator method
+     * @param nanos
+     *        time spent blocked on the network while reading the frame.
+     */
+    public void setNetworkNanos(long nanos) { networkNanos = nanos; }
+
+
+
+    /**
+     * Accessor method
+     * @return time spent blocked on the network while reading the frame.
+     */
+    public long getNetworkNanos() { return networkNanos; }
+
+
+
+    /**
+     * Mutator method
+     * Sets when reading the frame started and ended, see
+     * {@link StreamMetrics#now()}.
+     * @param startNanos
+     *        start of the read, 0 if not timed.
+     * @param endNanos
+     *        end of the read, 0 if not timed.
+     */
+    public void setReadTime(long startNanos, long endNanos) {
+        readStartNanos = startNanos;
+        readEndNanos = endNanos;
+    }
+
+
+
+    /**
+     * Accessor method
+     * @return start of the read, 0 if not timed.
+     */
+    public long getReadStartNanos() { return readStartNanos; }
+
+
+
+    /**
+     * Accessor method
+     * @return end of the read, 0 if not timed.
+     */
+    public long getReadEndNanos() { return readEndNanos; }
+
+
+
+    /**
+     * Mutator method
+     * @param f
+     *        fingerprint of the frame from {@link FrameFingerprint}, 0 if
+     *        none.
+     */
+    public void setFingerprint(long f) { fingerprint = f; }
+
+
+
+    /**
+     * Accessor method
+     * @return fingerprint of the frame, 0 if not fingerprinted.
+     */
+    public long getFingerprint() { return fingerprint; }
+
+
+
+    /**
+     * Mutator method
+     * @param nanos
+     *        System.nanoTime() when the camera captured the frame, from the
+     *        server timestamp, 0 if unknown.
+     * @see ClockOffset#toLocalNanos(long)
+     */
+    public void setCaptureNanos(long nanos) { captureNanos = nanos; }
+
+
+
+    /**
+     * Accessor method
+     * @return System.nanoTime() when the camera captured the frame, 0 if
+     *         unknown.
+     */
+    public long getCaptureNanos() { return captureNanos; }
+}
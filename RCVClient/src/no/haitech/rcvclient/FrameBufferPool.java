@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvclient;
+
+/**
+ * Pool of frame buffers, so that reading frames does not allocate a new
+ * byte array for every frame.
+ * A hit is an acquire served from the pool, a miss is an acquire that had
+ * to allocate a new buffer.
+ * <p>
+ * A pool shared by several streams may be given a budget of bytes, for all
+ * of its buffers in use and free. Over the budget, free buffers are let go
+ * instead of kept, and {@link #isOverBudget()} tells the streams that are
+ * allowed to give way to drop frames.
+ *
+ * @author Thomas Le
+ * @see FrameBuffer
+ */
+public class FrameBufferPool {
+    /*
+     * Extra room given to new buffers, so slightly bigger frames later on
+     * still fit in them.
+     */
+    private final static int HEADROOM_DIVISOR = 4;
+
+    private final FrameBuffer[] free;
+    private final long maxBytes;
+    private int count;
+    private long bytes;
+    private long hits;
+    private long misses;
+
+
+
+    /**
+     * Constructor
+     * @param size
+     *        max number of free buffers kept in the pool.
+     */
+    public FrameBufferPool(int size) {
+        this(size, 0);
+    }
+
+
+
+    /**
+     * Constructor
+     * @param size
+     *        max number of free buffers kept in the pool.
+     * @param maxBytes
+     *        budget for the bytes of all buffers of the pool, in use and
+     *        free, 0 for no budget.
+     */
+    public FrameBufferPool(int size, long maxBytes) {
+        free = new FrameBuffer[size];
+        this.maxBytes = maxBytes;
+        count = 0;
+    }
+
+
+
+    /**
+     * Gets a buffer that can hold at least the given number of bytes.
+     * @param minCapacity
+     *        size of the frame in bytes.
+     * @return a free buffer.
+     */
+    public synchronized FrameBuffer acquire(int minCapacity) {
+        for(int i = count - 1; i >= 0; i--) {
+            FrameBuffer b = free[i];
+            if(b.getCapacity() >= minCapacity) {
+                free[i] = free[--count];
+                free[count] = null;
+                hits++;
+                b.reset();
+                return b;
+            }
+        }
+
+        misses++;
+        int capacity = minCapacity + (minCapacity / HEADROOM_DIVISOR);
+        bytes += capacity;
+        while(count > 0 && isOverBudget()) {
+            bytes -= free[--count].getCapacity();
+            free[count] = null;
+        }
+        return new FrameBuffer(this, capacity);
+    }
+
+
+
+    /*
+     * Puts the buffer back into the pool. If the pool is full, the smallest
+     * buffer is dropped, and over the budget the buffer itself is.
+     */
+    synchronized void release(FrameBuffer b) {
+        if(isOverBudget()) {
+            bytes -= b.getCapacity();
+            return;
+        }
+        if(count < free.length) {
+            free[count++] = b;
+            return;
+        }
+
+        int smallest = 0;
+        for(int i = 1; i < count; i++) {
+            if(free[i].getCapacity() < free[smallest].getCapacity()) {
+                smallest = i;
+            }
+        }
+        FrameBuffer dropped = free[smallest];
+        if(dropped.getCapacity() < b.getCapacity()) {
+            free[smallest] = b;
+        } else {
+            dropped = b;
+        }
+        bytes -= dropped.getCapacity();
+    }
+
+
+
+    /**
+     * Accessor method
+     * @return true if the buffers of the pool take more bytes than the
+     *         budget.
+     */
+    public synchronized boolean isOverBudget() {
+        return maxBytes > 0 && bytes > maxBytes;
+    }
+
+
+
+    /**
+     * Accessor method
+     * @return bytes of all buffers of the pool, in use and free.
+     */
+    public synchronized long getBytes() { return bytes; }
+
+
+
+    /**
+     * Accessor method
+     * @return number of acquires served from the pool.
+     */
+    public synchronized long getHits() { return hits; }
+
+
+
+    /**
+     * Accessor method
+     * @return number of acquires that allocated a new buffer.
+     */
+    public synchronized long getMisses() { return misses; }
+}
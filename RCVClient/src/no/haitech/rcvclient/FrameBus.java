@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvclient;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Publishes the frames of a stream to any number of subscribers, without
+ * copying them. A frame published is retained once per subscriber that
+ * takes it, and each subscriber releases it when done, so the display,
+ * the recorder and an analytics hook like a motion detector all see the
+ * same buffer.
+ * <p>
+ * Every subscription has a queue of its own, with one of three policies
+ * for when its subscriber falls behind:
+ * <ul>
+ * <li>{@link #POLICY_BLOCK} waits for room in the queue, for at most
+ *     {@link #setMaxBlock(long)}, and then drops the frame. The wait is
+ *     on a delivery thread of the subscription, behind an inbox of n
+ *     frames, never on the publisher. For consumers that need every
+ *     frame, like an analysis of a recording played back.</li>
+ * <li>{@link #POLICY_DROP_OLDEST} drops the oldest frame in the queue for
+ *     the new one, and never holds up the publisher.</li>
+ * <li>{@link #POLICY_SAMPLE} takes every n-th frame, and only keeps the
+ *     newest, for consumers that look at a few frames a second.</li>
+ * </ul>
+ * Publishing never waits for a subscriber. A subscriber that falls behind
+ * only loses frames itself, the publisher and the other subscribers go on
+ * at the rate of the stream.
+ *
+ * @param <F> type of the frames.
+ * @author Thomas Le
+ * @see StreamPipeline#getFrameBus()
+ * @see StreamPipeline#getImageBus()
+ */
+public class FrameBus<F extends RefCounted> {
+    /**
+     * Waits for room in the queue, on a delivery thread of its own.
+     */
+    public final static int POLICY_BLOCK = 0;
+
+    /**
+     * Drops the oldest queued frame for a new one when the queue is full.
+     */
+    public final static int POLICY_DROP_OLDEST = 1;
+
+    /**
+     * Takes every n-th frame, replacing the one queued.
+     */
+    public final static int POLICY_SAMPLE = 2;
+
+    private final static long NANOS_PER_MILLI = 1000000L;
+
+    private final CopyOnWriteArrayList<Subscription<F>> subscriptions;
+    private volatile long maxBlockNanos;
+
+
+
+    /**
+     * Constructor
+     * Frames for blocking subscribers wait for room as long as needed.
+     */
+    public FrameBus() {
+        subscriptions = new CopyOnWriteArrayList<Subscription<F>>();
+        maxBlockNanos = 0;
+    }
+
+
+
+    /**
+     * Subscribes to the frames published from now on.
+     * @param policy
+     *        POLICY_BLOCK, POLICY_DROP_OLDEST or POLICY_SAMPLE.
+     * @param n
+     *        max frames queued, or with POLICY_SAMPLE the n of every n-th
+     *        frame. At least 1.
+     * @return the subscription, to take the frames from.
+     */
+    public Subscription<F> subscribe(int policy, int n) {
+        if(policy < POLICY_BLOCK || policy > POLICY_SAMPLE || n < 1) {
+            throw new IllegalArgumentException("Bad subscription policy "
+                    + policy + " or n " + n);
+        }
+        Subscription<F> s = new Subscription<F>(this, policy, n);
+        subscriptions.add(s);
+        if(policy == POLICY_BLOCK) s.startDelivery();
+        return s;
+    }
+
+
+
+    /**
+     * Gives a frame to every subscriber that takes it, retaining it once
+     * for each. Never waits for a subscriber. Called by the one producer
+     * of the frames, which still holds the frame and releases it as
+     * before.
+     * @param f
+     *        the frame.
+     */
+    public void publish(F f) {
+        for(Subscription<F> s : subscriptions) s.offer(f);
+    }
+
+
+
+    /**
+     * Mutator method
+     * @param ms
+     *        max time a frame for a blocking subscriber waits for room in
+     *        its queue, in milliseconds, 0 for no limit.
+     */
+    public void setMaxBlock(long ms) { maxBlockNanos = ms * NANOS_PER_MILLI; }
+
+
+
+    /**
+     * Accessor method
+     * @return true if there are subscribers.
+     */
+    public boolean hasSubscribers() { return !subscriptions.isEmpty(); }
+
+
+
+    /*
+     * Removes a closed subscription.
+     */
+    private void remove(Subscription<F> s) {
+        subscriptions.remove(s);
+    }
+
+
+
+    /**
+     * The queue of one subscriber. Frames taken from it are the
+     * subscriber's to release.
+     *
+     * @param <F> type of the frames.
+     */
+    public static class Subscription<F extends RefCounted> {
+        private final FrameBus<F> bus;
+        private final int policy;
+        private final int n;
+        private final ArrayDeque<F> queue;  // guarded by this.
+        private final ArrayDeque<F> inbox;  // guarded by this.
+        private boolean closed;             // guarded by this.
+        private long published;             // guarded by this.
+        private long delivered;             // guarded by this.
+        private long dropped;               // guarded by this.
+
+
+
+        /*
+         * Constructor
+         */
+        private Subscription(FrameBus<F> bus, int policy, int n) {
+            this.bus = bus;
+            this.policy = policy;
+            this.n = n;
+            queue = new ArrayDeque<F>(policy == POLICY_SAMPLE ? 1 : n);
+            inbox = policy == POLICY_BLOCK ? new ArrayDeque<F>(n) : null;
+        }
+
+
+
+        /*
+         * Starts the thread moving the frames of a blocking subscription
+         * from the inbox to the queue.
+         */
+        private void startDelivery() {
+            Thread t = new Thread("FrameBus-delivery") {
+                @Override
+                public void run() {
+                    deliver();
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+
+
+
+        /*
+         * Queues a frame by the policy, retaining it if queued. A frame
+         * for a blocking subscriber goes to the inbox, dropping the oldest
+         * one there if full.
+         */
+        private synchronized void offer(F f) {
+            if(closed) return;
+            if(policy == POLICY_SAMPLE) {
+                if(published++ % n != 0) return;
+                F old = queue.poll();
+                if(old != null) {
+                    old.release();
+                    dropped++;
+                }
+            } else if(policy == POLICY_BLOCK) {
+                if(inbox.size() >= n) {
+                    inbox.poll().release();
+                    dropped++;
+                }
+                f.retain();
+                inbox.add(f);
+                notifyAll();
+                return;
+            } else if(queue.size() >= n) {
+                queue.poll().release();
+                dropped++;
+            }
+            f.retain();
+            queue.add(f);
+            notifyAll();
+        }
+
+
+
+        /*
+         * Moves the frames of a blocking subscription from the inbox to the
+         * queue, waiting for room, until closed. Runs on the delivery
+         * thread.
+         */
+        private synchronized void deliver() {
+            try {
+                while(true) {
+                    while(inbox.isEmpty() && !closed) wait();
+                    if(closed) return;
+                    F f = inbox.poll();
+                    if(!awaitRoom(bus.maxBlockNanos)) {
+                        f.release();
+                        dropped++;
+                        continue;
+                    }
+                    queue.add(f);
+                    notifyAll();
+                }
+            } catch (InterruptedException e) {
+                // Daemon thread, not interrupted by anyone.
+            }
+        }
+
+
+
+        /*
+         * Waits for room in the queue, or for the subscription to close.
+         * Returns false if there is still no room.
+         */
+        private boolean awaitRoom(long maxBlockNanos)
+                throws InterruptedException {
+            long deadline = System.nanoTime() + maxBlockNanos;
+            while(queue.size() >= n && !closed) {
+                if(maxBlockNanos == 0) {
+                    wait();
+                    continue;
+                }
+                long left = deadline - System.nanoTime();
+                if(left <= 0) return false;
+                wait(left / NANOS_PER_MILLI, (int) (left % NANOS_PER_MILLI));
+            }
+            return !closed;
+        }
+
+
+
+        /**
+         * Takes the oldest queued frame, waiting for one if there is none.
+         * @param timeoutMs
+         *        max time to wait in milliseconds.
+         * @return the frame, to release when done, or null on timeout or
+         *         if the subscription is closed.
+         * @throws InterruptedException if interrupted while waiting.
+         */
+        public synchronized F take(long timeoutMs)
+                throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while(queue.isEmpty() && !closed) {
+                long wait = deadline - System.currentTimeMillis();
+                if(wait <= 0) return null;
+                wait(wait);
+            }
+            return poll();
+        }
+
+
+
+        /**
+         * Takes the oldest queued frame without waiting.
+         * @return the frame, to release when done, or null if there is
+         *         none.
+         */
+        public synchronized F poll() {
+            F f = queue.poll();
+            if(f != null) {
+                delivered++;
+                notifyAll();
+            }
+            return f;
+        }
+
+
+
+        /**
+         * Unsubscribes, releasing the queued frames and waking up a waiting
+         * subscriber and the delivery thread, which then ends.
+         */
+        public void close() {
+            bus.remove(this);
+            synchronized(this) {
+                closed = true;
+                F f;
+                while((f = queue.poll()) != null) f.release();
+                if(inbox != null) {
+                    while((f = inbox.poll()) != null) f.release();
+                }
+                notifyAll();
+            }
+        }
+
+
+
+        /**
+         * Accessor method
+         * @return true if the subscription is closed.
+         */
+        public synchronized boolean isClosed() { return closed; }
+
+
+
+        /**
+         * Accessor method
+         * @return number of frames taken by the subscriber.
+         */
+        public synchronized long getDelivered() { return delivered; }
+
+
+
+        /**
+         * Accessor method
+         * @return number of frames dropped for this subscriber, or passed
+         *         over by sampling for a newer one.
+         */
+        public synchronized long getDropped() { return dropped; }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvclient;
+
+import java.util.zip.CRC32;
+
+/**
+ * Fingerprint of the compressed bytes of a JPEG frame, to tell a frame
+ * that repeats the one before from a new one without decoding either.
+ * A parked vehicle sees the same scene, and most cameras then encode the
+ * same bytes frame after frame.
+ * <p>
+ * The fingerprint is a CRC32 of the frame and the number of bytes hashed.
+ * APPn and COM segments are left out, as cameras write a timestamp or
+ * frame counter in them that changes every frame while the image does
+ * not. The CRC runs in native code on Android and as an intrinsic on the
+ * JVM, at about a byte per cycle, far below the cost of a decode.
+ * <p>
+ * Not thread safe, use one per reading thread.
+ *
+ * @author Thomas Le
+ * @see MjpegFrameSource
+ * @see StreamPipeline#setSkipUnchanged(boolean)
+ */
+public class FrameFingerprint {
+    private final static int MARKER_PREFIX = 0xFF;
+    private final static int SOI = 0xD8;
+    private final static int SOS = 0xDA;
+    private final static int APP0 = 0xE0;
+    private final static int APP15 = 0xEF;
+    private final static int COM = 0xFE;
+
+    private final CRC32 crc;
+
+
+
+    /**
+     * Constructor
+     */
+    public FrameFingerprint() {
+        crc = new CRC32();
+    }
+
+
+
+    /**
+     * Method to fingerprint a JPEG frame. A frame whose headers cannot be
+     * walked is hashed whole.
+     *
+     * @param b
+     *        array holding the JPEG.
+     * @param off
+     *        offset of the JPEG in b.
+     * @param len
+     *        length of the JPEG in bytes.
+     * @return the fingerprint, never 0.
+     */
+    public long compute(byte[] b, int off, int len) {
+        crc.reset();
+        int hashed = hashSegments(b, off, len);
+        if(hashed < 0) {
+            crc.reset();
+            crc.update(b, off, len);
+            hashed = len;
+        }
+        long f = (crc.getValue() << 32) | (hashed & 0xFFFFFFFFL);
+        return f != 0 ? f : 1;
+    }
+
+
+
+    /*
+     * Hashes the marker segments up to the SOS, except APPn and COM, and
+     * then all of the image data. Returns the number of bytes hashed, or -1
+     * if the headers are broken.
+     */
+    private int hashSegments(byte[] b, int off, int len) {
+        int end = off + len;
+        if(len < 4 || (b[off] & 0xFF) != MARKER_PREFIX
+                || (b[off + 1] & 0xFF) != SOI) {
+            return -1;
+        }
+
+        int hashed = 0;
+        int i = off + 2;
+        while(i + 4 <= end) {
+            if((b[i] & 0xFF) != MARKER_PREFIX) return -1;
+            int marker = b[i + 1] & 0xFF;
+            if(marker == MARKER_PREFIX) {
+                i++;
+                continue;
+            }
+
+            int length = ((b[i + 2] & 0xFF) << 8) | (b[i + 3] & 0xFF);
+            if(length < 2 || i + 2 + length > end) return -1;
+            if(marker == SOS) {
+                // The scan header and the image data up to the end.
+                crc.update(b, i, end - i);
+                return hashed + end - i;
+            }
+            if(marker != COM && (marker < APP0 || marker > APP15)) {
+                crc.update(b, i, 2 + length);
+                hashed += 2 + length;
+            }
+            i += 2 + length;
+        }
+        return -1;
+    }
+}
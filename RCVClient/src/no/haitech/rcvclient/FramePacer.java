@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvclient;
+
+/**
+ * Decides at which display vsync a new frame is presented, so the display
+ * never runs faster than a max frame rate.
+ * A frame is presented at the first vsync at least one frame interval
+ * after the previous one, with half a vsync of slack so that a cap that
+ * divides the refresh rate (30 fps on a 60 Hz display) hits every second
+ * vsync exactly.
+ *
+ * @author Thomas Le
+ * @see CameraView
+ */
+public class FramePacer {
+    private final static long NANOS_PER_SECOND = 1000000000L;
+
+    private long minIntervalNanos;
+    private long lastPresentNanos;
+    private boolean hasPresented;
+
+
+
+    /**
+     * Constructor
+     * @param maxFps
+     *        max frames per second, 0 for no cap.
+     */
+    public FramePacer(int maxFps) {
+        setMaxFps(maxFps);
+        hasPresented = false;
+    }
+
+
+
+    /**
+     * Mutator method
+     * @param maxFps
+     *        max frames per second, 0 for no cap.
+     */
+    public synchronized void setMaxFps(int maxFps) {
+        minIntervalNanos = maxFps > 0 ? NANOS_PER_SECOND / maxFps : 0;
+    }
+
+
+
+    /**
+     * Called at a vsync while a frame is waiting.
+     * @param vsyncNanos
+     *        time of the vsync in nanoseconds.
+     * @param vsyncPeriodNanos
+     *        time between two vsyncs in nanoseconds.
+     * @return true if the frame should be presented at this vsync, false to
+     *         wait for a later one.
+     */
+    public synchronized boolean shouldPresent(long vsyncNanos,
+            long vsyncPeriodNanos) {
+        if(hasPresented && vsyncNanos - lastPresentNanos 
+                + (vsyncPeriodNanos / 2) < minIntervalNanos) {
+            return false;
+        }
+        lastPresentNanos = vsyncNanos;
+        hasPresented = true;
+        return true;
+    }
+
+
+
+    /**
+     * Forgets the last presented frame, the next frame is presented at the
+     * first vsync.
+     */
+    public synchronized void reset() {
+        hasPresented = false;
+    }
+}
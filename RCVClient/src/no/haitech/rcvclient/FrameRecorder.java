@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvclient;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the compressed frames of a stream, as received, to a segment
+ * file with a side index.
+ * The segment holds the JPEG frames back to back, so it plays as a bare
+ * MJPEG file. The index starts with a header, followed by one record per
+ * frame:
+ * <pre>
+ * header, INDEX_HEADER_LENGTH bytes, big endian
+ *  0  magic       INDEX_MAGIC ("RCVI")
+ *  4  version     INDEX_VERSION
+ *  8  start       long, wall clock of the first frame in milliseconds
+ * record, INDEX_RECORD_LENGTH bytes, big endian
+ *  0  offset      long, offset of the frame in the segment
+ *  8  length      int, length of the frame in bytes
+ * 12  time        int, milliseconds since the first frame
+ * </pre>
+ * <p>
+ * {@link #record(FrameBuffer)} shares the frame buffer with the recorder
+ * and returns at once. A writer thread writes the queued frames in
+ * batches, straight from the frame buffers with one gathering write, and
+ * then gives the buffers back. When the disk can not keep up the queue
+ * fills, and new frames are dropped rather than held up, so the live view
+ * never waits for the recorder.
+ *
+ * @author Thomas Le
+ * @see CameraView#setRecorder(FrameRecorder)
+ */
+public class FrameRecorder {
+    /**
+     * File name extension of the segment.
+     */
+    public final static String SEGMENT_EXTENSION = ".mjpg";
+
+    /**
+     * File name extension of the index.
+     */
+    public final static String INDEX_EXTENSION = ".idx";
+
+    /**
+     * First four bytes of the index, "RCVI".
+     */
+    public final static int INDEX_MAGIC = 0x52435649;
+
+    /**
+     * Version of the index layout.
+     */
+    public final static int INDEX_VERSION = 1;
+
+    /**
+     * Length of the index header in bytes.
+     */
+    public final static int INDEX_HEADER_LENGTH = 16;
+
+    /**
+     * Length of an index record in bytes.
+     */
+    public final static int INDEX_RECORD_LENGTH = 16;
+
+    private final static int QUEUE_LENGTH = 64;
+    private final static int BATCH_MAX = 16;
+    private final static long NANOS_PER_MILLI = 1000000L;
+    private final static long POLL_TIMEOUT_MS = 500;
+
+    private final File segmentFile;
+    private final File indexFile;
+    private final BlockingQueue<FrameBuffer> queue;
+    private volatile boolean isRecording;
+    private volatile long framesWritten;
+    private volatile long bytesWritten;
+    private volatile long dropped;
+    private volatile IOException lastError;
+    private WriterThread thread;
+
+
+
+    /**
+     * Constructor
+     * The files are created when recording starts.
+     * @param dir
+     *        directory of the recording.
+     * @param name
+     *        name of the recording, without extension.
+     */
+    public FrameRecorder(File dir, String name) {
+        segmentFile = new File(dir, name + SEGMENT_EXTENSION);
+        indexFile = new File(dir, name + INDEX_EXTENSION);
+        queue = new ArrayBlockingQueue<FrameBuffer>(QUEUE_LENGTH);
+    }
+
+
+
+    /**
+     * Starts the writer thread, which creates the files. A recorder records
+     * once, make a new one for the next recording.
+     */
+    public synchronized void start() {
+        if(thread != null) return;
+        isRecording = true;
+        thread = new WriterThread();
+        thread.start();
+    }
+
+
+
+    /**
+     * Stops recording. The frames already queued are written, and the files
+     * closed, on the writer thread.
+     */
+    public synchronized void stop() {
+        isRecording = false;
+    }
+
+
+
+    /**
+     * Waits for the writer thread to write the queued frames and close the
+     * files, after {@link #stop()}.
+     * @param timeoutMs
+     *        max time to wait, 0 to wait for ever.
+     * @return true if the writer is done.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitFinished(long timeoutMs)
+            throws InterruptedException {
+        Thread t;
+        synchronized(this) {
+            t = thread;
+        }
+        if(t == null) return true;
+        t.join(timeoutMs);
+        return !t.isAlive();
+    }
+
+
+
+    /**
+     * Queues a frame for the recording. The recorder takes its own
+     * reference to the buffer, the caller keeps its own.
+     * @param f
+     *        the frame, with its timestamp set.
+     * @return true if queued, false if dropped because the writer is behind
+     *         or not recording.
+     */
+    public boolean record(FrameBuffer f) {
+        if(!isRecording) return false;
+        f.retain();
+        if(queue.offer(f)) {
+            // Stopped meanwhile, the writer may have drained the queue for
+            // the last time. Taken back unless the writer got it.
+            if(!isRecording && queue.remove(f)) {
+                f.release();
+                return false;
+            }
+            return true;
+        }
+        f.release();
+        dropped++;
+        return false;
+    }
+
+
+
+    /**
+     * Accessor method
+     * @return true while recording.
+     */
+    public boolean isRecording() { return isRecording; }
+
+
+
+    /**
+     * Accessor method
+     * @return the segment file.
+     */
+    public File getSegmentFile() { return segmentFile; }
+
+
+
+    /**
+     * Accessor method
+     * @return the index file.
+     */
+    public File getIndexFile() { return indexFile; }
+
+
+
+    /**
+     * Accessor method
+     * @return number of frames written.
+     */
+    public long getFramesWritten() { return framesWritten; }
+
+
+
+    /**
+     * Accessor method
+     * @return number of frame bytes written.
+     */
+    public long getBytesWritten() { return bytesWritten; }
+
+
+
+    /**
+     * Accessor method
+     * @return number of frames dropped because the writer was behind.
+     */
+    public long getDropped() { return dropped; }
+
+
+
+    /**
+     * Accessor method
+     * @return the error that stopped the recording, or null.
+     */
+    public IOException getLastError() { return lastError; }
+
+
+
+    /*
+     * Thread writing the queued frames to the files.
+     */
+    private class WriterThread extends Thread {
+        private final List<FrameBuffer> batch;
+        private final ByteBuffer[] frames;
+        private final ByteBuffer records;
+        private FileChannel segment;
+        private FileChannel index;
+        private long segmentOffset;
+        private long startNanos;
+
+
+
+        /**
+         * Constructor
+         */
+        public WriterThread() {
+            super("FrameRecorder");
+            setPriority(Thread.MIN_PRIORITY);
+            batch = new ArrayList<FrameBuffer>(BATCH_MAX);
+            frames = new ByteBuffer[BATCH_MAX];
+            records = ByteBuffer.allocate(BATCH_MAX * INDEX_RECORD_LENGTH);
+        }
+
+
+
+        @Override
+        public void run() {
+            try {
+                open();
+                while(isRecording || !queue.isEmpty()) {
+                    FrameBuffer f = queue.poll(POLL_TIMEOUT_MS,
+                            TimeUnit.MILLISECONDS);
+                    if(f == null) continue;
+                    batch.add(f);
+                    queue.drainTo(batch, BATCH_MAX - 1);
+                    write();
+                }
+                segment.force(false);
+                index.force(false);
+            } catch (IOException e) {
+                lastError = e;
+            } catch (InterruptedException e) {
+                lastError = new IOException("Recorder interrupted");
+            } finally {
+                isRecording = false;
+                releaseBatch();
+                FrameBuffer f;
+                while((f = queue.poll()) != null) f.release();
+                close();
+            }
+        }
+
+
+
+        /*
+         * Creates the files and writes the index header.
+         */
+        private void open() throws IOException {
+            segment = new FileOutputStream(segmentFile).getChannel();
+            index = new FileOutputStream(indexFile).getChannel();
+            ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_LENGTH);
+            header.putInt(INDEX_MAGIC);
+            header.putInt(INDEX_VERSION);
+            header.putLong(System.currentTimeMillis());
+            header.flip();
+            writeFully(index, header);
+            segmentOffset = 0;
+            startNanos = 0;
+        }
+
+
+
+        /*
+         * Writes the batch, with one gathering write for the frames and one
+         * write for their index records.
+         */
+        private void write() throws IOException {
+            int n = batch.size();
+            records.clear();
+            for(int i = 0; i < n; i++) {
+                FrameBuffer f = batch.get(i);
+                long t = f.getTimestampNanos();
+                if(startNanos == 0) startNanos = t;
+                records.putLong(segmentOffset);
+                records.putInt(f.getLength());
+                records.putInt((int) ((t - startNanos) / NANOS_PER_MILLI));
+                frames[i] = ByteBuffer.wrap(f.getData(), 0, f.getLength());
+                segmentOffset += f.getLength();
+            }
+            records.flip();
+
+            long total = segmentOffset;
+            int first = 0;
+            while(first < n) {
+                segment.write(frames, first, n - first);
+                while(first < n && !frames[first].hasRemaining()) first++;
+            }
+            writeFully(index, records);
+
+            framesWritten += n;
+            bytesWritten = total;
+            for(int i = 0; i < n; i++) frames[i] = null;
+            releaseBatch();
+        }
+
+
+
+        /*
+         * Gives the buffers of the batch back.
+         */
+        private void releaseBatch() {
+            for(FrameBuffer f : batch) f.release();
+            batch.clear();
+        }
+
+
+
+        /*
+         * Closes the files, if open.
+         */
+        private void close() {
+            try {
+                if(segment != null) segment.close();
+                if(index != null) index.close();
+            } catch (IOException e) {
+                if(lastError == null) lastError = e;
+            }
+        }
+    }
+
+
+
+    /*
+     * Writes all bytes of the buffer.
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer b)
+            throws IOException {
+        while(b.hasRemaining()) channel.write(b);
+    }
+}
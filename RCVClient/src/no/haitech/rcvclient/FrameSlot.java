@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvclient;
+
+/**
+ * Single slot handoff between two threads where the latest frame wins.
+ * Offering a frame replaces the one waiting in the slot, and the replaced
+ * stale frame is given back to the producer so it can be reused. The
+ * consumer always takes the newest frame, and a slow consumer never holds
+ * up the producer.
+ *
+ * @author Thomas Le
+ * @see CameraView
+ * @param <T> type of frame.
+ */
+public class FrameSlot<T> {
+    private T item;
+    private boolean closed;
+    private long dropped;
+
+
+
+    /**
+     * Puts a frame in the slot, waking up a waiting consumer.
+     * @param t
+     *        the new frame.
+     * @return the stale frame that was replaced, or null.
+     */
+    public synchronized T offer(T t) {
+        T old = item;
+        item = t;
+        if(old != null) dropped++;
+        notifyAll();
+        return old;
+    }
+
+
+
+    /**
+     * Takes the frame from the slot without waiting.
+     * @return the frame, or null if the slot is empty.
+     */
+    public synchronized T poll() {
+        T t = item;
+        item = null;
+        return t;
+    }
+
+
+
+    /**
+     * Takes the frame from the slot, waiting for one if it is empty.
+     * @param timeoutMs
+     *        max time to wait in milliseconds.
+     * @return the frame, or null on timeout or if the slot is closed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public synchronized T take(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while(item == null && !closed) {
+            long wait = deadline - System.currentTimeMillis();
+            if(wait <= 0) return null;
+            wait(wait);
+        }
+        return poll();
+    }
+
+
+
+    /**
+     * Closes the slot, waking up a waiting consumer.
+     * @return the frame left in the slot, or null.
+     */
+    public synchronized T close() {
+        closed = true;
+        notifyAll();
+        return poll();
+    }
+
+
+
+    /**
+     * Accessor method
+     * @return true if the slot is closed.
+     */
+    public synchronized boolean isClosed() { return closed; }
+
+
+
+    /**
+     * Accessor method
+     * @return number of stale frames replaced before they were taken.
+     */
+    public synchronized long getDropped() { return dropped; }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvclient;
+
+import java.io.IOException;
+
+/**
+ * A source of compressed JPEG frames, like a camera stream.
+ *
+ * @author Thomas Le
+ * @see MjpegFrameSource
+ * @see StreamPipeline
+ */
+public interface FrameSource {
+    /**
+     * Reads the next frame, blocking until it is available.
+     *
+     * @param pool
+     *        pool to get the frame buffer from.
+     * @return the next frame, release it when done.
+     * @throws IOException if there is an error while reading data, or the
+     *         source has ended.
+     */
+    FrameBuffer readFrame(FrameBufferPool pool) throws IOException;
+
+    /**
+     * Closes the source. A blocked {@link #readFrame(FrameBufferPool)}
+     * returns with an IOException.
+     *
+     * @throws IOException Something went wrong while closing.
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvclient;
+
+/**
+ * Reads the image size from the SOF (start of frame) marker of a JPEG,
+ * without decoding it. Walks the marker segments from the SOI up to the
+ * SOF, so it only looks at the first few hundred bytes of a frame.
+ * The same walk up to the SOS (start of scan) checks that the headers of
+ * a frame are whole, see {@link #readHeaderLength(byte[], int, int)}.
+ *
+ * @author Thomas Le
+ * @see BitmapDecoder
+ * @see {@link http://www.w3.org/Graphics/JPEG/itu-t81.pdf}
+ */
+public final class JpegHeader {
+    private final static int MARKER_PREFIX = 0xFF;
+    private final static int SOI = 0xD8;
+    private final static int SOS = 0xDA;
+    private final static int EOI = 0xD9;
+
+
+
+    private JpegHeader() {
+    }
+
+
+
+    /**
+     * Method to read the size of a JPEG image.
+     *
+     * @param b
+     *        array holding the JPEG.
+     * @param off
+     *        offset of the JPEG in b.
+     * @param len
+     *        length of the JPEG in bytes.
+     * @return the size packed as (width << 16) | height, in a long so the
+     *         full 16 bit width stays positive, -1 if the frame is not a
+     *         JPEG or has no SOF marker before the image data.
+     * @see #width(long)
+     * @see #height(long)
+     */
+    public static long readSize(byte[] b, int off, int len) {
+        int end = off + len;
+        if(len < 4 || (b[off] & 0xFF) != MARKER_PREFIX
+                || (b[off + 1] & 0xFF) != SOI) {
+            return -1;
+        }
+
+        int i = off + 2;
+        while(i + 4 <= end) {
+            if((b[i] & 0xFF) != MARKER_PREFIX) return -1;
+            int marker = b[i + 1] & 0xFF;
+            if(marker == MARKER_PREFIX) {
+                // Fill byte in front of a marker.
+                i++;
+                continue;
+            }
+            if(marker == SOS || marker == EOI) return -1;
+
+            int length = ((b[i + 2] & 0xFF) << 8) | (b[i + 3] & 0xFF);
+            if(isStartOfFrame(marker)) {
+                if(i + 9 > end) return -1;
+                int height = ((b[i + 5] & 0xFF) << 8) | (b[i + 6] & 0xFF);
+                int width = ((b[i + 7] & 0xFF) << 8) | (b[i + 8] & 0xFF);
+                return ((long) width << 16) | height;
+            }
+            i += 2 + length;
+        }
+        return -1;
+    }
+
+
+
+    /**
+     * Method to check the marker segments of a JPEG image, from the SOI to
+     * the end of the SOS header, where the image data starts. Every
+     * segment must start with a marker and fit in the image.
+     *
+     * @param b
+     *        array holding the JPEG.
+     * @param off
+     *        offset of the JPEG in b.
+     * @param len
+     *        length of the JPEG in bytes.
+     * @return length of the headers up to the image data, -1 if the frame
+     *         is not a JPEG, or a segment is broken or cut short.
+     */
+    public static int readHeaderLength(byte[] b, int off, int len) {
+        int end = off + len;
+        if(len < 4 || (b[off] & 0xFF) != MARKER_PREFIX
+                || (b[off + 1] & 0xFF) != SOI) {
+            return -1;
+        }
+
+        int i = off + 2;
+        while(i + 4 <= end) {
+            if((b[i] & 0xFF) != MARKER_PREFIX) return -1;
+            int marker = b[i + 1] & 0xFF;
+            if(marker == MARKER_PREFIX) {
+                i++;
+                continue;
+            }
+            if(marker == SOI || marker == EOI) return -1;
+
+            int length = ((b[i + 2] & 0xFF) << 8) | (b[i + 3] & 0xFF);
+            if(length < 2) return -1;
+            i += 2 + length;
+            if(i > end) return -1;
+            if(marker == SOS) return i - off;
+        }
+        return -1;
+    }
+
+
+
+    /**
+     * @param size
+     *        size from {@link #readSize(byte[], int, int)}.
+     * @return width of the image in pixels.
+     */
+    public static int width(long size) { return (int) (size >>> 16); }
+
+
+
+    /**
+     * @param size
+     *        size from {@link #readSize(byte[], int, int)}.
+     * @return height of the image in pixels.
+     */
+    public static int height(long size) { return (int) (size & 0xFFFF); }
+
+
+
+    /*
+     * SOF0 to SOF15, except DHT (0xC4), JPG (0xC8) and DAC (0xCC).
+     */
+    private static boolean isStartOfFrame(int marker) {
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4
+                && marker != 0xC8 && marker != 0xCC;
+    }
+}
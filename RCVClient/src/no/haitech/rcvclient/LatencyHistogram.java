@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvclient;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of latencies in microseconds.
+ * Buckets are log-linear: every power of two is split into 8 buckets, so a
+ * percentile is within 12.5% of the recorded value, from 1 microsecond up
+ * to about 30 minutes. Recording is a few atomic adds and never blocks, so
+ * it can be called from every stage of the frame pipeline.
+ *
+ * @author Thomas Le
+ * @see StreamMetrics
+ */
+public class LatencyHistogram {
+    private final static int SUB_BITS = 3;
+    private final static int SUB_COUNT = 1 << SUB_BITS;
+    private final static int MAX_EXPONENT = 40;
+    private final static int BUCKET_COUNT = 
+            (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT;
+
+    private final AtomicLongArray buckets;
+    private final AtomicLong count;
+    private final AtomicLong sum;
+    private final AtomicLong max;
+
+
+
+    /**
+     * Constructor
+     */
+    public LatencyHistogram() {
+        buckets = new AtomicLongArray(BUCKET_COUNT);
+        count = new AtomicLong();
+        sum = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+
+
+    /**
+     * Records a latency.
+     * @param nanos
+     *        the latency in nanoseconds, negative values are ignored.
+     */
+    public void record(long nanos) {
+        if(nanos < 0) return;
+        long micros = nanos / 1000L;
+
+        buckets.incrementAndGet(indexOf(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+        long m = max.get();
+        while(micros > m && !max.compareAndSet(m, micros)) m = max.get();
+    }
+
+
+
+    /**
+     * Gets the latency at the given percentile.
+     * @param p
+     *        percentile from 0 to 1, like 0.99.
+     * @return upper bound of the bucket holding the percentile in
+     *         microseconds, 0 if nothing is recorded.
+     */
+    public long getPercentile(double p) {
+        long total = count.get();
+        if(total == 0) return 0;
+
+        long target = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for(int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets.get(i);
+            if(seen >= target) {
+                return Math.min(lowerBoundOf(i + 1) - 1, max.get());
+            }
+        }
+        return max.get();
+    }
+
+
+
+    /**
+     * Accessor method
+     * @return number of recorded latencies.
+     */
+    public long getCount() { return count.get(); }
+
+
+
+    /**
+     * Accessor method
+     * @return mean latency in microseconds, 0 if nothing is recorded.
+     */
+    public long getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : sum.get() / n;
+    }
+
+
+
+    /**
+     * Accessor method
+     * @return max latency in microseconds.
+     */
+    public long getMax() { return max.get(); }
+
+
+
+    /**
+     * Clears the histogram. Latencies recorded at the same time may be
+     * partly lost.
+     */
+    public void reset() {
+        for(int i = 0; i < BUCKET_COUNT; i++) buckets.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+
+
+    /*
+     * Bucket of a value: values below SUB_COUNT have their own bucket,
+     * above that SUB_COUNT buckets per power of two.
+     */
+    private static int indexOf(long v) {
+        if(v < SUB_COUNT) return (int) v;
+        int exponent = 63 - Long.numberOfLeadingZeros(v);
+        if(exponent > MAX_EXPONENT) return BUCKET_COUNT - 1;
+        int sub = (int) (v >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+
+
+    /*
+     * Smallest value that goes in the bucket.
+     */
+    private static long lowerBoundOf(int index) {
+        if(index < SUB_COUNT) return index;
+        int exponent = index / SUB_COUNT + SUB_BITS - 1;
+        int sub = index % SUB_COUNT;
+        return ((long) (SUB_COUNT + sub)) << (exponent - SUB_BITS);
+    }
+}
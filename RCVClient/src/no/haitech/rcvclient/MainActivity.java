@@ -22,6 +22,8 @@ import android.os.Bundle;
 import android.app.Activity;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.Menu;
 import android.view.View;
 import android.view.WindowManager;
@@ -31,8 +33,11 @@ import android.widget.EditText;
 /**
  * Main Activity.
  * Handling the login screen.
+ * The camera streams and the vehicle control link are opened as soon as
+ * the credentials are entered, and handed to the vehicle screen warm.
  * 
  * @author Thomas Le
+ * @see ConnectionManager
  */
 public class MainActivity extends Activity {
     private final String LOGIN = "no.haitech.rcvclient.LOGIN";
@@ -51,6 +56,7 @@ public class MainActivity extends Activity {
     // Variables
     private String sUsername;
     private String sPassword;
+    private boolean connecting;
     
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -76,6 +82,20 @@ public class MainActivity extends Activity {
             cbRememberMe.setChecked(true);
         }
         
+        // Opens the connections once both fields are filled in.
+        TextWatcher credentialsWatcher = credentialsWatcher();
+        etUsername.addTextChangedListener(credentialsWatcher);
+        etPassword.addTextChangedListener(credentialsWatcher);
+        warmUpIfEntered();
+    }
+    
+    
+    
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // Left without connecting, the warm connections are not needed.
+        if(!connecting) ConnectionManager.getInstance().cancel();
     }
 
     
@@ -97,6 +117,8 @@ public class MainActivity extends Activity {
      * @param view
      */
     public void onConnect(View view) {
+        long connectNanos = System.nanoTime();
+        warmUp();
         sUsername = etUsername.getText().toString();
         sPassword = etPassword.getText().toString();
         
@@ -110,9 +132,65 @@ public class MainActivity extends Activity {
         }
         
         iVehicle = new Intent(this, VehicleActivity.class);
+        iVehicle.putExtra(VehicleActivity.EXTRA_CONNECT_NANOS, connectNanos);
         
+        connecting = true;
         startActivity(iVehicle);
         finish();
     }
+    
+    
+    
+    /**
+     * TextWatcher for the username and password fields.
+     * Opens the connections once both are filled in.
+     * @return TextWatcher
+     */
+    private TextWatcher credentialsWatcher() {
+        return new TextWatcher() {
+            @Override
+            public void afterTextChanged(Editable s) {
+                warmUpIfEntered();
+            }
+            
+            @Override
+            public void beforeTextChanged(CharSequence s, int start,
+                    int count, int after) {
+            }
+            
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before,
+                    int count) {
+            }
+        };
+    }
+    
+    
+    
+    /*
+     * Opens the connections if both credentials are entered.
+     */
+    private void warmUpIfEntered() {
+        if(etUsername.length() > 0 && etPassword.length() > 0) warmUp();
+    }
+    
+    
+    
+    /*
+     * Opens the camera streams and the vehicle control link in the
+     * background, for the vehicle screen to take. Already open
+     * connections are kept.
+     */
+    private void warmUp() {
+        ConnectionManager manager = ConnectionManager.getInstance();
+        manager.warmStream(getResources(), ConnectionManager.getFirstUrl(
+                getResources(), getString(R.string.camera_url)));
+        String rear = getString(R.string.camera_rear_url);
+        if(rear.length() > 0) {
+            manager.warmStream(getResources(),
+                    ConnectionManager.getFirstUrl(getResources(), rear));
+        }
+        manager.warmControl(getResources());
+    }
 
 }
@@ -0,0 +1,620 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Single pass scanner that extracts JPEG frames from a multipart MJPEG
+ * stream.
+ * The scanner reads the stream in large chunks into its own buffer and
+ * searches the buffer directly for the SOI/EOI markers and the multipart
+ * boundary. A found frame is handed back as an offset and length into that
+ * buffer, so the frame bytes are never rewound or copied one by one.
+ * <p>
+ * Every frame found is checked before it is handed back: its headers must
+ * be whole up to the image data, the image data must not hold the start
+ * of another image, and it must end with the end of image marker. A
+ * broken frame is skipped. When a truncated frame ran into the next one,
+ * scanning starts again at the start of image inside it, so the next
+ * frame is not lost with the broken one.
+ * <p>
+ * In skip to newest mode, a frame is only handed back if no later whole
+ * frame has already been read into the buffer. When the reader falls
+ * behind the network, the stale frames it has buffered are passed over
+ * without being copied or decoded, so the frame shown is never older than
+ * the data read, see {@link #setSkipToNewest(boolean)}.
+ * <p>
+ * The buffer starts small and doubles when a frame does not fit, up to a
+ * hard cap, so it ends up sized to the largest frame seen rather than to
+ * the largest frame possible. After a long run of frames that would fit
+ * in a quarter of it, it is halved again, down to the size it started
+ * with. A frame larger than the cap is an error, see
+ * {@link #setMaxCapacity(int)}.
+ * <p>
+ * The frame returned by {@link #nextFrame()} is valid until the next call
+ * to {@link #nextFrame()}. The buffer it is in may change between calls.
+ *
+ * @author Thomas Le
+ * @see MjpegFrameSource
+ */
+public class MjpegFrameScanner {
+    /**
+     * First byte of every JPEG marker.
+     */
+    private final static byte MARKER_PREFIX = (byte) 0xFF;
+
+    /**
+     * Second byte of the start of image marker (0xFF, 0xD8).
+     */
+    private final static byte SOI = (byte) 0xD8;
+
+    /**
+     * Second byte of the end of image marker (0xFF, 0xD9).
+     */
+    private final static byte EOI = (byte) 0xD9;
+
+    /*
+     * Max bytes kept in front of a SOI marker while searching for it.
+     * Anything before that is garbage and not part of the frame header.
+     */
+    private final static int HEADER_MAX_LENGTH = 1024;
+
+    /*
+     * Max bytes, like line breaks, allowed after the end of image marker
+     * of a frame.
+     */
+    private final static int TRAILER_MAX_LENGTH = 16;
+
+    /**
+     * Default hard cap of the scan buffer in bytes, room for the largest
+     * frames of a 1080p camera at high quality.
+     */
+    public final static int DEFAULT_MAX_CAPACITY = 8 * 1024 * 1024;
+
+    /*
+     * Frames in a row that must fit in a quarter of the buffer before it
+     * is halved, about ten seconds of a 30 fps stream.
+     */
+    private final static int SHRINK_FRAMES = 300;
+
+    private final InputStream in;
+    private final ReadableByteChannel channel;
+    private final int minCapacity;
+    private int maxCapacity;
+    private ByteBuffer view;            // buffer, for channel reads.
+    private byte[] buffer;
+    private int smallFrames;    // frames in a row fitting a quarter.
+    private int smallPeak;      // largest of them, with its header.
+    private int start;          // first byte not yet consumed.
+    private int end;            // first byte after the valid data.
+    private int frameOffset;
+    private int frameLength;
+    private long timestamp;
+    private long ioNanos;
+    private int rejects;
+    private int skips;
+    private boolean skipToNewest;
+    private boolean eof;
+    private byte[] boundary;
+    private int[] boundarySkip;
+
+
+
+    /**
+     * Constructor
+     * @param in
+     *        a valid InputStream, read in chunks. Should not be buffered.
+     * @param capacity
+     *        size the scan buffer starts at in bytes, and never shrinks
+     *        below.
+     */
+    public MjpegFrameScanner(InputStream in, int capacity) {
+        this.in = in;
+        channel = null;
+        buffer = new byte[capacity];
+        view = null;
+        minCapacity = capacity;
+        maxCapacity = Math.max(capacity, DEFAULT_MAX_CAPACITY);
+        start = 0;
+        end = 0;
+    }
+
+
+
+    /**
+     * Constructor
+     * The channel reads straight into the scan buffer, like
+     * {@link MjpegStreamClient} does from its socket.
+     * @param channel
+     *        a valid channel, read in chunks.
+     * @param capacity
+     *        size the scan buffer starts at in bytes, and never shrinks
+     *        below.
+     */
+    public MjpegFrameScanner(ReadableByteChannel channel, int capacity) {
+        in = null;
+        this.channel = channel;
+        buffer = new byte[capacity];
+        view = ByteBuffer.wrap(buffer);
+        minCapacity = capacity;
+        maxCapacity = Math.max(capacity, DEFAULT_MAX_CAPACITY);
+        start = 0;
+        end = 0;
+    }
+
+
+
+    /**
+     * Scans to the next whole frame in the stream, skipping broken frames.
+     *
+     * @return true if a frame was found, false on end of stream.
+     * @throws IOException if there is an error while reading data, or the
+     *         frame is larger than the max capacity.
+     */
+    public boolean nextFrame() throws IOException {
+        ioNanos = 0;
+        rejects = 0;
+        skips = 0;
+        if(smallFrames >= SHRINK_FRAMES) shrink();
+        if(!nextWholeFrame(true)) return false;
+
+        // Looks ahead in the buffer only, never waiting for the stream.
+        while(skipToNewest) {
+            int lastStart = start;
+            int lastOffset = frameOffset;
+            int lastLength = frameLength;
+            long lastTimestamp = timestamp;
+            int lastRejects = rejects;
+            if(!nextWholeFrame(false)) {
+                start = lastStart;
+                frameOffset = lastOffset;
+                frameLength = lastLength;
+                timestamp = lastTimestamp;
+                rejects = lastRejects;
+                break;
+            }
+            skips++;
+        }
+        return true;
+    }
+
+
+
+    /*
+     * Scans to the next frame that passes the check, skipping broken ones.
+     * Returns false on end of stream, or at the end of the buffered data if
+     * not allowed to read.
+     */
+    private boolean nextWholeFrame(boolean mayRead) throws IOException {
+        while(scanFrame(mayRead)) {
+            if(checkFrame()) return true;
+            rejects++;
+        }
+        return false;
+    }
+
+
+
+    /*
+     * Scans to the next frame in the stream, whole or not.
+     * Returns false on end of stream, or at the end of the buffered data if
+     * not allowed to read.
+     */
+    private boolean scanFrame(boolean mayRead) throws IOException {
+        // Positions kept across fill() are relative to start, as start moves
+        // when the buffer is compacted.
+        int soi = indexOfMarker(SOI, start);
+        while(soi < 0) {
+            // Drop garbage, but keep what may be the header of the frame.
+            if(end - start > HEADER_MAX_LENGTH) {
+                start = end - HEADER_MAX_LENGTH;
+            }
+            int from = Math.max(0, end - start - 1);
+            if(!fill(mayRead)) return false;
+            soi = indexOfMarker(SOI, start + from);
+        }
+        int headerLength = soi - start;
+
+        int contentLength = MultipartHeaderParser.parseContentLength(
+                buffer, start, headerLength);
+        timestamp = MultipartHeaderParser.parseTimestamp(buffer, start,
+                headerLength);
+        if(headerLength + contentLength > maxCapacity) {
+            // A broken length, finds the end of the frame instead.
+            contentLength = -1;
+        }
+        int frameEnd;
+        if(contentLength > 0) {
+            while(end - start < headerLength + contentLength) {
+                if(!fill(mayRead)) return false;
+            }
+            frameEnd = headerLength + contentLength;
+        } else if(boundary != null) {
+            // No "Content-Length", the frame ends at the next boundary.
+            int next = indexOfBoundary(start + headerLength + 2);
+            while(next < 0) {
+                int from = Math.max(headerLength + 2,
+                        end - start - boundary.length + 1);
+                if(!fill(mayRead)) {
+                    if(!eof) return false;
+                    // The last part has no boundary after it.
+                    next = lastIndexOfMarker(EOI, start + headerLength + 2);
+                    if(next < 0) return false;
+                    next += 2;
+                    break;
+                }
+                next = indexOfBoundary(start + from);
+            }
+            // Leaves the "\r\n--" in front of the boundary to the next part.
+            int frameStart = start + headerLength;
+            while(next > frameStart + 2 && isDelimiter(buffer[next - 1])) {
+                next--;
+            }
+            frameEnd = next - start;
+        } else {
+            // No "Content-Length", search for the end of image marker.
+            int eoi = indexOfMarker(EOI, start + headerLength + 2);
+            while(eoi < 0) {
+                int from = Math.max(headerLength + 2, end - start - 1);
+                if(!fill(mayRead)) return false;
+                eoi = indexOfMarker(EOI, start + from);
+            }
+            frameEnd = eoi - start + 2;
+        }
+
+        frameOffset = start + headerLength;
+        frameLength = frameEnd - headerLength;
+        start += frameEnd;
+        if(frameEnd <= buffer.length / 4) {
+            smallFrames++;
+            if(frameEnd > smallPeak) smallPeak = frameEnd;
+        } else {
+            smallFrames = 0;
+            smallPeak = 0;
+        }
+        return true;
+    }
+
+
+
+    /*
+     * Checks the frame just scanned, and trims it to its end of image
+     * marker. Returns false if it is broken, with start moved back to the
+     * start of image inside it, if any.
+     */
+    private boolean checkFrame() {
+        int frameEnd = frameOffset + frameLength;
+        int header = JpegHeader.readHeaderLength(buffer, frameOffset,
+                frameLength);
+        int data = frameOffset + (header < 0 ? 2 : header);
+        int marker = indexOfImageMarker(data, frameEnd);
+        if(header >= 0 && marker >= 0 && buffer[marker + 1] == EOI
+                && frameEnd - marker - 2 <= TRAILER_MAX_LENGTH) {
+            frameLength = marker + 2 - frameOffset;
+            return true;
+        }
+
+        while(marker >= 0 && buffer[marker + 1] != SOI) {
+            marker = indexOfImageMarker(marker + 2, frameEnd);
+        }
+        if(marker >= 0) start = Math.max(data, marker - HEADER_MAX_LENGTH);
+        return false;
+    }
+
+
+
+    /**
+     * Mutator method
+     * Sets the multipart boundary of the stream, from the Content-Type of
+     * the HTTP response. Parts without a Content-Length then end at the
+     * boundary, instead of at the first end of image marker.
+     * @param b
+     *        boundary token without the leading "--", or null if unknown.
+     * @see MultipartHeaderParser#parseBoundary(String)
+     */
+    public void setBoundary(byte[] b) {
+        if(b == null || b.length == 0) {
+            boundary = null;
+            boundarySkip = null;
+            return;
+        }
+
+        boundary = b;
+        boundarySkip = new int[256];
+        for(int i = 0; i < boundarySkip.length; i++) {
+            boundarySkip[i] = b.length;
+        }
+        for(int i = 0; i < b.length - 1; i++) {
+            boundarySkip[b[i] & 0xFF] = b.length - 1 - i;
+        }
+    }
+
+
+
+    /**
+     * Mutator method
+     * Skips to the newest whole frame already read, keeping the latency
+     * low instead of handing back every frame. Off by default.
+     * @param b
+     *        true to skip the stale buffered frames.
+     */
+    public void setSkipToNewest(boolean b) { skipToNewest = b; }
+
+
+
+    /**
+     * Mutator method
+     * Sets the hard cap of the scan buffer. A frame and its header larger
+     * than this fail the read, rather than taking all the memory on a
+     * broken stream. Defaults to {@link #DEFAULT_MAX_CAPACITY}.
+     * @param n
+     *        max size in bytes, at least the size the buffer started at.
+     */
+    public void setMaxCapacity(int n) {
+        maxCapacity = Math.max(n, minCapacity);
+    }
+
+
+
+    /**
+     * Accessor method
+     * @return size of the scan buffer in bytes now.
+     */
+    public int getCapacity() { return buffer.length; }
+
+
+
+    /**
+     * Accessor method
+     * @return the buffer holding the current frame.
+     */
+    public byte[] getFrameBuffer() { return buffer; }
+
+
+
+    /**
+     * Accessor method
+     * @return offset of the current frame in {@link #getFrameBuffer()}.
+     */
+    public int getFrameOffset() { return frameOffset; }
+
+
+
+    /**
+     * Accessor method
+     * @return length of the current frame in bytes.
+     */
+    public int getFrameLength() { return frameLength; }
+
+
+
+    /**
+     * Accessor method
+     * @return capture time of the current frame from its part header, in
+     *         microseconds since the epoch on the server clock, -1 if
+     *         there is none.
+     * @see MultipartHeaderParser#TIMESTAMP_HEADER
+     */
+    public long getFrameTimestamp() { return timestamp; }
+
+
+
+    /**
+     * Accessor method
+     * @return number of broken frames skipped during the last
+     *         {@link #nextFrame()}.
+     */
+    public int getFrameRejects() { return rejects; }
+
+
+
+    /**
+     * Accessor method
+     * @return number of whole stale frames skipped during the last
+     *         {@link #nextFrame()}, in skip to newest mode.
+     */
+    public int getFrameSkips() { return skips; }
+
+
+
+    /**
+     * Accessor method
+     * @return time spent blocked reading the stream during the last
+     *         {@link #nextFrame()}, in nanoseconds.
+     */
+    public long getFrameIoNanos() { return ioNanos; }
+
+
+
+    /*
+     * Reads the next chunk from the stream into the buffer. If the buffer
+     * is full, the unconsumed bytes are moved to the front first, or to a
+     * buffer twice the size when they take more than half of it.
+     * Returns false on end of stream, or at once if not allowed to read, as
+     * moving the bytes would move the current frame.
+     */
+    private boolean fill(boolean mayRead) throws IOException {
+        if(!mayRead || eof) return false;
+        if(end == buffer.length) {
+            int length = end - start;
+            if(length > buffer.length / 2 && buffer.length < maxCapacity) {
+                resize((int) Math.min((long) buffer.length * 2,
+                        maxCapacity));
+            } else if(start == 0) {
+                throw new IOException("Frame exceeds max buffer of "
+                        + maxCapacity + " bytes");
+            } else {
+                System.arraycopy(buffer, start, buffer, 0, length);
+                end = length;
+                start = 0;
+            }
+        }
+
+        long t = System.nanoTime();
+        int n;
+        if(channel != null) {
+            view.limit(buffer.length);
+            view.position(end);
+            n = channel.read(view);
+        } else {
+            n = in.read(buffer, end, buffer.length - end);
+        }
+        ioNanos += System.nanoTime() - t;
+        if(n < 0) {
+            eof = true;
+            return false;
+        }
+        end += n;
+        return true;
+    }
+
+
+
+    /*
+     * Halves the buffer while the last run of small frames, and the bytes
+     * not yet consumed, still fit in a quarter of it. Called between
+     * frames, when no frame is handed out.
+     */
+    private void shrink() {
+        int capacity = buffer.length;
+        while(capacity / 2 >= minCapacity && smallPeak <= capacity / 4
+                && end - start <= capacity / 4) {
+            capacity /= 2;
+        }
+        if(capacity < buffer.length) resize(capacity);
+        smallFrames = 0;
+        smallPeak = 0;
+    }
+
+
+
+    /*
+     * Moves the unconsumed bytes to the front of a new buffer of the given
+     * size.
+     */
+    private void resize(int capacity) {
+        byte[] b = new byte[capacity];
+        System.arraycopy(buffer, start, b, 0, end - start);
+        end -= start;
+        start = 0;
+        buffer = b;
+        if(view != null) view = ByteBuffer.wrap(b);
+    }
+
+
+
+    /*
+     * Checks if the byte is part of the delimiter line in front of a
+     * boundary.
+     */
+    private static boolean isDelimiter(byte c) {
+        return c == '\r' || c == '\n' || c == '-';
+    }
+
+
+
+    /*
+     * Method to get the index of the two byte marker (0xFF, code) in the
+     * buffer, searching from the given index. Looks at every second byte,
+     * only stepping one byte when it sees a 0xFF.
+     * Returns -1 if not found.
+     */
+    private int indexOfMarker(byte code, int from) {
+        byte[] b = buffer;
+        int i = from + 1;
+        while(i < end) {
+            byte c = b[i];
+            if(c == code) {
+                if(b[i - 1] == MARKER_PREFIX) return i - 1;
+                i += 2;
+            } else if(c == MARKER_PREFIX) {
+                i += 1;
+            } else {
+                i += 2;
+            }
+        }
+        return -1;
+    }
+
+
+
+    /*
+     * Method to get the index of the first start or end of image marker in
+     * the buffer, between the given indexes. Skips like indexOfMarker().
+     * Returns -1 if not found.
+     */
+    private int indexOfImageMarker(int from, int to) {
+        byte[] b = buffer;
+        int i = from + 1;
+        while(i < to) {
+            byte c = b[i];
+            if(c == SOI || c == EOI) {
+                if(b[i - 1] == MARKER_PREFIX) return i - 1;
+                i += 2;
+            } else if(c == MARKER_PREFIX) {
+                i += 1;
+            } else {
+                i += 2;
+            }
+        }
+        return -1;
+    }
+
+
+
+    /*
+     * Method to get the index of the last two byte marker (0xFF, code) in
+     * the buffer, not before the given index.
+     * Returns -1 if not found.
+     */
+    private int lastIndexOfMarker(byte code, int from) {
+        for(int i = end - 2; i >= from; i--) {
+            if(buffer[i] == MARKER_PREFIX && buffer[i + 1] == code) return i;
+        }
+        return -1;
+    }
+
+
+
+    /*
+     * Method to get the index of the boundary token in the buffer, from
+     * the given index. Horspool search, skipping ahead by the table for the
+     * byte under the end of the token.
+     * Returns -1 if not found.
+     */
+    private int indexOfBoundary(int from) {
+        byte[] b = buffer;
+        byte[] t = boundary;
+        int last = t.length - 1;
+        int i = from;
+        while(i + last < end) {
+            int k = last;
+            while(b[i + k] == t[k]) {
+                if(k == 0) return i;
+                k--;
+            }
+            i += boundarySkip[b[i + last] & 0xFF];
+        }
+        return -1;
+    }
+}
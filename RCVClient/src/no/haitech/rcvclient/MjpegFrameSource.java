@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvclient;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Frame source reading the JPEG frames of a multipart MJPEG stream,
+ * through a {@link MjpegFrameScanner}. Each frame is copied once, from the
+ * scan buffer into a pooled frame buffer, and not decoded. The frame is
+ * fingerprinted on the way, while its bytes are in the cache, so a frame
+ * repeating the one before can skip the decode, see
+ * {@link FrameFingerprint}.
+ * <p>
+ * When the server puts the capture time on its frames, the time is
+ * turned into a local time with the {@link ClockOffset} to the server,
+ * for the glass-to-glass latency.
+ * <p>
+ * It has no Android in it, so the app and the clients on a plain JVM read
+ * their streams the same way, see {@link StreamPipeline}.
+ *
+ * @author Thomas Le
+ * @see StreamPipeline#setSource(FrameSource)
+ */
+public class MjpegFrameSource implements FrameSource {
+    /*
+     * Size the scan buffer starts at, enough for a small frame with its
+     * header. It grows to the largest frame of the stream.
+     */
+    private final static int FRAME_INITIAL_LENGTH = 64 * 1024;
+
+    private final MjpegFrameScanner scanner;
+    private final Closeable stream;
+    private final FrameFingerprint fingerprint;
+    private final ClockOffset clock;
+    private boolean fingerprinting;
+    private StreamMetrics metrics;
+
+
+
+    /**
+     * Constructor
+     * @param in
+     *        a valid InputStream.
+     * @param contentType
+     *        Content-Type of the HTTP response, holding the multipart
+     *        boundary. May be null.
+     */
+    public MjpegFrameSource(InputStream in, String contentType) {
+        scanner = new MjpegFrameScanner(in, FRAME_INITIAL_LENGTH);
+        scanner.setBoundary(MultipartHeaderParser.parseBoundary(contentType));
+        stream = in;
+        fingerprint = new FrameFingerprint();
+        fingerprinting = true;
+        clock = new ClockOffset();
+    }
+
+
+
+    /**
+     * Constructor
+     * Frames are read straight from the socket into the scan buffer. The
+     * clock offset starts from the server time in the response, if any.
+     * @param client
+     *        a connected MjpegStreamClient ({@link MjpegStreamClient}).
+     */
+    public MjpegFrameSource(MjpegStreamClient client) {
+        scanner = new MjpegFrameScanner(client, FRAME_INITIAL_LENGTH);
+        scanner.setBoundary(MultipartHeaderParser.parseBoundary(
+                client.getContentType()));
+        stream = client;
+        fingerprint = new FrameFingerprint();
+        fingerprinting = true;
+        clock = new ClockOffset();
+        if(client.getServerTimestamp() >= 0) {
+            clock.exchange(client.getRequestNanos(),
+                    client.getServerTimestamp(), client.getResponseNanos());
+        }
+    }
+
+
+
+    /**
+     * Read the next compressed JPEG frame from the stream. The frame is
+     * copied into a buffer from the pool, fingerprinted, and given its
+     * capture time if the server sent one.
+     *
+     * @param pool
+     *        pool to get the frame buffer from.
+     * @return the next JPEG frame, release it when done.
+     * @throws EOFException at the end of the stream.
+     * @throws IOException if there is an error while reading data.
+     */
+    @Override
+    public FrameBuffer readFrame(FrameBufferPool pool) throws IOException {
+        nextFrame();
+
+        byte[] b = scanner.getFrameBuffer();
+        int off = scanner.getFrameOffset();
+        int len = scanner.getFrameLength();
+        FrameBuffer frame = pool.acquire(len);
+        frame.put(b, off, len);
+        if(fingerprinting) {
+            frame.setFingerprint(fingerprint.compute(b, off, len));
+        }
+        frame.setNetworkNanos(scanner.getFrameIoNanos());
+        long timestamp = scanner.getFrameTimestamp();
+        if(timestamp >= 0) {
+            clock.frameReceived(timestamp, System.nanoTime());
+            frame.setCaptureNanos(clock.toLocalNanos(timestamp));
+        }
+        return frame;
+    }
+
+
+
+    /**
+     * Closes the stream, waking up a blocked read.
+     */
+    @Override
+    public void close() throws IOException {
+        stream.close();
+    }
+
+
+
+    /**
+     * Scans to the next whole frame, counting the frames skipped. The
+     * frame is then in the scan buffer, see {@link #getScanner()}.
+     *
+     * @throws EOFException at the end of the stream.
+     * @throws IOException if there is an error while reading data.
+     */
+    public void nextFrame() throws IOException {
+        if(!scanner.nextFrame()) throw new EOFException();
+        if(metrics == null) return;
+        int rejects = scanner.getFrameRejects();
+        if(rejects > 0) metrics.framesRejected(rejects);
+        int skips = scanner.getFrameSkips();
+        if(skips > 0) metrics.framesSkipped(skips);
+    }
+
+
+
+    /**
+     * Mutator method
+     * @param m
+     *        metrics counting the broken and stale frames skipped, or null.
+     */
+    public void setMetrics(StreamMetrics m) { metrics = m; }
+
+
+
+    /**
+     * Mutator method
+     * Reads the newest whole frame already received, skipping the stale
+     * ones before it without copying them, when reading falls behind the
+     * stream. Off by default.
+     * @param b
+     *        true to skip to the newest frame.
+     * @see MjpegFrameScanner#setSkipToNewest(boolean)
+     */
+    public void setSkipToNewest(boolean b) { scanner.setSkipToNewest(b); }
+
+
+
+    /**
+     * Mutator method
+     * On by default.
+     * @param b
+     *        true to fingerprint the frames read, false to leave them
+     *        without, so none is taken for unchanged.
+     */
+    public void setFingerprinting(boolean b) { fingerprinting = b; }
+
+
+
+    /**
+     * Mutator method
+     * @param n
+     *        max length of a frame and its header in bytes. A larger frame
+     *        fails the read.
+     * @see MjpegFrameScanner#setMaxCapacity(int)
+     */
+    public void setMaxFrameLength(int n) { scanner.setMaxCapacity(n); }
+
+
+
+    /**
+     * Accessor method
+     * @return bytes held by the scan buffer now.
+     */
+    public int getBufferLength() { return scanner.getCapacity(); }
+
+
+
+    /**
+     * Accessor method
+     * @return the scanner, holding the frame of the last
+     *         {@link #nextFrame()}.
+     */
+    public MjpegFrameScanner getScanner() { return scanner; }
+
+
+
+    /**
+     * Accessor method
+     * @return offset of the server clock, to the capture time of the
+     *         frames.
+     */
+    public ClockOffset getClockOffset() { return clock; }
+}
@@ -0,0 +1,509 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvclient;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * MJPEG stream client on a non-blocking {@link SocketChannel}, with a
+ * minimal HTTP/1.1 request and response handler.
+ * After {@link #connect()} the client is a channel of the response body,
+ * that reads straight into the buffer given to {@link #read(ByteBuffer)},
+ * like the scan buffer of {@link MjpegFrameScanner}. Reads wait on a
+ * Selector, so they time out, and {@link #close()} from another thread
+ * wakes up a blocked read.
+ *
+ * @author Thomas Le
+ * @see MjpegFrameScanner
+ * @see MjpegFrameSource
+ */
+public class MjpegStreamClient implements ReadableByteChannel {
+    private final static int DEFAULT_PORT = 80;
+    private final static int HEAD_MAX_LENGTH = 8 * 1024;
+    private final static String CRLF = "\r\n";
+
+    private final URL url;
+    private int receiveBufferSize;
+    private boolean tcpNoDelay;
+    private int connectTimeoutMs;
+    private int readTimeoutMs;
+
+    private SocketChannel channel;
+    private Selector selector;
+    private ByteBuffer pending;     // bytes read past the response head.
+    private int statusCode;
+    private String contentType;
+    private long serverTimestamp;
+    private long requestNanos;
+    private long responseNanos;
+    private boolean chunked;
+    private long chunkRemaining;
+    private boolean lastChunk;
+    private volatile boolean closed;
+
+
+
+    /**
+     * Constructor
+     * @param url
+     *        http URL of the MJPEG stream.
+     */
+    public MjpegStreamClient(URL url) {
+        this.url = url;
+        receiveBufferSize = 0;
+        tcpNoDelay = true;
+        connectTimeoutMs = 5000;
+        readTimeoutMs = 10000;
+    }
+
+
+
+    /**
+     * Opens the connection, sends the request and reads the response head.
+     * The time the request was sent and the response head arrived are
+     * kept, with the server time in the head if any, for the clock offset
+     * to the server, see {@link ClockOffset#exchange(long, long, long)}.
+     *
+     * @throws IOException if the connection fails, times out, or the
+     *         response is not 200 OK.
+     */
+    public void connect() throws IOException {
+        if(!"http".equalsIgnoreCase(url.getProtocol())) {
+            throw new IOException("Not a http URL: " + url);
+        }
+        String host = url.getHost();
+        int port = url.getPort() < 0 ? DEFAULT_PORT : url.getPort();
+
+        selector = Selector.open();
+        channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            Socket socket = channel.socket();
+            socket.setTcpNoDelay(tcpNoDelay);
+            // Set before connect, so the TCP window can scale to it.
+            if(receiveBufferSize > 0) {
+                socket.setReceiveBufferSize(receiveBufferSize);
+            }
+
+            if(!channel.connect(new InetSocketAddress(host, port))) {
+                await(SelectionKey.OP_CONNECT, connectTimeoutMs);
+                channel.finishConnect();
+            }
+
+            requestNanos = System.nanoTime();
+            writeRequest(host, port);
+            readResponseHead();
+            responseNanos = System.nanoTime();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+
+
+    /**
+     * Reads response body bytes into the buffer, waiting for at least one.
+     *
+     * @param dst
+     *        buffer to read into.
+     * @return number of bytes read, -1 at the end of the stream.
+     * @throws SocketTimeoutException if nothing arrives within the read
+     *         timeout.
+     * @throws IOException if the connection fails or is closed.
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if(!chunked) return readRaw(dst);
+
+        if(lastChunk) return -1;
+        if(chunkRemaining == 0 && !readChunkSize()) {
+            lastChunk = true;
+            return -1;
+        }
+        int limit = dst.limit();
+        if(dst.remaining() > chunkRemaining) {
+            dst.limit(dst.position() + (int) chunkRemaining);
+        }
+        try {
+            int n = readRaw(dst);
+            if(n > 0) chunkRemaining -= n;
+            return n;
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+
+
+    @Override
+    public boolean isOpen() {
+        return !closed && channel != null && channel.isOpen();
+    }
+
+
+
+    /**
+     * Closes the connection, waking up a blocked read.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            if(selector != null) {
+                selector.wakeup();
+                selector.close();
+            }
+        } finally {
+            if(channel != null) channel.close();
+        }
+    }
+
+
+
+    /**
+     * Mutator method
+     * @param bytes
+     *        socket receive buffer size in bytes, 0 for the system default.
+     *        Set before connect().
+     */
+    public void setReceiveBufferSize(int bytes) { receiveBufferSize = bytes; }
+
+
+
+    /**
+     * Mutator method
+     * @param b
+     *        true to turn on TCP_NODELAY. Set before connect().
+     */
+    public void setTcpNoDelay(boolean b) { tcpNoDelay = b; }
+
+
+
+    /**
+     * Mutator method
+     * @param ms
+     *        max time to wait for the connection, in milliseconds.
+     */
+    public void setConnectTimeout(int ms) { connectTimeoutMs = ms; }
+
+
+
+    /**
+     * Mutator method
+     * @param ms
+     *        max time a read waits for data, in milliseconds.
+     */
+    public void setReadTimeout(int ms) { readTimeoutMs = ms; }
+
+
+
+    /**
+     * Accessor method
+     * @return the HTTP status code of the response.
+     */
+    public int getStatusCode() { return statusCode; }
+
+
+
+    /**
+     * Accessor method
+     * @return the Content-Type of the response, holding the multipart
+     *         boundary, or null.
+     */
+    public String getContentType() { return contentType; }
+
+
+
+    /**
+     * Accessor method
+     * @return server time in the response head, in microseconds since the
+     *         epoch, -1 if there was none.
+     * @see MultipartHeaderParser#TIMESTAMP_HEADER
+     */
+    public long getServerTimestamp() { return serverTimestamp; }
+
+
+
+    /**
+     * Accessor method
+     * @return System.nanoTime() when the request was sent.
+     */
+    public long getRequestNanos() { return requestNanos; }
+
+
+
+    /**
+     * Accessor method
+     * @return System.nanoTime() when the response head was read.
+     */
+    public long getResponseNanos() { return responseNanos; }
+
+
+
+    /*
+     * Sends the GET request.
+     */
+    private void writeRequest(String host, int port) throws IOException {
+        String path = url.getFile();
+        if(path == null || path.length() == 0) path = "/";
+
+        StringBuilder req = new StringBuilder();
+        req.append("GET ").append(path).append(" HTTP/1.1").append(CRLF);
+        req.append("Host: ").append(host);
+        if(port != DEFAULT_PORT) req.append(':').append(port);
+        req.append(CRLF);
+        req.append("User-Agent: RCVClient").append(CRLF);
+        req.append("Accept: multipart/x-mixed-replace, image/jpeg")
+                .append(CRLF);
+        if(url.getUserInfo() != null) {
+            req.append("Authorization: Basic ")
+                    .append(base64(url.getUserInfo())).append(CRLF);
+        }
+        req.append(CRLF);
+
+        ByteBuffer out = ByteBuffer.wrap(ascii(req.toString()));
+        while(out.hasRemaining()) {
+            if(channel.write(out) == 0) {
+                await(SelectionKey.OP_WRITE, readTimeoutMs);
+            }
+        }
+    }
+
+
+
+    /*
+     * Reads and parses the status line and headers. Body bytes read past
+     * the head are kept in pending.
+     */
+    private void readResponseHead() throws IOException {
+        pending = ByteBuffer.allocate(HEAD_MAX_LENGTH);
+        int headEnd = -1;
+        while(headEnd < 0) {
+            if(!pending.hasRemaining()) {
+                throw new IOException("Response head too long");
+            }
+            if(readChannel(pending) < 0) {
+                throw new EOFException("Connection closed in response head");
+            }
+            headEnd = indexOfHeadEnd(pending.array(), pending.position());
+        }
+
+        String head = new String(pending.array(), 0, headEnd, "ISO-8859-1");
+        pending.flip();
+        pending.position(headEnd + 4);
+
+        String[] lines = head.split(CRLF);
+        String[] status = lines[0].split(" ");
+        if(status.length < 2 || !status[0].startsWith("HTTP/")) {
+            throw new IOException("Bad status line: " + lines[0]);
+        }
+        try {
+            statusCode = Integer.parseInt(status[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad status line: " + lines[0]);
+        }
+        if(statusCode != 200) {
+            throw new IOException("HTTP " + statusCode + " from " + url);
+        }
+
+        serverTimestamp = -1;
+        for(int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if(colon < 0) continue;
+            String name = lines[i].substring(0, colon).trim();
+            String value = lines[i].substring(colon + 1).trim();
+            if(name.equalsIgnoreCase("Content-Type")) {
+                contentType = value;
+            } else if(name.equalsIgnoreCase(
+                    MultipartHeaderParser.TIMESTAMP_HEADER)) {
+                serverTimestamp = MultipartHeaderParser.parseTimestamp(value);
+            } else if(name.equalsIgnoreCase("Transfer-Encoding")) {
+                chunked = value.toLowerCase().indexOf("chunked") >= 0;
+            }
+        }
+    }
+
+
+
+    /*
+     * Reads the size line of the next chunk of a chunked body, returns
+     * false at the last (zero size) chunk.
+     */
+    private boolean readChunkSize() throws IOException {
+        int c = readByte();
+        while(c == '\r' || c == '\n') c = readByte();
+
+        long size = 0;
+        int digits = 0;
+        while(true) {
+            int d = Character.digit(c, 16);
+            if(d < 0) break;
+            size = (size << 4) + d;
+            digits++;
+            c = readByte();
+        }
+        if(digits == 0) throw new IOException("Bad chunk size");
+
+        // Skips chunk extensions up to the end of the line.
+        while(c != '\n') c = readByte();
+        chunkRemaining = size;
+        return size > 0;
+    }
+
+
+
+    /*
+     * Reads one byte of the body, for the chunk size lines.
+     */
+    private int readByte() throws IOException {
+        if(!pending.hasRemaining()) {
+            pending.clear();
+            int n = readChannel(pending);
+            pending.flip();
+            if(n < 0) throw new EOFException("Connection closed in chunk");
+        }
+        return pending.get() & 0xFF;
+    }
+
+
+
+    /*
+     * Reads body bytes, first the ones left from the response head.
+     */
+    private int readRaw(ByteBuffer dst) throws IOException {
+        if(pending.hasRemaining()) {
+            int n = Math.min(pending.remaining(), dst.remaining());
+            int limit = pending.limit();
+            pending.limit(pending.position() + n);
+            dst.put(pending);
+            pending.limit(limit);
+            return n;
+        }
+        return readChannel(dst);
+    }
+
+
+
+    /*
+     * Reads from the socket, waiting up to the read timeout for data.
+     */
+    private int readChannel(ByteBuffer dst) throws IOException {
+        while(true) {
+            if(closed) throw new ClosedChannelException();
+            int n = channel.read(dst);
+            if(n != 0 || !dst.hasRemaining()) return n;
+            await(SelectionKey.OP_READ, readTimeoutMs);
+        }
+    }
+
+
+
+    /*
+     * Waits until the channel is ready for the operation.
+     */
+    private void await(int op, int timeoutMs) throws IOException {
+        if(closed) throw new ClosedChannelException();
+        int ready;
+        try {
+            channel.register(selector, op);
+            ready = selector.select(timeoutMs);
+            selector.selectedKeys().clear();
+        } catch (ClosedSelectorException e) {
+            // Closed from another thread.
+            throw new ClosedChannelException();
+        } catch (CancelledKeyException e) {
+            throw new ClosedChannelException();
+        }
+
+        if(ready == 0) {
+            if(closed) throw new ClosedChannelException();
+            if(Thread.interrupted()) {
+                throw new InterruptedIOException("Interrupted waiting for "
+                        + url.getHost());
+            }
+            throw new SocketTimeoutException("No data from " + url.getHost()
+                    + " in " + timeoutMs + " ms");
+        }
+    }
+
+
+
+    /*
+     * Index of the "\r\n\r\n" ending the response head, or -1.
+     */
+    private static int indexOfHeadEnd(byte[] b, int end) {
+        for(int i = 0; i + 3 < end; i++) {
+            if(b[i] == '\r' && b[i + 1] == '\n' && b[i + 2] == '\r'
+                    && b[i + 3] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+
+    /*
+     * Bytes of an ASCII string.
+     */
+    private static byte[] ascii(String s) {
+        byte[] b = new byte[s.length()];
+        for(int i = 0; i < b.length; i++) b[i] = (byte) s.charAt(i);
+        return b;
+    }
+
+
+
+    /*
+     * Base64 of an ASCII string, for basic authorization.
+     */
+    private static String base64(String s) {
+        final String table = 
+                "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz"
+                + "0123456789+/";
+        byte[] b = ascii(s);
+        StringBuilder out = new StringBuilder();
+        for(int i = 0; i < b.length; i += 3) {
+            int n = (b[i] & 0xFF) << 16;
+            if(i + 1 < b.length) n |= (b[i + 1] & 0xFF) << 8;
+            if(i + 2 < b.length) n |= b[i + 2] & 0xFF;
+            out.append(table.charAt((n >> 18) & 0x3F));
+            out.append(table.charAt((n >> 12) & 0x3F));
+            out.append(i + 1 < b.length
+                    ? table.charAt((n >> 6) & 0x3F) : '=');
+            out.append(i + 2 < b.length ? table.charAt(n & 0x3F) : '=');
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvclient;
+
+/**
+ * Parser for the headers of a multipart/x-mixed-replace MJPEG stream.
+ * Part headers are read in place from the scan buffer, without allocation
+ * and without exceptions, a missing or bad value gives -1.
+ * <p>
+ * Besides the Content-Length, a part may carry the time its frame was
+ * captured, in an {@link #TIMESTAMP_HEADER} header, as seconds since the
+ * epoch with an optional fraction, like "X-Timestamp: 1381234567.125".
+ *
+ * @author Thomas Le
+ * @see MjpegFrameScanner
+ * @see {@link http://www.w3.org/Protocols/rfc1341/7_2_Multipart.html}
+ */
+public final class MultipartHeaderParser {
+    /**
+     * Name of the header holding the capture time of a frame, also sent
+     * in the HTTP response head with the time it was sent.
+     */
+    public final static String TIMESTAMP_HEADER = "X-Timestamp";
+
+    /*
+     * Header names, lower case.
+     */
+    private final static byte[] CONTENT_LENGTH = ascii("content-length");
+    private final static byte[] TIMESTAMP =
+            ascii(TIMESTAMP_HEADER.toLowerCase());
+    private final static int MICROS_DIGITS = 6;
+    private final static String BOUNDARY = "boundary=";
+
+
+
+    private MultipartHeaderParser() {
+    }
+
+
+
+    /**
+     * Method to parse the Content-Length of a part from its header bytes.
+     *
+     * @param b
+     *        array holding the header.
+     * @param off
+     *        offset of the header in b.
+     * @param len
+     *        length of the header in bytes.
+     * @return the Content-Length, -1 if not found or not a number.
+     */
+    public static int parseContentLength(byte[] b, int off, int len) {
+        int at = indexOfHeader(b, off, off + len, CONTENT_LENGTH);
+        if(at < 0) return -1;
+        return parseNumber(b, at, off + len);
+    }
+
+
+
+    /**
+     * Method to parse the capture time of a part from its header bytes.
+     *
+     * @param b
+     *        array holding the header.
+     * @param off
+     *        offset of the header in b.
+     * @param len
+     *        length of the header in bytes.
+     * @return the time in microseconds since the epoch, -1 if not found or
+     *         not a number.
+     */
+    public static long parseTimestamp(byte[] b, int off, int len) {
+        int at = indexOfHeader(b, off, off + len, TIMESTAMP);
+        if(at < 0) return -1;
+        return parseMicros(b, at, off + len);
+    }
+
+
+
+    /**
+     * Method to parse a timestamp header value, like from the HTTP
+     * response head.
+     *
+     * @param value
+     *        the header value, may be null.
+     * @return the time in microseconds since the epoch, -1 if null or not
+     *         a number.
+     */
+    public static long parseTimestamp(String value) {
+        if(value == null) return -1;
+        byte[] b = ascii(value);
+        return parseMicros(b, 0, b.length);
+    }
+
+
+
+    /**
+     * Method to get the boundary token from the Content-Type of the HTTP
+     * response, like "multipart/x-mixed-replace; boundary=myboundary".
+     * Leading dashes are stripped, as some cameras put the "--" of the
+     * delimiter in the parameter.
+     *
+     * @param contentType
+     *        the Content-Type header value, may be null.
+     * @return the boundary as ASCII bytes, null if there is none.
+     */
+    public static byte[] parseBoundary(String contentType) {
+        if(contentType == null) return null;
+        int at = contentType.toLowerCase().indexOf(BOUNDARY);
+        if(at < 0) return null;
+
+        int start = at + BOUNDARY.length();
+        int end = contentType.indexOf(';', start);
+        if(end < 0) end = contentType.length();
+        String boundary = contentType.substring(start, end).trim();
+        if(boundary.startsWith("\"") && boundary.endsWith("\"")
+                && boundary.length() >= 2) {
+            boundary = boundary.substring(1, boundary.length() - 1);
+        }
+        while(boundary.startsWith("-")) boundary = boundary.substring(1);
+
+        if(boundary.length() == 0) return null;
+        return ascii(boundary);
+    }
+
+
+
+    /*
+     * Index of the first byte of the value of the header with the given
+     * lower case name, -1 if not found. The name must start a line.
+     */
+    private static int indexOfHeader(byte[] b, int from, int to,
+            byte[] name) {
+        int last = to - name.length;
+        for(int i = from; i <= last; i++) {
+            if(i > from && b[i - 1] != '\n') continue;
+            if(!regionMatches(b, i, name)) continue;
+
+            int j = i + name.length;
+            while(j < to && (b[j] == ' ' || b[j] == '\t')) j++;
+            if(j < to && b[j] == ':') return j + 1;
+        }
+        return -1;
+    }
+
+
+
+    /*
+     * Parses a positive decimal number, skipping leading blanks.
+     * Returns -1 if there is no number.
+     */
+    private static int parseNumber(byte[] b, int from, int to) {
+        int j = from;
+        while(j < to && (b[j] == ' ' || b[j] == '\t')) j++;
+
+        int value = -1;
+        while(j < to && b[j] >= '0' && b[j] <= '9') {
+            int digit = b[j++] - '0';
+            if(value > (Integer.MAX_VALUE - digit) / 10) return -1;
+            value = (value < 0 ? 0 : value * 10) + digit;
+        }
+        return value;
+    }
+
+
+
+    /*
+     * Parses decimal seconds with an optional fraction into microseconds,
+     * skipping leading blanks. Digits past microseconds are ignored.
+     * Returns -1 if there is no number.
+     */
+    private static long parseMicros(byte[] b, int from, int to) {
+        int j = from;
+        while(j < to && (b[j] == ' ' || b[j] == '\t')) j++;
+
+        long seconds = -1;
+        while(j < to && b[j] >= '0' && b[j] <= '9') {
+            int digit = b[j++] - '0';
+            if(seconds > (Long.MAX_VALUE / 1000000L - digit) / 10) return -1;
+            seconds = (seconds < 0 ? 0 : seconds * 10) + digit;
+        }
+        if(seconds < 0) return -1;
+
+        long micros = 0;
+        int digits = 0;
+        if(j < to && b[j] == '.') {
+            j++;
+            while(j < to && b[j] >= '0' && b[j] <= '9') {
+                if(digits < MICROS_DIGITS) {
+                    micros = micros * 10 + (b[j] - '0');
+                    digits++;
+                }
+                j++;
+            }
+        }
+        for(; digits < MICROS_DIGITS; digits++) micros *= 10;
+        return seconds * 1000000L + micros;
+    }
+
+
+
+    /*
+     * Checks if the buffer holds the given lower case ASCII bytes at the
+     * index, ignoring case.
+     */
+    private static boolean regionMatches(byte[] b, int i, byte[] s) {
+        for(int k = 0; k < s.length; k++) {
+            int c = b[i + k];
+            if(c >= 'A' && c <= 'Z') c += 'a' - 'A';
+            if(c != s[k]) return false;
+        }
+        return true;
+    }
+
+
+
+    /*
+     * Bytes of an ASCII string.
+     */
+    private static byte[] ascii(String s) {
+        byte[] b = new byte[s.length()];
+        for(int i = 0; i < b.length; i++) b[i] = (byte) s.charAt(i);
+        return b;
+    }
+}
@@ -0,0 +1,464 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvclient;
+
+/**
+ * Adapts the resolution, frame rate and compression asked of the camera to
+ * what the link and the device keep up with.
+ * The controller steps through a ladder of levels, from the cheapest to
+ * the best. Once per window, like once a second, {@link #update()} looks
+ * at the {@link StreamMetrics} of the stream:
+ * <ul>
+ * <li>the frames arriving per second, against the rate asked for,</li>
+ * <li>the share of frames dropped or skipped before they were shown, the
+ * backlog,</li>
+ * <li>the share of the frame interval spent decoding,</li>
+ * <li>and the bytes per second received.</li>
+ * </ul>
+ * Two bad windows in a row step down a level. Stepping up takes a run of
+ * good windows, with room to spare for the bigger frames of the next
+ * level, and a link that carried their bytes per second when it was last
+ * the bottleneck. That measured capacity grows a little every window that
+ * is not bad, so a link that got better is tried again. A level that had
+ * to be left again waits twice as long before it is tried next, so a link
+ * at the edge of a level does not flip between two levels.
+ * <p>
+ * A new level takes effect when the stream is opened again, with the
+ * camera URL from {@link #apply(String)}.
+ *
+ * @author Thomas Le
+ * @see StreamSupervisor#reconnect()
+ */
+public class QualityController {
+    /*
+     * Share of the frame rate asked for below which a window is bad, and
+     * at or above which it may be good.
+     */
+    private final static float FPS_LOW = 0.75f;
+    private final static float FPS_OK = 0.9f;
+
+    /*
+     * Share of frames dropped or skipped above which a window is bad, and
+     * below which it may be good.
+     */
+    private final static float BACKLOG_HIGH = 0.25f;
+    private final static float BACKLOG_LOW = 0.05f;
+
+    /*
+     * Share of the frame interval spent decoding above which a window is
+     * bad, and below which the next level, scaled, may be tried.
+     */
+    private final static float DECODE_HIGH = 0.8f;
+    private final static float DECODE_LOW = 0.6f;
+
+    /*
+     * Share of the measured link capacity the next level may take.
+     */
+    private final static float CAPACITY_SHARE = 0.8f;
+
+    /*
+     * Growth of the measured link capacity per window that is not bad, so
+     * a link that got better is tried again.
+     */
+    private final static float CAPACITY_GROWTH = 1.03f;
+
+    /*
+     * Windows in a row to step down, and at least to step up, and at most
+     * to step up after the level was left again.
+     */
+    private final static int DOWN_WINDOWS = 2;
+    private final static int UP_WINDOWS = 8;
+    private final static int UP_WINDOWS_MAX = 128;
+
+    /*
+     * Windows ignored after a change, while the stream is opened again.
+     */
+    private final static int SETTLE_WINDOWS = 2;
+
+    private final static float NANOS_PER_SECOND = 1e9f;
+    private final static float MICROS_PER_SECOND = 1e6f;
+
+    /**
+     * Parameters asked of the camera at one step of the ladder.
+     */
+    public static class Level {
+        private final int width;
+        private final int height;
+        private final int fps;
+        private final int compression;
+
+
+
+        /**
+         * Constructor
+         * @param width
+         *        frame width in pixels.
+         * @param height
+         *        frame height in pixels.
+         * @param fps
+         *        frames per second, 0 to leave it to the camera.
+         * @param compression
+         *        compression from 0 to 100, higher for smaller frames, -1
+         *        to leave it to the camera.
+         */
+        public Level(int width, int height, int fps, int compression) {
+            this.width = width;
+            this.height = height;
+            this.fps = fps;
+            this.compression = compression;
+        }
+
+
+
+        /**
+         * Method to parse a level like "640x480@25/30", for 640x480 at 25
+         * fps and compression 30. The fps and compression may be left out.
+         * @param s
+         *        the level.
+         * @return the level.
+         * @throws IllegalArgumentException if it is not a level.
+         */
+        public static Level parse(String s) {
+            String t = s.trim();
+            int compression = -1;
+            int fps = 0;
+            int slash = t.indexOf('/');
+            try {
+                if(slash >= 0) {
+                    compression = Integer.parseInt(t.substring(slash + 1));
+                    t = t.substring(0, slash);
+                }
+                int at = t.indexOf('@');
+                if(at >= 0) {
+                    fps = Integer.parseInt(t.substring(at + 1));
+                    t = t.substring(0, at);
+                }
+                int x = t.indexOf('x');
+                return new Level(Integer.parseInt(t.substring(0, x)),
+                        Integer.parseInt(t.substring(x + 1)), fps,
+                        compression);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Not a level: " + s);
+            }
+        }
+
+
+
+        /**
+         * Method to parse a comma separated ladder of levels, from the
+         * cheapest to the best.
+         * @param s
+         *        the levels, see {@link #parse(String)}.
+         * @return the levels.
+         * @throws IllegalArgumentException if one is not a level.
+         */
+        public static Level[] parseLadder(String s) {
+            String[] parts = s.split(",");
+            Level[] ladder = new Level[parts.length];
+            for(int i = 0; i < parts.length; i++) {
+                ladder[i] = parse(parts[i]);
+            }
+            return ladder;
+        }
+
+
+
+        /**
+         * Accessor method
+         * @return frame width in pixels.
+         */
+        public int getWidth() { return width; }
+
+
+
+        /**
+         * Accessor method
+         * @return frame height in pixels.
+         */
+        public int getHeight() { return height; }
+
+
+
+        /**
+         * Accessor method
+         * @return frames per second, 0 if left to the camera.
+         */
+        public int getFps() { return fps; }
+
+
+
+        /**
+         * Accessor method
+         * @return compression from 0 to 100, -1 if left to the camera.
+         */
+        public int getCompression() { return compression; }
+
+
+
+        /**
+         * Method to set the parameters of the level in a camera URL.
+         * @param url
+         *        the camera URL.
+         * @return the URL asking for this level.
+         * @see QualityController#apply(String)
+         */
+        public String apply(String url) {
+            String u = setParameter(url, "resolution", width + "x" + height);
+            if(fps > 0) u = setParameter(u, "fps", String.valueOf(fps));
+            if(compression >= 0) {
+                u = setParameter(u, "compression",
+                        String.valueOf(compression));
+            }
+            return u;
+        }
+
+
+
+        @Override
+        public String toString() {
+            return width + "x" + height + (fps > 0 ? "@" + fps : "")
+                    + (compression >= 0 ? "/" + compression : "");
+        }
+
+
+
+        /*
+         * Pixels per second, for comparing the cost of two levels.
+         */
+        private float cost(float defaultFps) {
+            return width * (float) height * (fps > 0 ? fps : defaultFps);
+        }
+    }
+
+    private final Level[] ladder;
+    private final StreamMetrics metrics;
+    private final int[] upWindows;      // per level.
+    private int index;                  // guarded by this.
+    private int badRun;
+    private int goodRun;
+    private int settle;
+    private float capacity;             // bytes per second, 0 if unknown.
+    private float lastFps;
+    private long lastNanos;
+    private long lastRead;
+    private long lastSkipped;
+    private long lastDropped;
+    private long lastBytes;
+    private long lastOutages;
+    private long lastDecodeCount;
+    private long lastDecodeMicros;
+    private long upgrades;
+    private long downgrades;
+
+
+
+    /**
+     * Constructor
+     * Starts at the best level. Turns the metrics on, as it reads them.
+     * @param ladder
+     *        levels from the cheapest to the best, at least one.
+     * @param metrics
+     *        metrics of the stream.
+     */
+    public QualityController(Level[] ladder, StreamMetrics metrics) {
+        this.ladder = ladder.clone();
+        this.metrics = metrics;
+        upWindows = new int[ladder.length];
+        for(int i = 0; i < upWindows.length; i++) upWindows[i] = UP_WINDOWS;
+        index = ladder.length - 1;
+        metrics.setEnabled(true);
+    }
+
+
+
+    /**
+     * Looks at the metrics since the last call, and steps the level down
+     * or up. Called once per window, from a single thread.
+     * @return true if the level changed, and the stream should be opened
+     *         again.
+     */
+    public boolean update() {
+        long now = System.nanoTime();
+        long read = metrics.getFramesRead();
+        long skipped = metrics.getSkipped();
+        long dropped = metrics.getDropped();
+        long bytes = metrics.getBytes();
+        long outages = metrics.getOutages();
+        LatencyHistogram decode = metrics.getStage(
+                StreamMetrics.STAGE_DECODE);
+        long decodeCount = decode.getCount();
+        long decodeMicros = decode.getMean() * decodeCount;
+
+        float seconds = (now - lastNanos) / NANOS_PER_SECOND;
+        int frames = (int) (read - lastRead + skipped - lastSkipped);
+        int late = (int) (dropped - lastDropped + skipped - lastSkipped);
+        long windowBytes = bytes - lastBytes;
+        long decoded = decodeCount - lastDecodeCount;
+        long windowDecodeMicros = decodeMicros - lastDecodeMicros;
+        boolean valid = lastNanos != 0 && outages == lastOutages
+                && seconds > 0;
+
+        lastNanos = now;
+        lastRead = read;
+        lastSkipped = skipped;
+        lastDropped = dropped;
+        lastBytes = bytes;
+        lastOutages = outages;
+        lastDecodeCount = decodeCount;
+        lastDecodeMicros = decodeMicros;
+
+        // Windows with an outage, or right after a change, say nothing
+        // about the level.
+        if(!valid) return false;
+        if(settle > 0) {
+            settle--;
+            return false;
+        }
+
+        Level level = getLevel();
+        float fps = frames / seconds;
+        float throughput = windowBytes / seconds;
+        float asked = level.fps > 0 ? level.fps : Math.max(fps, lastFps);
+        float backlog = frames > 0 ? late / (float) frames : 0;
+        float decodeLoad = decoded > 0 ? windowDecodeMicros / (float) decoded
+                * asked / MICROS_PER_SECOND : 0;
+        lastFps = fps;
+
+        boolean linkShort = level.fps > 0 && fps < level.fps * FPS_LOW;
+        if(linkShort) capacity = throughput;
+        else if(capacity > 0 && throughput > capacity) capacity = throughput;
+
+        if(linkShort || backlog > BACKLOG_HIGH || decodeLoad > DECODE_HIGH) {
+            goodRun = 0;
+            if(++badRun >= DOWN_WINDOWS && index > 0) {
+                upWindows[index] = Math.min(UP_WINDOWS_MAX,
+                        upWindows[index] * 2);
+                downgrades++;
+                return change(index - 1);
+            }
+            return false;
+        }
+        badRun = 0;
+        capacity *= CAPACITY_GROWTH;
+
+        boolean good = (level.fps == 0 || fps >= level.fps * FPS_OK)
+                && backlog < BACKLOG_LOW;
+        if(!good || index == ladder.length - 1) {
+            goodRun = 0;
+            return false;
+        }
+        Level next = ladder[index + 1];
+        float scale = next.cost(asked) / level.cost(asked);
+        boolean fits = decodeLoad * scale < DECODE_LOW
+                && (capacity == 0 || throughput * scale
+                        < capacity * CAPACITY_SHARE);
+        if(!fits) {
+            goodRun = 0;
+            return false;
+        }
+        if(++goodRun >= upWindows[index + 1]) {
+            upgrades++;
+            return change(index + 1);
+        }
+        return false;
+    }
+
+
+
+    /**
+     * Method to set the parameters of the level in a camera URL, like
+     * "resolution=640x480&fps=25&compression=30". Parameters left to the
+     * camera are kept as they are in the URL.
+     * @param url
+     *        the camera URL.
+     * @return the URL asking for the current level.
+     */
+    public String apply(String url) { return getLevel().apply(url); }
+
+
+
+    /**
+     * Accessor method
+     * @return the current level.
+     */
+    public synchronized Level getLevel() { return ladder[index]; }
+
+
+
+    /**
+     * Accessor method
+     * @return number of steps up so far.
+     */
+    public long getUpgrades() { return upgrades; }
+
+
+
+    /**
+     * Accessor method
+     * @return number of steps down so far.
+     */
+    public long getDowngrades() { return downgrades; }
+
+
+
+    /**
+     * Accessor method
+     * @return bytes per second the link carried when it was last the
+     *         bottleneck, 0 if unknown.
+     */
+    public float getCapacity() { return capacity; }
+
+
+
+    /*
+     * Moves to a level, and waits for the stream to settle on it.
+     */
+    private boolean change(int i) {
+        synchronized(this) {
+            index = i;
+        }
+        badRun = 0;
+        goodRun = 0;
+        settle = SETTLE_WINDOWS;
+        return true;
+    }
+
+
+
+    /*
+     * Sets a query parameter of a URL, replacing its value or adding it.
+     */
+    private static String setParameter(String url, String name,
+            String value) {
+        int q = url.indexOf('?');
+        if(q < 0) return url + "?" + name + "=" + value;
+
+        int i = q;
+        while(i >= 0 && i < url.length()) {
+            if(url.startsWith(name + "=", i + 1)) {
+                int from = i + 1 + name.length() + 1;
+                int to = url.indexOf('&', from);
+                if(to < 0) to = url.length();
+                return url.substring(0, from) + value + url.substring(to);
+            }
+            i = url.indexOf('&', i + 1);
+        }
+        return url + "&" + name + "=" + value;
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvclient;
+
+/**
+ * A frame shared by several holders instead of copied for each. Each
+ * holder but the first calls {@link #retain()}, every holder calls
+ * {@link #release()} when done, and the last release gives the frame back
+ * for reuse.
+ *
+ * @author Thomas Le
+ * @see FrameBuffer
+ * @see DecodedFrame
+ * @see FrameBus
+ */
+public interface RefCounted {
+    /**
+     * Adds a holder of the frame, who must call {@link #release()} when
+     * done with it.
+     */
+    void retain();
+
+    /**
+     * Gives up this holder's use of the frame. The frame must not be used
+     * after this.
+     */
+    void release();
+}
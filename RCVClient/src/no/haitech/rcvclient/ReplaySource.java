@@ -0,0 +1,449 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvclient;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Frame source playing back a recording made by {@link FrameRecorder}.
+ * The segment and its index are memory mapped, so finding a frame is a
+ * read of its fixed size index record, and seeking to a frame costs the
+ * same wherever it is. Seeking to a time searches the index by
+ * interpolation, which for a steady frame rate lands on or next to the
+ * frame at once.
+ * <p>
+ * Frames are paced by their recorded times, scaled by the speed. A speed
+ * of {@link #SPEED_UNLIMITED} plays as fast as the reader takes them, for
+ * a repeatable, network free input to profile decode and draw. In step
+ * mode one frame is given per {@link #step()}.
+ * <p>
+ * The frame bytes are copied once, in bulk, from the mapping into the
+ * pooled frame buffer, since BitmapFactory only decodes from an array.
+ *
+ * @author Thomas Le
+ * @see FrameRecorder
+ * @see CameraView#setSource(FrameSource)
+ */
+public class ReplaySource implements FrameSource {
+    /**
+     * Speed that plays the frames without waiting.
+     */
+    public final static float SPEED_UNLIMITED = 0;
+
+    private final static long NANOS_PER_MILLI = 1000000L;
+
+    private final RandomAccessFile segmentFile;
+    private final RandomAccessFile indexFile;
+    private final ByteBuffer segment;   // read thread only.
+    private final ByteBuffer index;
+    private final int frameCount;
+    private final long startMillis;
+    private final Object lock;
+    private int position;               // guarded by lock.
+    private float speed;                // guarded by lock.
+    private boolean stepping;           // guarded by lock.
+    private boolean looping;            // guarded by lock.
+    private int steps;                  // guarded by lock.
+    private long anchorNanos;           // guarded by lock.
+    private int anchorTime;             // guarded by lock.
+    private boolean closed;             // guarded by lock.
+
+
+
+    /**
+     * Constructor
+     * Maps the recording, and starts at its first frame at real time.
+     * @param segment
+     *        segment file of the recording.
+     * @param index
+     *        index file of the recording.
+     * @throws IOException if the files can not be mapped, or the index is
+     *         not a recording index or does not match the segment.
+     */
+    public ReplaySource(File segment, File index) throws IOException {
+        RandomAccessFile s = new RandomAccessFile(segment, "r");
+        RandomAccessFile x = null;
+        try {
+            x = new RandomAccessFile(index, "r");
+            this.segment = map(s);
+            this.index = map(x);
+        } catch (IOException e) {
+            s.close();
+            if(x != null) x.close();
+            throw e;
+        }
+        segmentFile = s;
+        indexFile = x;
+        lock = new Object();
+
+        if(this.index.limit() < FrameRecorder.INDEX_HEADER_LENGTH
+                || this.index.getInt(0) != FrameRecorder.INDEX_MAGIC
+                || this.index.getInt(4) != FrameRecorder.INDEX_VERSION) {
+            close();
+            throw new IOException("Not a recording index: " + index);
+        }
+        startMillis = this.index.getLong(8);
+        frameCount = (this.index.limit() - FrameRecorder.INDEX_HEADER_LENGTH)
+                / FrameRecorder.INDEX_RECORD_LENGTH;
+        if(frameCount > 0 && getFrameOffset(frameCount - 1)
+                + getFrameLength(frameCount - 1) > this.segment.limit()) {
+            close();
+            throw new IOException("Index runs past the segment: " + segment);
+        }
+
+        speed = 1;
+        anchor(System.nanoTime());
+    }
+
+
+
+    /**
+     * Constructor
+     * Maps the recording by the name of its segment file, with the index
+     * next to it.
+     * @param segment
+     *        segment file, named with
+     *        {@link FrameRecorder#SEGMENT_EXTENSION}.
+     * @throws IOException if the recording can not be mapped.
+     */
+    public ReplaySource(File segment) throws IOException {
+        this(segment, indexOf(segment));
+    }
+
+
+
+    /**
+     * Reads the next frame, waiting until it is due at the speed, or for a
+     * step in step mode.
+     *
+     * @param pool
+     *        pool to take the frame buffer from.
+     * @return the frame.
+     * @throws EOFException after the last frame, unless looping.
+     * @throws IOException if closed.
+     */
+    @Override
+    public FrameBuffer readFrame(FrameBufferPool pool) throws IOException {
+        int i;
+        synchronized(lock) {
+            while(true) {
+                if(closed) throw new IOException("Replay closed");
+                if(position >= frameCount) {
+                    if(!looping || frameCount == 0) {
+                        throw new EOFException("End of recording");
+                    }
+                    position = 0;
+                    anchor(System.nanoTime());
+                }
+
+                long waitNanos;
+                if(stepping) {
+                    if(steps > 0) {
+                        steps--;
+                        break;
+                    }
+                    waitNanos = 0;
+                } else if(speed == SPEED_UNLIMITED) {
+                    break;
+                } else {
+                    long due = anchorNanos + (long) ((getFrameTime(position)
+                            - anchorTime) * NANOS_PER_MILLI / speed);
+                    waitNanos = due - System.nanoTime();
+                    if(waitNanos <= 0) break;
+                }
+                try {
+                    lock.wait(waitNanos / NANOS_PER_MILLI,
+                            (int) (waitNanos % NANOS_PER_MILLI));
+                } catch (InterruptedException e) {
+                    throw new IOException("Replay interrupted");
+                }
+            }
+            i = position++;
+        }
+
+        int offset = (int) getFrameOffset(i);
+        int length = getFrameLength(i);
+        FrameBuffer f = pool.acquire(length);
+        segment.limit(offset + length);
+        segment.position(offset);
+        f.put(segment);
+        f.setNetworkNanos(0);
+        return f;
+    }
+
+
+
+    /**
+     * Stops the replay, waking up a blocked read. The mappings are freed
+     * when garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized(lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        segmentFile.close();
+        indexFile.close();
+    }
+
+
+
+    /**
+     * Moves to a frame, which is the next one read.
+     * @param frame
+     *        index of the frame, clamped to the recording.
+     */
+    public void seekToFrame(int frame) {
+        synchronized(lock) {
+            position = Math.max(0, Math.min(frame, frameCount));
+            anchor(System.nanoTime());
+            lock.notifyAll();
+        }
+    }
+
+
+
+    /**
+     * Moves to the first frame at or after a time in the recording.
+     * @param ms
+     *        time since the first frame, in milliseconds.
+     */
+    public void seekToTime(long ms) {
+        seekToFrame(indexOfTime(ms));
+    }
+
+
+
+    /**
+     * Mutator method
+     * @param s
+     *        playback speed, 1 for real time, 2 for twice as fast, or
+     *        {@link #SPEED_UNLIMITED}.
+     */
+    public void setSpeed(float s) {
+        synchronized(lock) {
+            speed = s < 0 ? SPEED_UNLIMITED : s;
+            anchor(System.nanoTime());
+            lock.notifyAll();
+        }
+    }
+
+
+
+    /**
+     * Mutator method
+     * @param b
+     *        true to give frames only on {@link #step()}, false to play.
+     */
+    public void setStepping(boolean b) {
+        synchronized(lock) {
+            stepping = b;
+            steps = 0;
+            anchor(System.nanoTime());
+            lock.notifyAll();
+        }
+    }
+
+
+
+    /**
+     * Gives the next frame in step mode.
+     */
+    public void step() {
+        synchronized(lock) {
+            steps++;
+            lock.notifyAll();
+        }
+    }
+
+
+
+    /**
+     * Mutator method
+     * @param b
+     *        true to start over after the last frame, false to end.
+     */
+    public void setLooping(boolean b) {
+        synchronized(lock) {
+            looping = b;
+        }
+    }
+
+
+
+    /**
+     * Accessor method
+     * @return index of the next frame read.
+     */
+    public int getPosition() {
+        synchronized(lock) {
+            return position;
+        }
+    }
+
+
+
+    /**
+     * Accessor method
+     * @return number of frames in the recording.
+     */
+    public int getFrameCount() { return frameCount; }
+
+
+
+    /**
+     * Accessor method
+     * @return length of the recording in milliseconds.
+     */
+    public long getDuration() {
+        return frameCount > 0 ? getFrameTime(frameCount - 1) : 0;
+    }
+
+
+
+    /**
+     * Accessor method
+     * @return wall clock of the first frame, in milliseconds.
+     */
+    public long getStartTime() { return startMillis; }
+
+
+
+    /**
+     * Accessor method
+     * @param frame
+     *        index of a frame.
+     * @return time of the frame since the first frame, in milliseconds.
+     */
+    public int getFrameTime(int frame) {
+        return index.getInt(record(frame) + 12);
+    }
+
+
+
+    /**
+     * Method to get the first frame at or after a time. Interpolates on
+     * the frame times, bisecting every other step so that uneven times
+     * stay bounded.
+     * @param ms
+     *        time since the first frame, in milliseconds.
+     * @return index of the frame, or the last frame if none.
+     */
+    public int indexOfTime(long ms) {
+        if(frameCount == 0) return 0;
+        int lo = 0;
+        int hi = frameCount - 1;
+        if(ms <= getFrameTime(lo)) return lo;
+        if(ms > getFrameTime(hi)) return hi;
+
+        // getFrameTime(lo) < ms <= getFrameTime(hi)
+        boolean bisect = false;
+        while(hi - lo > 1) {
+            int mid;
+            long tl = getFrameTime(lo);
+            long th = getFrameTime(hi);
+            if(bisect || th <= tl) {
+                mid = (lo + hi) >>> 1;
+            } else {
+                mid = lo + (int) ((ms - tl) * (hi - lo) / (th - tl));
+                mid = Math.max(lo + 1, Math.min(mid, hi - 1));
+            }
+            if(getFrameTime(mid) < ms) lo = mid;
+            else hi = mid;
+            bisect = !bisect;
+        }
+        return hi;
+    }
+
+
+
+    /*
+     * Restarts the pacing clock at the current frame. Called holding the
+     * lock.
+     */
+    private void anchor(long nowNanos) {
+        anchorNanos = nowNanos;
+        anchorTime = position < frameCount ? getFrameTime(position) : 0;
+    }
+
+
+
+    /*
+     * Offset of the index record of a frame.
+     */
+    private static int record(int frame) {
+        return FrameRecorder.INDEX_HEADER_LENGTH
+                + frame * FrameRecorder.INDEX_RECORD_LENGTH;
+    }
+
+
+
+    /*
+     * Offset of a frame in the segment.
+     */
+    private long getFrameOffset(int frame) {
+        return index.getLong(record(frame));
+    }
+
+
+
+    /*
+     * Length of a frame in bytes.
+     */
+    private int getFrameLength(int frame) {
+        return index.getInt(record(frame) + 8);
+    }
+
+
+
+    /*
+     * Maps a whole file read only.
+     */
+    private static MappedByteBuffer map(RandomAccessFile f)
+            throws IOException {
+        FileChannel channel = f.getChannel();
+        long size = channel.size();
+        if(size > Integer.MAX_VALUE) {
+            throw new IOException("Recording too large to map");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+
+
+    /*
+     * Index file next to a segment file.
+     */
+    private static File indexOf(File segment) {
+        String name = segment.getName();
+        if(name.endsWith(FrameRecorder.SEGMENT_EXTENSION)) {
+            name = name.substring(0, name.length()
+                    - FrameRecorder.SEGMENT_EXTENSION.length());
+        }
+        return new File(segment.getParentFile(),
+                name + FrameRecorder.INDEX_EXTENSION);
+    }
+}
@@ -0,0 +1,576 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvclient;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per stage latency and throughput of the frames of one camera stream.
+ * Every frame is timed through the stages network, parse, queue, decode
+ * and draw, and end to end from the start of its read to the post of the
+ * drawn surface. Counters track frames, bytes, dropped and corrupt frames,
+ * and the frames not decoded for repeating the one before.
+ * Outages of the stream are counted, with the time each took to recover.
+ * <p>
+ * Metrics are off by default. When off, the record methods return at
+ * once and {@link #now()} does not read the clock, so the pipeline pays
+ * only a volatile read per call. Outages are rare, and are recorded
+ * either way.
+ *
+ * @author Thomas Le
+ * @see LatencyHistogram
+ * @see CameraView
+ */
+public class StreamMetrics {
+    /**
+     * Time blocked reading from the network.
+     */
+    public final static int STAGE_NETWORK = 0;
+
+    /**
+     * Time scanning the frame out of the stream, excluding network.
+     */
+    public final static int STAGE_PARSE = 1;
+
+    /**
+     * Time from read to the start of decode, waiting for the decoder.
+     */
+    public final static int STAGE_QUEUE = 2;
+
+    /**
+     * Time decoding the JPEG.
+     */
+    public final static int STAGE_DECODE = 3;
+
+    /**
+     * Time drawing the frame on the surface.
+     */
+    public final static int STAGE_DRAW = 4;
+
+    /**
+     * Time from the start of the read to the post of the drawn surface.
+     */
+    public final static int STAGE_END_TO_END = 5;
+
+    /**
+     * Time from the capture of the frame by the camera, by the timestamp
+     * of the server, to the post of the drawn surface. Only recorded for
+     * servers sending {@link MultipartHeaderParser#TIMESTAMP_HEADER}, and
+     * also while the metrics are disabled, see
+     * {@link #recordGlassToGlass(long)}.
+     */
+    public final static int STAGE_GLASS_TO_GLASS = 6;
+
+    /**
+     * Number of stages.
+     */
+    public final static int STAGE_COUNT = 7;
+
+    private final static String[] STAGE_NAMES = {
+        "network", "parse", "queue", "decode", "draw", "end-to-end",
+        "glass-to-glass" };
+
+    private final static long NANOS_PER_SECOND = 1000000000L;
+
+    private volatile boolean enabled;
+    private final LatencyHistogram[] stages;
+    private final AtomicLong framesRead;
+    private final AtomicLong framesDrawn;
+    private final AtomicLong bytes;
+    private final AtomicLong dropped;
+    private final AtomicLong corrupt;
+    private final AtomicLong resyncs;
+    private final AtomicLong skipped;
+    private final AtomicLong unchanged;
+    private final AtomicLong imagesReused;
+    private final AtomicLong imagesAllocated;
+    private final AtomicLong outages;
+    private final AtomicLong stalls;
+    private final LatencyHistogram recovery;
+    private final LatencyHistogram firstFrame;
+    private final AtomicLong firstFrameStart;
+    private volatile long lastFirstFrame;
+
+    // Rates, from the counter deltas between two updateRates() calls.
+    private long rateNanos;
+    private long rateFrames;
+    private long rateBytes;
+    private long rateRead;
+    private long rateUnchanged;
+    private volatile float fps;
+    private volatile float bytesPerSecond;
+    private volatile float unchangedRatio;
+
+
+
+    /**
+     * Constructor
+     */
+    public StreamMetrics() {
+        enabled = false;
+        stages = new LatencyHistogram[STAGE_COUNT];
+        for(int i = 0; i < STAGE_COUNT; i++) {
+            stages[i] = new LatencyHistogram();
+        }
+        framesRead = new AtomicLong();
+        framesDrawn = new AtomicLong();
+        bytes = new AtomicLong();
+        dropped = new AtomicLong();
+        corrupt = new AtomicLong();
+        resyncs = new AtomicLong();
+        skipped = new AtomicLong();
+        unchanged = new AtomicLong();
+        imagesReused = new AtomicLong();
+        imagesAllocated = new AtomicLong();
+        outages = new AtomicLong();
+        stalls = new AtomicLong();
+        recovery = new LatencyHistogram();
+        firstFrame = new LatencyHistogram();
+        firstFrameStart = new AtomicLong();
+    }
+
+
+
+    /**
+     * Mutator method
+     * @param b
+     *        true to record metrics, false to turn recording off.
+     */
+    public void setEnabled(boolean b) { enabled = b; }
+
+
+
+    /**
+     * Accessor method
+     * @return true if metrics are recorded.
+     */
+    public boolean isEnabled() { return enabled; }
+
+
+
+    /**
+     * Reads the clock if metrics are enabled.
+     * @return System.nanoTime(), or 0 if metrics are disabled.
+     */
+    public long now() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+
+
+    /**
+     * Records the time a frame spent in a stage.
+     * @param stage
+     *        one of the STAGE constants.
+     * @param nanos
+     *        time in nanoseconds.
+     */
+    public void record(int stage, long nanos) {
+        if(enabled) stages[stage].record(nanos);
+    }
+
+
+
+    /**
+     * Records the time from a start time to now.
+     * @param stage
+     *        one of the STAGE constants.
+     * @param startNanos
+     *        start time from {@link #now()}, ignored if 0.
+     */
+    public void recordSince(int stage, long startNanos) {
+        if(enabled && startNanos != 0) {
+            stages[stage].record(System.nanoTime() - startNanos);
+        }
+    }
+
+
+
+    /**
+     * Records the time from the capture of a frame to now, whether the
+     * metrics are enabled or not, as the latency of a camera with
+     * timestamps is wanted without the overlay. It costs a clock read per
+     * frame shown.
+     * @param captureNanos
+     *        System.nanoTime() of the capture, ignored if 0.
+     */
+    public void recordGlassToGlass(long captureNanos) {
+        if(captureNanos != 0) {
+            stages[STAGE_GLASS_TO_GLASS].record(
+                    System.nanoTime() - captureNanos);
+        }
+    }
+
+
+
+    /**
+     * Counts a frame read from the stream.
+     * @param length
+     *        size of the compressed frame in bytes.
+     */
+    public void frameRead(int length) {
+        if(!enabled) return;
+        framesRead.incrementAndGet();
+        bytes.addAndGet(length);
+    }
+
+
+
+    /**
+     * Counts a frame drawn on the display. The first frame after
+     * {@link #startFirstFrame(long)} records the time to first frame.
+     */
+    public void frameDrawn() {
+        if(firstFrameStart.get() != 0) {
+            long start = firstFrameStart.getAndSet(0);
+            if(start != 0) {
+                lastFirstFrame = System.nanoTime() - start;
+                firstFrame.record(lastFirstFrame);
+            }
+        }
+        if(enabled) framesDrawn.incrementAndGet();
+    }
+
+
+
+    /**
+     * Starts timing the time to first frame, from the user asking for the
+     * stream to its first frame drawn. Recorded even when disabled.
+     * @param startNanos
+     *        System.nanoTime() when the stream was asked for.
+     */
+    public void startFirstFrame(long startNanos) {
+        firstFrameStart.set(startNanos);
+    }
+
+
+
+    /**
+     * Counts frames dropped because a newer frame replaced them.
+     * @param n
+     *        number of dropped frames.
+     */
+    public void framesDropped(int n) {
+        if(enabled) dropped.addAndGet(n);
+    }
+
+
+
+    /**
+     * Counts a frame that could not be parsed or decoded.
+     */
+    public void frameCorrupt() {
+        if(enabled) corrupt.incrementAndGet();
+    }
+
+
+
+    /**
+     * Counts a frame the parser rejected as broken before decode, after
+     * which it found the next frame again. Also counted as corrupt.
+     * @param n
+     *        number of rejected frames.
+     */
+    public void framesRejected(int n) {
+        resyncs.addAndGet(n);
+        if(enabled) corrupt.addAndGet(n);
+    }
+
+
+
+    /**
+     * Counts stale frames passed over by the parser for a newer frame
+     * already received, without being decoded.
+     * @param n
+     *        number of skipped frames.
+     */
+    public void framesSkipped(int n) {
+        skipped.addAndGet(n);
+    }
+
+
+
+    /**
+     * Counts a frame neither decoded nor drawn, as it repeats the frame
+     * before.
+     */
+    public void frameUnchanged() {
+        if(enabled) unchanged.incrementAndGet();
+    }
+
+
+
+    /**
+     * Counts a frame decoded, into an image reused from an earlier frame
+     * or a new one.
+     * @param reused
+     *        true if decoded into a reused image.
+     */
+    public void imageDecoded(boolean reused) {
+        if(!enabled) return;
+        if(reused) imagesReused.incrementAndGet();
+        else imagesAllocated.incrementAndGet();
+    }
+
+
+
+    /**
+     * Counts a lost stream.
+     * @param stall
+     *        true if the stream was given up for making no progress, false
+     *        if it failed or ended.
+     */
+    public void outage(boolean stall) {
+        outages.incrementAndGet();
+        if(stall) stalls.incrementAndGet();
+    }
+
+
+
+    /**
+     * Records the time from a lost stream to the first frame after it.
+     * @param nanos
+     *        time in nanoseconds.
+     */
+    public void recovered(long nanos) {
+        recovery.record(nanos);
+    }
+
+
+
+    /**
+     * Updates the fps, bytes per second and share of unchanged frames from
+     * the counters. Called now and then, like once a second, from a single
+     * thread.
+     */
+    public synchronized void updateRates() {
+        long now = System.nanoTime();
+        long frames = framesDrawn.get();
+        long b = bytes.get();
+        long read = framesRead.get();
+        long same = unchanged.get();
+        if(rateNanos != 0 && now > rateNanos) {
+            float seconds = (now - rateNanos) / (float) NANOS_PER_SECOND;
+            fps = (frames - rateFrames) / seconds;
+            bytesPerSecond = (b - rateBytes) / seconds;
+            unchangedRatio = read > rateRead
+                    ? (same - rateUnchanged) / (float) (read - rateRead) : 0;
+        }
+        rateNanos = now;
+        rateFrames = frames;
+        rateBytes = b;
+        rateRead = read;
+        rateUnchanged = same;
+    }
+
+
+
+    /**
+     * Clears all histograms and counters.
+     */
+    public synchronized void reset() {
+        for(LatencyHistogram h : stages) h.reset();
+        framesRead.set(0);
+        framesDrawn.set(0);
+        bytes.set(0);
+        dropped.set(0);
+        corrupt.set(0);
+        resyncs.set(0);
+        skipped.set(0);
+        unchanged.set(0);
+        outages.set(0);
+        stalls.set(0);
+        recovery.reset();
+        firstFrame.reset();
+        lastFirstFrame = 0;
+        rateNanos = 0;
+        fps = 0;
+        bytesPerSecond = 0;
+        unchangedRatio = 0;
+    }
+
+
+
+    /**
+     * Accessor method
+     * @param stage
+     *        one of the STAGE constants.
+     * @return the latency histogram of the stage.
+     */
+    public LatencyHistogram getStage(int stage) { return stages[stage]; }
+
+
+
+    /**
+     * Accessor method
+     * @param stage
+     *        one of the STAGE constants.
+     * @return name of the stage.
+     */
+    public static String getStageName(int stage) { return STAGE_NAMES[stage]; }
+
+
+
+    /**
+     * Accessor method
+     * @return frames drawn per second, at the last updateRates().
+     */
+    public float getFps() { return fps; }
+
+
+
+    /**
+     * Accessor method
+     * @return compressed bytes read per second, at the last updateRates().
+     */
+    public float getBytesPerSecond() { return bytesPerSecond; }
+
+
+
+    /**
+     * Accessor method
+     * @return number of frames read.
+     */
+    public long getFramesRead() { return framesRead.get(); }
+
+
+
+    /**
+     * Accessor method
+     * @return number of frames drawn.
+     */
+    public long getFramesDrawn() { return framesDrawn.get(); }
+
+
+
+    /**
+     * Accessor method
+     * @return number of compressed bytes read.
+     */
+    public long getBytes() { return bytes.get(); }
+
+
+
+    /**
+     * Accessor method
+     * @return number of frames dropped for a newer frame.
+     */
+    public long getDropped() { return dropped.get(); }
+
+
+
+    /**
+     * Accessor method
+     * @return number of frames that could not be parsed or decoded.
+     */
+    public long getCorrupt() { return corrupt.get(); }
+
+
+
+    /**
+     * Accessor method
+     * @return number of frames rejected by the parser, each followed by a
+     *         resynchronization on the next frame.
+     */
+    public long getResyncs() { return resyncs.get(); }
+
+
+
+    /**
+     * Accessor method
+     * @return number of stale frames skipped for a newer one before
+     *         decode.
+     */
+    public long getSkipped() { return skipped.get(); }
+
+
+
+    /**
+     * Accessor method
+     * @return number of frames not decoded for repeating the frame before.
+     */
+    public long getUnchanged() { return unchanged.get(); }
+
+
+
+    /**
+     * Accessor method
+     * @return number of frames decoded into a reused image.
+     */
+    public long getImagesReused() { return imagesReused.get(); }
+
+
+
+    /**
+     * Accessor method
+     * @return number of frames decoded into a newly allocated image.
+     */
+    public long getImagesAllocated() { return imagesAllocated.get(); }
+
+
+
+    /**
+     * Accessor method
+     * @return share of the frames read that were unchanged, from 0 to 1,
+     *         as of the last {@link #updateRates()}.
+     */
+    public float getUnchangedRatio() { return unchangedRatio; }
+
+
+
+    /**
+     * Accessor method
+     * @return number of times the stream was lost.
+     */
+    public long getOutages() { return outages.get(); }
+
+
+
+    /**
+     * Accessor method
+     * @return number of times the stream was given up for a stall.
+     */
+    public long getStalls() { return stalls.get(); }
+
+
+
+    /**
+     * Accessor method
+     * @return histogram of the time from a lost stream to its next frame.
+     */
+    public LatencyHistogram getRecovery() { return recovery; }
+
+
+
+    /**
+     * Accessor method
+     * @return histogram of the time from asking for a stream to its first
+     *         frame drawn.
+     */
+    public LatencyHistogram getFirstFrame() { return firstFrame; }
+
+
+
+    /**
+     * Accessor method
+     * @return time to first frame of the last stream asked for, in
+     *         nanoseconds, 0 if none yet.
+     */
+    public long getLastFirstFrame() { return lastFirstFrame; }
+}
@@ -0,0 +1,577 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvclient;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * The stages of a camera stream between the source and the display: a
+ * read thread, a decode on a {@link DecodePool}, and the hand-off of the
+ * newest decoded image to a render thread.
+ * The stages are connected by {@link FrameSlot}s where the latest frame
+ * wins, so a stalled network or a slow decode never holds up the render
+ * thread, which always gets the newest image. Images go round between the
+ * decoder and the render thread and are decoded into again, so the steady
+ * state allocates nothing per frame.
+ * <p>
+ * Other consumers of the stream, like an analytics hook, subscribe to the
+ * compressed frames on {@link #getFrameBus()} or the decoded images on
+ * {@link #getImageBus()}, each with a backpressure policy of its own. They
+ * share the buffers of the display instead of copies. A decoded image
+ * goes back to the decoder when the render thread and every subscriber
+ * holding it have released it.
+ * <p>
+ * A frame with the same fingerprint as the frame decoded before it, like
+ * from a parked vehicle, is neither decoded nor drawn, and the image on
+ * the display stays, see {@link #setSkipUnchanged(boolean)}.
+ * <p>
+ * The pipeline knows nothing of the platform. The image type, and how a
+ * frame is decoded into it, come from an {@link ImageDecoder}. The
+ * {@link Renderer} is told when a new image is ready, and takes it with
+ * {@link #takeImage()} on its own thread, when the display is ready for
+ * it. On Android, {@link CameraView} decodes Bitmaps with
+ * {@link BitmapDecoder} and draws them at the display vsync. On a plain
+ * JVM the same pipeline runs with any other decoder, like ImageIO.
+ * <p>
+ * Every stage is timed in the {@link StreamMetrics} of the pipeline, when
+ * enabled.
+ *
+ * @param <T> type of the decoded images.
+ * @author Thomas Le
+ * @see CameraView
+ */
+public class StreamPipeline<T> {
+    /*
+     * Number of free compressed frame buffers kept for reuse.
+     */
+    private final static int POOL_SIZE = 4;
+
+    /*
+     * Number of free decoded images kept for reuse.
+     */
+    private final static int IMAGE_POOL_SIZE = 4;
+
+    /*
+     * Max time in milliseconds a frame waits for room in the queue of a
+     * blocking subscriber, on the delivery thread of the subscription.
+     */
+    private final static long MAX_BLOCK_MS = 20;
+
+    /*
+     * Max time in milliseconds to wait for the read thread to stop.
+     */
+    private final static long STOP_TIMEOUT_MS = 500;
+    private final static long NANOS_PER_MILLI = 1000000L;
+
+    /**
+     * Decodes compressed frames into images.
+     * @param <T> type of the images.
+     */
+    public interface ImageDecoder<T> {
+        /**
+         * Decodes a frame. Called on a decode worker, never for two frames
+         * of the same pipeline at once. The frame is released by the
+         * pipeline after.
+         * @param frame
+         *        the compressed frame.
+         * @param reuse
+         *        image of an earlier frame, no longer shown, to decode
+         *        into if it fits. May be null.
+         * @return the image, null if the frame could not be decoded.
+         */
+        T decode(FrameBuffer frame, T reuse);
+    }
+
+    /**
+     * Shows the decoded images.
+     */
+    public interface Renderer {
+        /**
+         * Called on a decode worker when a new image is ready, to be taken
+         * with {@link StreamPipeline#takeImage()} on the render thread.
+         * Must not block.
+         */
+        void requestRender();
+
+        /**
+         * Called on the read thread when the source failed or ended, after
+         * which the pipeline reads no more. Not called when stopped.
+         * @param e
+         *        the error.
+         */
+        void readFailed(IOException e);
+    }
+
+    private final ImageDecoder<T> decoder;
+    private final Renderer renderer;
+    private final StreamMetrics metrics;
+    private final FrameSlot<DecodedFrame<T>> decodedImages;
+    private final BlockingQueue<DecodedFrame<T>> freeImages;
+    private final FrameBus<FrameBuffer> frameBus;
+    private final FrameBus<DecodedFrame<T>> imageBus;
+    private FrameBufferPool pool;
+    private DecodePool decodePool;
+    private DecodePool ownDecodePool;
+    private int decodePriority;
+    private volatile DecodePool.Stream encodedFrames;
+    private volatile long encodedDropped;
+    private volatile FrameRecorder recorder;
+    private volatile boolean skipUnchanged;
+    private volatile boolean invalidated;
+    private FrameSource source;
+    private ReadThread readThread;
+    private DecodedFrame<T> current;    // render thread only.
+
+
+
+    /**
+     * Constructor
+     * The pipeline decodes on a pool of its own until given a shared one.
+     * @param decoder
+     *        decodes the frames into images.
+     * @param renderer
+     *        is told of new images.
+     */
+    public StreamPipeline(ImageDecoder<T> decoder, Renderer renderer) {
+        this.decoder = decoder;
+        this.renderer = renderer;
+        metrics = new StreamMetrics();
+        decodedImages = new FrameSlot<DecodedFrame<T>>();
+        freeImages = new ArrayBlockingQueue<DecodedFrame<T>>(
+                IMAGE_POOL_SIZE);
+        frameBus = new FrameBus<FrameBuffer>();
+        frameBus.setMaxBlock(MAX_BLOCK_MS);
+        imageBus = new FrameBus<DecodedFrame<T>>();
+        imageBus.setMaxBlock(MAX_BLOCK_MS);
+        pool = new FrameBufferPool(POOL_SIZE);
+        decodePriority = DecodePool.PRIORITY_PRIMARY;
+        skipUnchanged = true;
+    }
+
+
+
+    /**
+     * Sets the source of the stream. The previous source is closed, and
+     * once started the pipeline reads the new one.
+     * @param s
+     *        FrameSource ({@link FrameSource}) camera source, or null.
+     */
+    public void setSource(FrameSource s) {
+        stopReading();
+        source = s;
+        startReading();
+    }
+
+
+
+    /**
+     * Starts decoding, and reading the source if there is one.
+     */
+    public void start() {
+        if(encodedFrames != null) return;
+        DecodePool p = decodePool;
+        if(p == null) {
+            ownDecodePool = new DecodePool(1, pool);
+            p = ownDecodePool;
+        }
+        encodedFrames = p.register(new Decode(), decodePriority);
+        startReading();
+    }
+
+
+
+    /**
+     * Stops reading and decoding. The image last taken stays valid.
+     */
+    public void stop() {
+        stopReading();
+
+        // Drops the frame left for the decoder, after the one in decode.
+        if(encodedFrames != null) {
+            encodedFrames.close();
+            encodedFrames = null;
+        }
+        if(ownDecodePool != null) {
+            ownDecodePool.shutdown();
+            ownDecodePool = null;
+        }
+        DecodedFrame<T> d = decodedImages.poll();
+        if(d != null) d.release();
+    }
+
+
+
+    /**
+     * Takes the newest decoded image, if there is a new one. The image
+     * taken before is released, back to the decoder once no subscriber
+     * holds it. Called on the render thread.
+     * @return the image, valid until the next call, or null if there is no
+     *         new image.
+     */
+    public T takeImage() {
+        DecodedFrame<T> next = decodedImages.poll();
+        if(next == null) return null;
+        if(current != null) current.release();
+        current = next;
+        return next.getImage();
+    }
+
+
+
+    /**
+     * Counts the image last taken as shown, and times its draw and its
+     * whole way from the source, and from the camera when the frame
+     * has a capture time. Called on the render thread.
+     * @param drawStartNanos
+     *        start of the draw, from {@link StreamMetrics#now()}.
+     */
+    public void imageShown(long drawStartNanos) {
+        metrics.recordSince(StreamMetrics.STAGE_DRAW, drawStartNanos);
+        if(current != null) {
+            metrics.recordSince(StreamMetrics.STAGE_END_TO_END,
+                    current.getReadStartNanos());
+            metrics.recordGlassToGlass(current.getCaptureNanos());
+        }
+        metrics.frameDrawn();
+    }
+
+
+
+    /**
+     * Mutator method
+     * Decodes on a pool shared with other pipelines, instead of on a pool
+     * of this one, and reads into the frame buffers of the shared pool.
+     * Set before {@link #start()}.
+     * @param p
+     *        the shared pool, or null for a pool of this pipeline.
+     * @param priority
+     *        {@link DecodePool#PRIORITY_PRIMARY} for the camera that keeps
+     *        its frame rate, {@link DecodePool#PRIORITY_SECONDARY} or
+     *        higher for cameras that give way to it.
+     */
+    public void setDecodePool(DecodePool p, int priority) {
+        decodePool = p;
+        decodePriority = priority;
+        pool = p != null ? p.getFramePool()
+                : new FrameBufferPool(POOL_SIZE);
+    }
+
+
+
+    /**
+     * Mutator method
+     * Sets the recorder the frames are given to as they are read, before
+     * decode. The recorder shares the frame buffers, and never holds up the
+     * read.
+     * @param r
+     *        a started FrameRecorder, or null to stop giving it frames.
+     */
+    public void setRecorder(FrameRecorder r) { recorder = r; }
+
+
+
+    /**
+     * Has the next frame decoded and drawn even if it is unchanged, as the
+     * decoder will decode it to another image, like after a zoom. Can be
+     * called from any thread.
+     */
+    public void invalidate() { invalidated = true; }
+
+
+
+    /**
+     * Mutator method
+     * Skips the decode and draw of a frame that repeats the frame decoded
+     * before, by the fingerprint its source gave it. Frames without a
+     * fingerprint are always decoded. On by default.
+     * @param b
+     *        true to skip unchanged frames.
+     * @see FrameFingerprint
+     */
+    public void setSkipUnchanged(boolean b) { skipUnchanged = b; }
+
+
+
+    /**
+     * Accessor method
+     * @return the source of the stream, or null.
+     */
+    public FrameSource getSource() { return source; }
+
+
+
+    /**
+     * Accessor method
+     * Frames are published as read, after they are handed to the decoder.
+     * Publishing never waits, a subscriber that falls behind loses frames.
+     * @return the bus of the compressed frames.
+     */
+    public FrameBus<FrameBuffer> getFrameBus() { return frameBus; }
+
+
+
+    /**
+     * Accessor method
+     * Images are published as decoded, after they are handed to the
+     * render thread, unchanged frames are not. Publishing never waits, a
+     * subscriber that falls behind loses frames.
+     * @return the bus of the decoded images.
+     */
+    public FrameBus<DecodedFrame<T>> getImageBus() { return imageBus; }
+
+
+
+    /**
+     * Accessor method
+     * @return true between {@link #start()} and {@link #stop()}.
+     */
+    public boolean isStarted() { return encodedFrames != null; }
+
+
+
+    /**
+     * Accessor method
+     * Metrics are off until enabled, see {@link StreamMetrics#setEnabled}.
+     * @return the latency and throughput metrics of the stream.
+     */
+    public StreamMetrics getMetrics() { return metrics; }
+
+
+
+    /**
+     * Accessor method
+     * @return the compressed frame pool, for its hits and misses.
+     */
+    public FrameBufferPool getFramePool() { return pool; }
+
+
+
+    /**
+     * Accessor method
+     * Frames dropped because a newer frame arrived before they were used.
+     * @return number of dropped compressed and decoded frames.
+     */
+    public long getDroppedFrames() {
+        return encodedDropped + decodedImages.getDropped();
+    }
+
+
+
+    /*
+     * Starts the read thread if there is a source, a decoder to give the
+     * frames to, and it is not running.
+     */
+    private void startReading() {
+        if(source != null && readThread == null && encodedFrames != null) {
+            readThread = new ReadThread(source);
+            readThread.start();
+        }
+    }
+
+
+
+    /*
+     * Stops the read thread, closing its source. Waits for it at most
+     * STOP_TIMEOUT_MS, as this is called on the UI thread, and a host name
+     * lookup can not be cut short. A read thread still going after that
+     * drops what it reads and ends by itself.
+     */
+    private void stopReading() {
+        if(readThread != null) {
+            readThread.stopReading();
+            long deadline = System.nanoTime()
+                    + STOP_TIMEOUT_MS * NANOS_PER_MILLI;
+            long left = STOP_TIMEOUT_MS;
+            while(readThread.isAlive() && left > 0) {
+                try {
+                    readThread.join(left);
+                } catch (InterruptedException e) {
+                    // Waits for the read thread anyway.
+                }
+                left = (deadline - System.nanoTime()) / NANOS_PER_MILLI;
+            }
+            readThread = null;
+        }
+    }
+
+
+
+    /*
+     * Thread for reading compressed frames from the source.
+     */
+    private class ReadThread extends Thread {
+        private final FrameSource source;
+        private volatile boolean isReading;
+
+
+
+        /**
+         * Constructor
+         *
+         * @param s
+         *        FrameSource ({@link FrameSource}) to read from.
+         */
+        public ReadThread(FrameSource s) {
+            super("StreamPipeline-read");
+            source = s;
+            isReading = true;
+        }
+
+
+
+        @Override
+        public void run() {
+            /*
+             * Reads frames as fast as the source gives them. A frame not yet
+             * taken by the decoder is replaced by the newer one, and a frame
+             * of a secondary camera is dropped while the shared frame
+             * buffers are over their budget.
+             */
+            while(isReading) {
+                try {
+                    long start = metrics.now();
+                    FrameBuffer f = source.readFrame(pool);
+                    DecodePool.Stream decode = encodedFrames;
+                    if(!isReading || decode == null) {
+                        // Given up by stopReading(), which went on.
+                        f.release();
+                        break;
+                    }
+                    long end = metrics.now();
+                    f.setReadTime(start, end);
+                    f.setTimestampNanos(System.nanoTime());
+                    if(start != 0) {
+                        metrics.record(StreamMetrics.STAGE_NETWORK,
+                                f.getNetworkNanos());
+                        metrics.record(StreamMetrics.STAGE_PARSE,
+                                end - start - f.getNetworkNanos());
+                    }
+                    metrics.frameRead(f.getLength());
+
+                    FrameRecorder r = recorder;
+                    if(r != null) r.record(f);
+
+                    // Handed to the decoder before it is published, held
+                    // so the decoder can not release it meanwhile.
+                    boolean publish = frameBus.hasSubscribers();
+                    if(publish) f.retain();
+                    FrameBuffer stale = decode.offer(f);
+                    if(stale != null) {
+                        stale.release();
+                        encodedDropped++;
+                        metrics.framesDropped(1);
+                    }
+                    if(publish) {
+                        frameBus.publish(f);
+                        f.release();
+                    }
+                } catch (IOException e) {
+                    if(isReading) renderer.readFailed(e);
+                    isReading = false;
+                }
+            }
+        }
+
+
+
+        /**
+         * Stops reading, and closes the source to wake up a blocked read.
+         */
+        public void stopReading() {
+            isReading = false;
+            try {
+                source.close();
+            } catch (IOException e) {
+                // The read stops either way.
+            }
+        }
+    }
+
+
+
+    /*
+     * Decodes the compressed frames of this pipeline into images, on a
+     * worker of the decode pool.
+     */
+    private class Decode implements DecodePool.Decoder {
+        private DecodedFrame<T> spare;
+        private long lastFingerprint;
+
+
+
+        /*
+         * Decodes the newest frame into a spare image, one released by the
+         * render thread and the subscribers, or a new one. A frame
+         * repeating the frame decoded last is dropped, its image is the
+         * one already shown or about to be.
+         */
+        @Override
+        public void decode(FrameBuffer f) {
+            metrics.recordSince(StreamMetrics.STAGE_QUEUE,
+                    f.getReadEndNanos());
+            long fingerprint = f.getFingerprint();
+            if(fingerprint != 0 && fingerprint == lastFingerprint
+                    && skipUnchanged && !invalidated) {
+                f.release();
+                metrics.frameUnchanged();
+                return;
+            }
+            // Cleared before the decoder reads its settings, so a change
+            // after this is seen by the next frame.
+            invalidated = false;
+
+            if(spare == null) {
+                spare = freeImages.poll();
+                if(spare != null) spare.reset();
+                else spare = new DecodedFrame<T>(freeImages);
+            }
+            long start = metrics.now();
+            T image = decoder.decode(f, spare.getImage());
+            metrics.recordSince(StreamMetrics.STAGE_DECODE, start);
+            if(image == null) {
+                f.release();
+                lastFingerprint = 0;
+                metrics.frameCorrupt();
+                return;
+            }
+            spare.set(image, f);
+            f.release();
+            lastFingerprint = fingerprint;
+
+            // Handed to the render thread before it is published, and held
+            // so the render thread can not release it meanwhile.
+            DecodedFrame<T> d = spare;
+            spare = null;
+            boolean publish = imageBus.hasSubscribers();
+            if(publish) d.retain();
+            DecodedFrame<T> stale = decodedImages.offer(d);
+            if(stale != null) {
+                metrics.framesDropped(1);
+                stale.release();
+            }
+            renderer.requestRender();
+            if(publish) {
+                imageBus.publish(d);
+                d.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvclient;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Random;
+
+/**
+ * Frame source that keeps a camera stream alive across outages.
+ * The supervisor opens the stream through a {@link Connector}, and when
+ * the stream fails, ends or stalls it opens a new one, with a jittered
+ * backoff between attempts. Until then {@link #readFrame(FrameBufferPool)}
+ * just blocks, so the display keeps the last good frame.
+ * <p>
+ * A watchdog thread gives up a stream that delivers no frame within the
+ * stall timeout, like a camera sending garbage, or a link that is up but
+ * carries nothing. Reads blocked on a dead socket are covered by the read
+ * timeout of the stream itself, which should be about the same.
+ * <p>
+ * Every outage after the first frame is counted in the
+ * {@link StreamMetrics}, with the time from the loss of the stream to the
+ * first frame after it.
+ *
+ * @author Thomas Le
+ * @see CameraView#setSource(FrameSource)
+ */
+public class StreamSupervisor implements FrameSource {
+    /**
+     * Opens the underlying stream, for the first time or again.
+     */
+    public interface Connector {
+        /**
+         * Opens a new stream. Called on the read thread.
+         *
+         * @return a source positioned at the start of the stream.
+         * @throws IOException if the stream can not be opened.
+         */
+        FrameSource connect() throws IOException;
+    }
+
+    private final static long NANOS_PER_MILLI = 1000000L;
+
+    private final Connector connector;
+    private final StreamMetrics metrics;
+    private final Random random;
+    private final Object lock;
+    private FrameSource source;         // guarded by lock.
+    private FrameSource reopening;      // guarded by lock.
+    private Thread connecting;          // guarded by lock.
+    private boolean closed;             // guarded by lock.
+    private boolean stalled;            // guarded by lock.
+    private long progressNanos;         // guarded by lock.
+    private int attempts;
+    private boolean started;
+    private long outageNanos;
+    private long stallTimeoutMs;
+    private long minBackoffMs;
+    private long maxBackoffMs;
+    private volatile IOException lastError;
+    private Watchdog watchdog;
+
+
+
+    /**
+     * Constructor
+     * @param connector
+     *        opens the stream.
+     * @param metrics
+     *        where outages and their recovery times are recorded.
+     */
+    public StreamSupervisor(Connector connector, StreamMetrics metrics) {
+        this.connector = connector;
+        this.metrics = metrics;
+        random = new Random();
+        lock = new Object();
+        stallTimeoutMs = 3000;
+        minBackoffMs = 200;
+        maxBackoffMs = 2000;
+    }
+
+
+
+    /**
+     * Reads the next frame, opening the stream again as often as it takes.
+     *
+     * @param pool
+     *        pool to take the frame buffer from.
+     * @return the frame.
+     * @throws IOException only when the supervisor is closed.
+     */
+    @Override
+    public FrameBuffer readFrame(FrameBufferPool pool) throws IOException {
+        while(true) {
+            FrameSource s = open();
+            FrameBuffer f;
+            try {
+                f = s.readFrame(pool);
+            } catch (IOException e) {
+                lost(s, e);
+                continue;
+            }
+
+            long now = System.nanoTime();
+            synchronized(lock) {
+                progressNanos = now;
+            }
+            if(outageNanos != 0) {
+                metrics.recovered(now - outageNanos);
+                outageNanos = 0;
+            }
+            attempts = 0;
+            started = true;
+            return f;
+        }
+    }
+
+
+
+    /**
+     * Closes the stream and stops reconnecting. A blocked read returns
+     * with an IOException. A stream being opened is given up, by
+     * interrupting the thread opening it, except for a host name lookup,
+     * which can not be interrupted.
+     */
+    @Override
+    public void close() throws IOException {
+        FrameSource s;
+        Watchdog w;
+        Thread c;
+        synchronized(lock) {
+            closed = true;
+            s = source;
+            source = null;
+            w = watchdog;
+            c = connecting;
+            lock.notifyAll();
+        }
+        if(w != null) w.interrupt();
+        if(c != null) c.interrupt();
+        if(s != null) s.close();
+    }
+
+
+
+    /**
+     * Closes the open stream, and opens a new one at once through the
+     * connector, like after a change of the stream parameters. This is not
+     * counted as an outage.
+     */
+    public void reconnect() {
+        FrameSource s;
+        synchronized(lock) {
+            s = source;
+            if(s == null) return;
+            source = null;
+            reopening = s;
+        }
+        try {
+            s.close();
+        } catch (IOException ignored) {
+            // The read sees the close either way.
+        }
+    }
+
+
+
+    /**
+     * Mutator method
+     * @param ms
+     *        time without a frame before the stream is given up.
+     */
+    public void setStallTimeout(long ms) { stallTimeoutMs = ms; }
+
+
+
+    /**
+     * Mutator method
+     * Sets the delay between attempts to open the stream. The delay
+     * doubles from min to max, and is drawn between half and all of that.
+     * @param minMs
+     *        delay after the first failed attempt.
+     * @param maxMs
+     *        upper bound of the delay.
+     */
+    public void setBackoff(long minMs, long maxMs) {
+        minBackoffMs = minMs;
+        maxBackoffMs = maxMs;
+    }
+
+
+
+    /**
+     * Accessor method
+     * @return true if a stream is open.
+     */
+    public boolean isConnected() {
+        synchronized(lock) {
+            return source != null;
+        }
+    }
+
+
+
+    /**
+     * Accessor method
+     * @return the error that lost the stream last, or null.
+     */
+    public IOException getLastError() { return lastError; }
+
+
+
+    /*
+     * Returns the open stream, or opens one. Waits the backoff before every
+     * attempt after a failed one.
+     */
+    private FrameSource open() throws IOException {
+        while(true) {
+            synchronized(lock) {
+                if(closed) throw new IOException("Stream supervisor closed");
+                if(source != null) return source;
+                if(attempts > 0) awaitBackoff(backoff(attempts));
+                attempts++;
+                if(watchdog == null) {
+                    watchdog = new Watchdog();
+                    watchdog.start();
+                }
+                connecting = Thread.currentThread();
+            }
+
+            FrameSource s;
+            try {
+                s = connector.connect();
+            } catch (IOException e) {
+                synchronized(lock) {
+                    connecting = null;
+                }
+                lastError = e;
+                if(started && outageNanos == 0) outage(false);
+                continue;
+            }
+
+            synchronized(lock) {
+                connecting = null;
+                if(!closed) {
+                    source = s;
+                    progressNanos = System.nanoTime();
+                    return s;
+                }
+            }
+            s.close();
+        }
+    }
+
+
+
+    /*
+     * Drops a stream that failed, ended or was given up by the watchdog.
+     */
+    private void lost(FrameSource s, IOException e) {
+        boolean stall;
+        boolean planned;
+        synchronized(lock) {
+            if(closed) return;
+            if(source == s) source = null;
+            stall = stalled;
+            stalled = false;
+            planned = reopening == s;
+            reopening = null;
+        }
+        if(planned) return;
+        lastError = e;
+        if(started && outageNanos == 0) outage(stall);
+        try {
+            s.close();
+        } catch (IOException ignored) {
+            // Already dead.
+        }
+    }
+
+
+
+    /*
+     * Starts timing an outage.
+     */
+    private void outage(boolean stall) {
+        outageNanos = System.nanoTime();
+        metrics.outage(stall);
+    }
+
+
+
+    /*
+     * Computes the delay before the given attempt to open the stream.
+     */
+    private long backoff(int attempt) {
+        long delay = minBackoffMs << Math.min(attempt - 1, 16);
+        delay = Math.min(delay, maxBackoffMs);
+        long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half));
+    }
+
+
+
+    /*
+     * Waits the delay, or until closed. Called holding the lock.
+     */
+    private void awaitBackoff(long delayMs) throws IOException {
+        long deadline = System.nanoTime() + delayMs * NANOS_PER_MILLI;
+        long left = delayMs;
+        while(!closed && left > 0) {
+            try {
+                lock.wait(left);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Reconnect interrupted");
+            }
+            left = (deadline - System.nanoTime()) / NANOS_PER_MILLI;
+        }
+        if(closed) throw new IOException("Stream supervisor closed");
+    }
+
+
+
+    /*
+     * Thread closing the stream when frames stop coming. Closing wakes up
+     * the blocked read, which then opens the stream again.
+     */
+    private class Watchdog extends Thread {
+        public Watchdog() {
+            super("StreamWatchdog");
+            setDaemon(true);
+        }
+
+
+
+        @Override
+        public void run() {
+            while(true) {
+                long timeout = stallTimeoutMs;
+                FrameSource stuck = null;
+                synchronized(lock) {
+                    if(closed) return;
+                    if(source != null && System.nanoTime() - progressNanos
+                            > timeout * NANOS_PER_MILLI) {
+                        stuck = source;
+                        stalled = true;
+                        // Restarts the clock, so the stuck source is only
+                        // closed once.
+                        progressNanos = System.nanoTime();
+                    }
+                }
+                if(stuck != null) {
+                    try {
+                        stuck.close();
+                    } catch (IOException ignored) {
+                        // The read sees the close either way.
+                    }
+                }
+
+                try {
+                    Thread.sleep(Math.max(timeout / 4, 10));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -18,18 +18,23 @@
  */
 package no.haitech.rcvclient;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
 
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.app.Activity;
 import android.util.Log;
 import android.view.Menu;
+import android.view.MenuItem;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.view.View.OnTouchListener;
+import android.widget.Button;
+import android.widget.Toast;
 import android.widget.ToggleButton;
 
 /**
@@ -38,21 +43,38 @@ import android.widget.ToggleButton;
  * 
  * @author Thomas Le
  * @see CameraView
- * @see MjpegInputStream
+ * @see ConnectionManager
+ * @see DecodePool
+ * @see QualityController
+ * @see MjpegFrameSource
+ * @see StreamSupervisor
+ * @see VehicleControl
+ * @see ReplaySource
  */
 public class VehicleActivity extends Activity {
+    /**
+     * Intent extra, System.nanoTime() when the user asked to connect, to
+     * time the first frame from.
+     */
+    public final static String EXTRA_CONNECT_NANOS =
+            "no.haitech.rcvclient.CONNECT_NANOS";
+    
     private final String TAG = "VehicleView";
+    private final static int FRAME_POOL_SIZE = 8;
     private CameraView cameraView;
-    private StreamCam streamCam;
+    private CameraView cameraViewRear;
+    private DecodePool decodePool;
+    private boolean hasRearCamera;
+    private StreamSupervisor frontSource;
+    private StreamSupervisor rearSource;
+    private QualityController frontQuality;
+    private QualityController rearQuality;
+    private int qualityWindowMs;
     private ToggleButton tbCamera;
-    
-    /*
-     * Hardcoded demo URL
-     */
-    private final String URL = 
-            "http://trackfield.webcam.oregonstate.edu/axis-cgi/mjpg/"
-            + "video.cgi?resolution=800x600&amp%3bdummy=1333689998337";
-//    String URL = "http://85.199.39.242/cgi-bin/video640x480.mjpg";
+    private ToggleButton tbRecord;
+    private FrameRecorder recorder;
+    private VehicleControl vehicleControl;
+    private long connectNanos;
     
     
     
@@ -62,12 +84,84 @@ public class VehicleActivity extends Activity {
         // Sets View
         setContentView(R.layout.activity_vehicle);
         cameraView = (CameraView) findViewById(R.id.cameraView);
+        cameraView.setMaxFps(
+                getResources().getInteger(R.integer.camera_max_fps));
+        cameraView.setOverlayEnabled(
+                getResources().getBoolean(R.bool.camera_stats_overlay));
+        cameraView.setSkipUnchanged(
+                getResources().getBoolean(R.bool.camera_skip_unchanged));
+        cameraView.setZoomEnabled(
+                getResources().getBoolean(R.bool.camera_zoom_enabled));
+        
+        /*
+         * Front and rear camera share the decode threads and the frame
+         * buffers. The rear camera gives way to the front one.
+         */
+        decodePool = new DecodePool(
+                getResources().getInteger(R.integer.camera_decode_workers),
+                new FrameBufferPool(FRAME_POOL_SIZE, getResources()
+                        .getInteger(R.integer.camera_frame_budget)));
+        cameraView.setDecodePool(decodePool, DecodePool.PRIORITY_PRIMARY);
+        cameraViewRear = (CameraView) findViewById(R.id.cameraViewRear);
+        cameraViewRear.setDecodePool(decodePool,
+                DecodePool.PRIORITY_SECONDARY);
+        cameraViewRear.setMaxFps(
+                getResources().getInteger(R.integer.camera_max_fps));
+        cameraViewRear.setSkipUnchanged(
+                getResources().getBoolean(R.bool.camera_skip_unchanged));
+        cameraViewRear.setZOrderMediaOverlay(true);
+        hasRearCamera = getString(R.string.camera_rear_url).length() > 0;
+        if(hasRearCamera) cameraViewRear.setVisibility(View.VISIBLE);
+        
+        // Adapts the camera resolution, rate and compression to the link.
+        if(getResources().getBoolean(R.bool.camera_adaptive_quality)) {
+            QualityController.Level[] ladder = QualityController.Level
+                    .parseLadder(getString(R.string.camera_quality_levels));
+            frontQuality = new QualityController(ladder,
+                    cameraView.getMetrics());
+            if(hasRearCamera) {
+                rearQuality = new QualityController(ladder,
+                        cameraViewRear.getMetrics());
+            }
+            qualityWindowMs = getResources().getInteger(
+                    R.integer.camera_quality_window);
+        }
         
 
         // Camera toggle button
         tbCamera = (ToggleButton) findViewById(R.id.tbCamera);
         tbCamera.setOnClickListener(tbCameraListener());
         tbCamera.setChecked(cameraView.getIsStreaming());
+        
+        // Record toggle button
+        tbRecord = (ToggleButton) findViewById(R.id.tbRecord);
+        tbRecord.setOnClickListener(tbRecordListener());
+        
+        // Time to first frame counts from the connect button.
+        connectNanos = getIntent().getLongExtra(EXTRA_CONNECT_NANOS, 0);
+        
+        // Drive buttons, held down to steer and to drive forward.
+        vehicleControl = ConnectionManager.getInstance().takeControl();
+        if(vehicleControl == null) {
+            vehicleControl = ConnectionManager.newVehicleControl(
+                    getResources());
+        }
+        Button bLeft = (Button) findViewById(R.id.Button02);
+        Button bRight = (Button) findViewById(R.id.Button01);
+        Button bForward = (Button) findViewById(R.id.button1);
+        bLeft.setOnTouchListener(steeringListener(-1));
+        bRight.setOnTouchListener(steeringListener(1));
+        bForward.setOnTouchListener(throttleListener(1));
+    }
+    
+    
+    
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // Warm streams never taken, like with the camera off.
+        ConnectionManager.getInstance().cancel();
+        decodePool.shutdown();
     }
     
     
@@ -81,19 +175,27 @@ public class VehicleActivity extends Activity {
     
     
     
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if(item.getItemId() == R.id.menu_replay) {
+            replayLastRecording();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+    
+    
+    
     @Override
     protected void onResume() {
         super.onResume();
+        vehicleControl.open();
         
         /*
          * Checks if the toggle camera button is true,
          * Starts the stream if true.
          */
-        if(tbCamera.isChecked()) {
-            streamCam = new StreamCam();
-            streamCam.execute(URL);
-            cameraView.startStream();
-        }
+        if(tbCamera.isChecked()) startCameras();
     }
     
     
@@ -101,18 +203,15 @@ public class VehicleActivity extends Activity {
     @Override
     protected void onPause() {
         super.onPause();
+        vehicleControl.close();
+        stopRecording();
+        tbRecord.setChecked(false);
         
         /*
          * Checks if the toggle camera button is true.
          * Stops the stream if true. 
          */
-        if(tbCamera.isChecked()) {
-            cameraView.setSource(null);
-            cameraView.stopStream();
-            if(streamCam != null) {
-                streamCam.cancel(true);
-            }
-        }
+        if(tbCamera.isChecked()) stopCameras();
     }
     
     
@@ -128,16 +227,32 @@ public class VehicleActivity extends Activity {
             @Override
             public void onClick(View v) {
                 if (tbCamera.isChecked()) {
-                    streamCam = new StreamCam();
-                    streamCam.execute(URL);
-                    cameraView.startStream();
+                    startCameras();
                 } else {
-                    cameraView.setSource(null);
-                    cameraView.stopStream();
-                    if(streamCam != null) {
-                        streamCam.cancel(true);
-                    }
+                    stopCameras();
                     cameraView.clearDisplay();
+                    if(hasRearCamera) cameraViewRear.clearDisplay();
+                }
+            }
+        };
+    }
+    
+    
+    
+    /**
+     * onClickListener for record toggle button.
+     * if toggle button is true, records the camera stream to a new file.
+     * if toggle button is false, stops recording.
+     * @return onClickListener
+     */
+    private OnClickListener tbRecordListener() {
+        return new OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if (tbRecord.isChecked()) {
+                    startRecording();
+                } else {
+                    stopRecording();
                 }
             }
         };
@@ -146,36 +261,258 @@ public class VehicleActivity extends Activity {
     
     
     /*
-     * streamCam AsyncTask class for connecting to camera.
+     * Starts the front camera stream, and the rear one if there is one.
      */
-    private class StreamCam extends AsyncTask<String, Void, MjpegInputStream> {
-        private URL streamURL;
-        private HttpURLConnection urlConnection ;
+    private void startCameras() {
+        long start = connectNanos != 0 ? connectNanos : System.nanoTime();
+        connectNanos = 0;
+        cameraView.getMetrics().startFirstFrame(start);
+        cameraViewRear.getMetrics().startFirstFrame(start);
+        frontSource = newCameraSource(cameraView,
+                getString(R.string.camera_url), frontQuality);
+        cameraView.setSource(frontSource);
+        cameraView.startStream();
+        if(hasRearCamera) {
+            rearSource = newCameraSource(cameraViewRear,
+                    getString(R.string.camera_rear_url), rearQuality);
+            cameraViewRear.setSource(rearSource);
+            cameraViewRear.startStream();
+        }
+        if(frontQuality != null) {
+            cameraView.removeCallbacks(adaptQuality);
+            cameraView.postDelayed(adaptQuality, qualityWindowMs);
+        }
+    }
+    
+    
+    
+    /*
+     * Stops the camera streams.
+     */
+    private void stopCameras() {
+        cameraView.removeCallbacks(adaptQuality);
+        frontSource = null;
+        rearSource = null;
+        cameraView.setSource(null);
+        cameraView.stopStream();
+        if(hasRearCamera) {
+            cameraViewRear.setSource(null);
+            cameraViewRear.stopStream();
+        }
+    }
+    
+    
+    
+    /*
+     * Starts recording the camera stream, to a file named by the time.
+     */
+    private void startRecording() {
+        File dir = getRecordingsDir();
+        dir.mkdirs();
+        String name = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US)
+                .format(new Date());
+        recorder = new FrameRecorder(dir, name);
+        recorder.start();
+        cameraView.setRecorder(recorder);
+    }
+    
+    
+    
+    /*
+     * Stops recording, if recording.
+     */
+    private void stopRecording() {
+        if(recorder == null) return;
+        cameraView.setRecorder(null);
+        recorder.stop();
+        recorder = null;
+    }
+    
+    
+    
+    /*
+     * Plays the newest recording in the camera view, in a loop, instead of
+     * the live stream. Toggling the camera goes back to live.
+     */
+    private void replayLastRecording() {
+        File last = null;
+        File[] files = getRecordingsDir().listFiles();
+        if(files != null) {
+            for(File f : files) {
+                if(!f.getName().endsWith(FrameRecorder.SEGMENT_EXTENSION)) {
+                    continue;
+                }
+                if(last == null || f.lastModified() > last.lastModified()) {
+                    last = f;
+                }
+            }
+        }
+        if(last == null) {
+            Toast.makeText(this, R.string.no_recordings, Toast.LENGTH_SHORT)
+                    .show();
+            return;
+        }
+        
+        stopRecording();
+        tbRecord.setChecked(false);
+        try {
+            ReplaySource replay = new ReplaySource(last);
+            replay.setLooping(true);
+            frontSource = null;
+            cameraView.setSource(replay);
+            if(!cameraView.getIsStreaming()) cameraView.startStream();
+            tbCamera.setChecked(true);
+        } catch (IOException e) {
+            Log.d(TAG, "replayLastRecording(): ", e);
+        }
+    }
+    
+    
+    
+    /*
+     * Directory of the recordings.
+     */
+    private File getRecordingsDir() {
+        File dir = getExternalFilesDir("recordings");
+        return dir != null ? dir : getFilesDir();
+    }
+    
+    
+    
+    /**
+     * onTouchListener for a steering button.
+     * Steers while the button is held down, and straightens up on release.
+     * @param steering
+     *        -1 for left, 1 for right.
+     * @return onTouchListener
+     */
+    private OnTouchListener steeringListener(final float steering) {
+        return new OnTouchListener() {
+            @Override
+            public boolean onTouch(View v, MotionEvent e) {
+                switch(e.getActionMasked()) {
+                case MotionEvent.ACTION_DOWN:
+                    vehicleControl.setSteering(steering);
+                    break;
+                case MotionEvent.ACTION_UP:
+                case MotionEvent.ACTION_CANCEL:
+                    vehicleControl.setSteering(0);
+                    break;
+                }
+                // Lets the button show that it is pressed.
+                return false;
+            }
+        };
+    }
+    
+    
+    
+    /**
+     * onTouchListener for a throttle button.
+     * Drives while the button is held down, and stops on release.
+     * @param throttle
+     *        -1 for reverse, 1 for forward.
+     * @return onTouchListener
+     */
+    private OnTouchListener throttleListener(final float throttle) {
+        return new OnTouchListener() {
+            @Override
+            public boolean onTouch(View v, MotionEvent e) {
+                switch(e.getActionMasked()) {
+                case MotionEvent.ACTION_DOWN:
+                    vehicleControl.setThrottle(throttle);
+                    break;
+                case MotionEvent.ACTION_UP:
+                case MotionEvent.ACTION_CANCEL:
+                    vehicleControl.setThrottle(0);
+                    break;
+                }
+                return false;
+            }
+        };
+    }
+    
+    
+    
+    /*
+     * Once per window, steps the quality of the camera streams up or down,
+     * and opens a stream again at its new quality.
+     */
+    private final Runnable adaptQuality = new Runnable() {
+        @Override
+        public void run() {
+            adapt(frontQuality, frontSource);
+            adapt(rearQuality, rearSource);
+            cameraView.postDelayed(this, qualityWindowMs);
+        }
+    };
+    
+    
+    
+    /*
+     * Updates the quality of one camera stream, if adaptive.
+     */
+    private static void adapt(QualityController q, StreamSupervisor s) {
+        if(q != null && s != null && q.update()) s.reconnect();
+    }
+    
+    
+    
+    /*
+     * Creates a camera stream source, reconnecting on its own after
+     * outages. With a quality controller, the stream asks for its current
+     * level.
+     */
+    private StreamSupervisor newCameraSource(CameraView view, String url,
+            QualityController quality) {
+        StreamSupervisor s = new StreamSupervisor(
+                new StreamCam(url, view.getMetrics(), quality),
+                view.getMetrics());
+        s.setStallTimeout(
+                getResources().getInteger(R.integer.camera_stall_timeout));
+        return s;
+    }
+    
+    
+    
+    /*
+     * StreamCam class for connecting to camera. Called on the read thread
+     * of the CameraView, at start and after every outage.
+     */
+    private class StreamCam implements StreamSupervisor.Connector {
+        private final String streamURL;
+        private final StreamMetrics metrics;
+        private final QualityController quality;
         
         
         
-        @Override
-        protected MjpegInputStream doInBackground(String... sURL) {
-            if(isCancelled()) return null;
-                try {
-                    streamURL = new URL(sURL[0]);
-                    urlConnection = (HttpURLConnection) streamURL.openConnection();
-                    return new MjpegInputStream(urlConnection.getInputStream());
-
-                } catch (MalformedURLException e) {
-                    Log.d(TAG, "doInBackground(): ", e);
-                } catch (IOException e) {
-                    Log.d(TAG, "doInBackground(): ", e);
-                }
-            return null;
+        public StreamCam(String url, StreamMetrics m, QualityController q) {
+            streamURL = url;
+            metrics = m;
+            quality = q;
         }
         
         
         
         @Override
-        protected void onPostExecute(MjpegInputStream r) {
-            super.onPostExecute(r);
-            cameraView.setSource(r);
+        public FrameSource connect() throws IOException {
+            String url = quality != null ? quality.apply(streamURL)
+                    : streamURL;
+            // Opened on the login screen, if still fresh.
+            MjpegStreamClient streamClient =
+                    ConnectionManager.getInstance().takeStream(url);
+            if(streamClient == null) {
+                streamClient = ConnectionManager.newStreamClient(
+                        getResources(), url);
+                streamClient.connect();
+            }
+            MjpegFrameSource in = new MjpegFrameSource(streamClient);
+            in.setMetrics(metrics);
+            in.setMaxFrameLength(getResources()
+                    .getInteger(R.integer.camera_frame_max_length));
+            in.setSkipToNewest(getResources()
+                    .getBoolean(R.bool.camera_skip_to_newest));
+            return in;
         }
     }
 }
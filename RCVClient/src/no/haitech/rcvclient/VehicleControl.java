@@ -0,0 +1,446 @@
+/*
+ * Copyright (C) 2013 Thomas Le
+ *
+ * This file is part of RCVClient.
+ *
+ * RCVClient is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RCVClient is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public license
+ * along with RCVClient. If not, see <http://www.gnu.org/licenses/>.
+ */
+package no.haitech.rcvclient;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Control channel sending steering and throttle to the vehicle over UDP.
+ * Input is coalesced, the latest value wins: {@link #setDrive(float,
+ * float)} only stores the value, and the control thread sends it at most
+ * once per tick. Input after a quiet tick goes out at once, so a single
+ * key press is not delayed by the tick.
+ * <p>
+ * Every heartbeat the latest value is sent again, so a lost packet is
+ * repaired and the vehicle knows the link is alive, and a ping measures
+ * the round trip time. The packets are marked for low delay, and are kept
+ * apart from the TCP camera stream, so commands do not queue behind video
+ * data.
+ * <p>
+ * The socket is opened on the control thread, so the methods here may be
+ * called from the UI thread.
+ *
+ * @author Thomas Le
+ * @see ControlProtocol
+ */
+public class VehicleControl {
+    /*
+     * IP type of service for low delay.
+     */
+    private final static int IPTOS_LOWDELAY = 0x10;
+
+    private final static long NANOS_PER_MILLI = 1000000L;
+
+    private final String host;
+    private final int port;
+    private final LatencyHistogram rtt;
+    private final AtomicInteger sequence;   // goes on across opens.
+    private float steering;             // guarded by this.
+    private float throttle;             // guarded by this.
+    private int inputMicros;            // guarded by this.
+    private boolean dirty;              // guarded by this.
+    private int tickMs;
+    private int heartbeatMs;
+    private volatile long sent;
+    private volatile long pings;
+    private volatile long pongs;
+    private volatile IOException lastError;
+    private ControlThread thread;
+
+
+
+    /**
+     * Constructor
+     * @param host
+     *        address of the vehicle, resolved on the control thread.
+     * @param port
+     *        UDP port of the vehicle control server.
+     */
+    public VehicleControl(String host, int port) {
+        this.host = host;
+        this.port = port;
+        rtt = new LatencyHistogram();
+        sequence = new AtomicInteger();
+        tickMs = 20;
+        heartbeatMs = 250;
+    }
+
+
+
+    /**
+     * Starts the control thread, which opens the socket. The sequence
+     * numbers go on from the last open, so the vehicle does not take the
+     * packets after a reopen for stale ones.
+     */
+    public synchronized void open() {
+        if(thread != null) return;
+        thread = new ControlThread();
+        thread.start();
+    }
+
+
+
+    /**
+     * Stops the vehicle and the control thread.
+     */
+    public void close() {
+        ControlThread t;
+        synchronized(this) {
+            t = thread;
+            thread = null;
+        }
+        if(t != null) t.stopControl();
+    }
+
+
+
+    /**
+     * Mutator method
+     * Sets the input, sent with the next tick. A newer input replaces one
+     * not yet sent.
+     * @param steering
+     *        -1 full left to 1 full right.
+     * @param throttle
+     *        -1 full reverse to 1 full forward.
+     */
+    public void setDrive(float steering, float throttle) {
+        ControlThread t;
+        synchronized(this) {
+            this.steering = steering;
+            this.throttle = throttle;
+            inputMicros = ControlProtocol.micros();
+            if(dirty) return;
+            dirty = true;
+            t = thread;
+        }
+        if(t != null) t.wakeup();
+    }
+
+
+
+    /**
+     * Mutator method
+     * Sets the steering, keeping the throttle.
+     * @param steering
+     *        -1 full left to 1 full right.
+     */
+    public void setSteering(float steering) {
+        float th;
+        synchronized(this) {
+            th = throttle;
+        }
+        setDrive(steering, th);
+    }
+
+
+
+    /**
+     * Mutator method
+     * Sets the throttle, keeping the steering.
+     * @param throttle
+     *        -1 full reverse to 1 full forward.
+     */
+    public void setThrottle(float throttle) {
+        float st;
+        synchronized(this) {
+            st = steering;
+        }
+        setDrive(st, throttle);
+    }
+
+
+
+    /**
+     * Mutator method
+     * @param ms
+     *        min time between two drive packets. Set before open().
+     */
+    public void setTick(int ms) { tickMs = ms; }
+
+
+
+    /**
+     * Mutator method
+     * @param ms
+     *        time between two heartbeats. Set before open().
+     */
+    public void setHeartbeat(int ms) { heartbeatMs = ms; }
+
+
+
+    /**
+     * Accessor method
+     * @return histogram of the round trip time of pings.
+     */
+    public LatencyHistogram getRtt() { return rtt; }
+
+
+
+    /**
+     * Accessor method
+     * @return number of drive packets sent.
+     */
+    public long getSent() { return sent; }
+
+
+
+    /**
+     * Accessor method
+     * @return number of pings without a pong so far.
+     */
+    public long getLostPings() { return pings - pongs; }
+
+
+
+    /**
+     * Accessor method
+     * @return the last error of the socket, or null.
+     */
+    public IOException getLastError() { return lastError; }
+
+
+
+    /*
+     * Thread sending the input and heartbeats, and reading pongs.
+     */
+    private class ControlThread extends Thread {
+        private final ByteBuffer out;
+        private final ByteBuffer in;
+        private volatile boolean isRunning;
+        private volatile Selector selector;
+        private DatagramChannel channel;
+        private long lastSendNanos;
+        private long nextHeartbeatNanos;
+
+
+
+        /**
+         * Constructor
+         */
+        public ControlThread() {
+            super("VehicleControl");
+            out = ByteBuffer.allocate(ControlProtocol.PACKET_LENGTH);
+            in = ByteBuffer.allocate(ControlProtocol.PACKET_LENGTH + 1);
+            isRunning = true;
+        }
+
+
+
+        @Override
+        public void run() {
+            while(isRunning) {
+                try {
+                    openChannel();
+                    control();
+                } catch (IOException e) {
+                    if(isRunning) lastError = e;
+                } finally {
+                    closeChannel();
+                }
+                if(isRunning) pause(heartbeatMs);
+            }
+        }
+
+
+
+        /**
+         * Stops the thread, sending a last stop to the vehicle.
+         */
+        public void stopControl() {
+            synchronized(VehicleControl.this) {
+                steering = 0;
+                throttle = 0;
+                inputMicros = ControlProtocol.micros();
+                dirty = true;
+            }
+            isRunning = false;
+            wakeup();
+        }
+
+
+
+        /**
+         * Wakes the thread up to send new input.
+         */
+        public void wakeup() {
+            Selector s = selector;
+            if(s != null) s.wakeup();
+        }
+
+
+
+        /*
+         * Sends and receives until stopped or the socket fails.
+         */
+        private void control() throws IOException {
+            long tick = tickMs * NANOS_PER_MILLI;
+            long heartbeat = heartbeatMs * NANOS_PER_MILLI;
+            lastSendNanos = System.nanoTime() - tick;
+            nextHeartbeatNanos = System.nanoTime();
+
+            while(true) {
+                long now = System.nanoTime();
+                boolean running = isRunning;
+                boolean due;
+                synchronized(VehicleControl.this) {
+                    due = dirty && now - lastSendNanos >= tick;
+                }
+                boolean beat = now - nextHeartbeatNanos >= 0;
+                if(due || beat || !running) sendDrive(now);
+                if(!running) return;
+                if(beat) {
+                    sendPing();
+                    nextHeartbeatNanos = now + heartbeat;
+                }
+
+                long wait = nextHeartbeatNanos - now;
+                synchronized(VehicleControl.this) {
+                    if(dirty) wait = Math.min(wait, lastSendNanos + tick - now);
+                }
+                selector.select(Math.max(1, wait / NANOS_PER_MILLI));
+                selector.selectedKeys().clear();
+                receive();
+            }
+        }
+
+
+
+        /*
+         * Sends the latest input.
+         */
+        private void sendDrive(long now) throws IOException {
+            float st;
+            float th;
+            int micros;
+            synchronized(VehicleControl.this) {
+                st = steering;
+                th = throttle;
+                micros = inputMicros;
+                dirty = false;
+            }
+            send(ControlProtocol.TYPE_DRIVE, st, th, micros);
+            lastSendNanos = now;
+            sent++;
+        }
+
+
+
+        /*
+         * Sends a ping, stamped with the time now.
+         */
+        private void sendPing() throws IOException {
+            send(ControlProtocol.TYPE_PING, 0, 0, ControlProtocol.micros());
+            pings++;
+        }
+
+
+
+        /*
+         * Writes one packet to the socket.
+         */
+        private void send(byte type, float st, float th, int micros)
+                throws IOException {
+            out.clear();
+            ControlProtocol.write(out, type, sequence.incrementAndGet(), st, th,
+                    micros);
+            out.flip();
+            try {
+                channel.write(out);
+            } catch (PortUnreachableException e) {
+                // No vehicle listening yet, keeps sending.
+            }
+        }
+
+
+
+        /*
+         * Reads the pongs waiting on the socket.
+         */
+        private void receive() throws IOException {
+            while(true) {
+                in.clear();
+                int n;
+                try {
+                    n = channel.read(in);
+                } catch (PortUnreachableException e) {
+                    continue;
+                }
+                if(n <= 0) return;
+                in.flip();
+                if(ControlProtocol.isValid(in) && ControlProtocol.getType(in)
+                        == ControlProtocol.TYPE_PONG) {
+                    rtt.record(ControlProtocol.nanosSince(
+                            ControlProtocol.getTimestamp(in)));
+                    pongs++;
+                }
+            }
+        }
+
+
+
+        /*
+         * Opens the socket to the vehicle.
+         */
+        private void openChannel() throws IOException {
+            channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTrafficClass(IPTOS_LOWDELAY);
+            channel.connect(new InetSocketAddress(host, port));
+            Selector s = Selector.open();
+            channel.register(s, SelectionKey.OP_READ);
+            selector = s;
+        }
+
+
+
+        /*
+         * Closes the socket, if open.
+         */
+        private void closeChannel() {
+            try {
+                if(selector != null) selector.close();
+                if(channel != null) channel.close();
+            } catch (IOException e) {
+                // Closing anyway.
+            }
+            selector = null;
+            channel = null;
+        }
+
+
+
+        /*
+         * Sleeps before opening the socket again.
+         */
+        private void pause(long ms) {
+            try {
+                Thread.sleep(ms);
+            } catch (InterruptedException e) {
+                isRunning = false;
+            }
+        }
+    }
+}